@@ -2,6 +2,7 @@ plugins {
     java
     id("org.springframework.boot") version "3.4.5"
     id("io.spring.dependency-management") version "1.1.7"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "com.oreilly"
@@ -21,6 +22,7 @@ extra["springAiVersion"] = "1.0.0"
 
 dependencies {
     implementation("org.springframework.boot:spring-boot-starter-web")
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
 
     // Spring AI models
     implementation("org.springframework.ai:spring-ai-starter-model-openai")
@@ -48,7 +50,31 @@ dependencyManagement {
     }
 }
 
+// The local vector store's SIMD similarity kernel uses the incubating Vector API
+val vectorApiModule = "--add-modules=jdk.incubator.vector"
+
+tasks.withType<JavaCompile> {
+    options.compilerArgs.add(vectorApiModule)
+}
+
 tasks.withType<Test> {
     useJUnitPlatform()
-    jvmArgs = listOf("-Xshare:off", "-XX:+EnableDynamicAgentLoading")
+    jvmArgs = listOf("-Xshare:off", "-XX:+EnableDynamicAgentLoading", vectorApiModule)
+}
+
+tasks.named<org.springframework.boot.gradle.tasks.run.BootRun>("bootRun") {
+    jvmArgs(vectorApiModule)
+}
+
+// Offline benchmarks in src/jmh, reusing the stub models from the tests: ./gradlew jmh
+// Run a subset with -PjmhIncludes=VectorSearch
+jmh {
+    includeTests = true
+    jvmArgsAppend.add(vectorApiModule)
+    resultFormat = "JSON"
+    // Reports allocated bytes per operation next to the timings
+    profilers.add("gc")
+    if (project.hasProperty("jmhIncludes")) {
+        includes.add(project.property("jmhIncludes").toString())
+    }
 }
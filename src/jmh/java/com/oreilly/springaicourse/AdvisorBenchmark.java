@@ -0,0 +1,115 @@
+package com.oreilly.springaicourse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Prompt assembly by the advisors RAGService uses, over the WEF report
+// embedded with the stub model, plus a full ChatClient call with a stub
+// chat model so only the client-side work is measured, and the local
+// re-ranking of the default top-k's candidates.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdvisorBenchmark {
+    private static final String QUESTION = "What are the top skills employers will prioritize by 2027?";
+
+    private Path directory;
+    private MappedVectorStore store;
+    private QuestionAnswerAdvisor questionAnswerAdvisor;
+    private MessageChatMemoryAdvisor chatMemoryAdvisor;
+    private ChatClient chatClient;
+    private ChatClientRequest request;
+    private Reranker reranker;
+    private List<Document> candidates;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("advisor-benchmark");
+        store = MappedVectorStore.builder(new StubEmbeddingModel()).directory(directory)
+                .hnsw(HnswIndex.Settings.defaults()).build();
+        var pdf = new ClassPathResource("pdfs/WEF_Future_of_Jobs_Report_2025.pdf");
+        List<Document> chunks = new TokenTextSplitter().apply(new PagePdfDocumentReader(pdf).get());
+        store.add(chunks);
+
+        // A full 20-message window, as after ten exchanges
+        ChatMemory memory = MessageWindowChatMemory.builder().maxMessages(20).build();
+        for (int i = 0; i < 10; i++) {
+            memory.add(ChatMemory.DEFAULT_CONVERSATION_ID, List.of(
+                    new UserMessage("Earlier question " + i), new AssistantMessage("Earlier answer " + i)));
+        }
+
+        questionAnswerAdvisor = QuestionAnswerAdvisor.builder(store).build();
+        chatMemoryAdvisor = MessageChatMemoryAdvisor.builder(memory).build();
+        chatClient = ChatClient.create(new StubChatModel());
+        request = ChatClientRequest.builder().prompt(new Prompt(new UserMessage(QUESTION))).context(Map.of()).build();
+
+        reranker = new Reranker(Reranker.Settings.defaults());
+        candidates = store.similaritySearch(SearchRequest.builder().query(QUESTION)
+                .topK(reranker.candidates(SearchRequest.DEFAULT_TOP_K)).build());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public ChatClientRequest questionAnswerAdvisor() {
+        return questionAnswerAdvisor.before(request, null);
+    }
+
+    @Benchmark
+    public ChatClientRequest chatMemoryAdvisor() {
+        return chatMemoryAdvisor.before(request, null);
+    }
+
+    @Benchmark
+    public List<Document> rerank() {
+        return reranker.rerank(QUESTION, candidates, SearchRequest.DEFAULT_TOP_K);
+    }
+
+    @Benchmark
+    public String chatClientWithBothAdvisors() {
+        return chatClient.prompt()
+                .advisors(QuestionAnswerAdvisor.builder(store).build(), chatMemoryAdvisor)
+                .user(QUESTION)
+                .call()
+                .content();
+    }
+}
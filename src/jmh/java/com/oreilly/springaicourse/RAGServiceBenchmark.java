@@ -0,0 +1,84 @@
+package com.oreilly.springaicourse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.document.Document;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Per-query cost of RAGService with default advisors against the previous
+// version, which built both advisors on every query. Run with the gc
+// profiler (on by default in build.gradle.kts) and compare gc.alloc.rate.norm.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RAGServiceBenchmark {
+    private static final String QUESTION = "What are the top skills employers will prioritize by 2027?";
+
+    private Path directory;
+    private MappedVectorStore store;
+    private ChatMemory memory;
+    private ChatClient plainClient;
+    private RAGService ragService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("rag-service-benchmark");
+        store = MappedVectorStore.builder(new StubEmbeddingModel()).directory(directory).build();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            documents.add(new Document("doc-" + i, "chunk " + i + " about skills and jobs " + (i % 7), Map.of()));
+        }
+        store.add(documents);
+
+        memory = MessageWindowChatMemory.builder().maxMessages(20).build();
+        var chatModel = new StubChatModel();
+        plainClient = ChatClient.create(chatModel);
+        ragService = new RAGService(chatModel, store, memory);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String advisorsPerQuery() {
+        return plainClient.prompt()
+                .advisors(new QuestionAnswerAdvisor(store), MessageChatMemoryAdvisor.builder(memory).build())
+                .user(QUESTION)
+                .call()
+                .content();
+    }
+
+    @Benchmark
+    public String defaultAdvisors() {
+        return ragService.query(QUESTION);
+    }
+}
@@ -0,0 +1,98 @@
+package com.oreilly.springaicourse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Single-query latency of an exact scan over 100k 1536-dimension vectors as
+// the store is split into more shards; with a core per shard the time should
+// fall close to 1 / shards
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardedSearchBenchmark {
+    private static final String[] WORDS = ("skills jobs growth technology ai automation workforce training "
+            + "employers economy green transition spring framework beans kendrick drake feud album diss "
+            + "reskilling upskilling productivity demand supply labour market industries report").split(" ");
+
+    @Param({"100000"})
+    public int documents;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private Path directory;
+    private ShardedVectorStore store;
+    private List<SearchRequest> queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        directory = Files.createTempDirectory("sharded-search-benchmark");
+        store = ShardedVectorStore.builder(new StubEmbeddingModel())
+                .directory(directory)
+                .shards(shards)
+                .parallelism(shards)
+                .build();
+
+        Random random = new Random(1);
+        List<Document> batch = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            batch.add(new Document("doc-" + i, sentence(random, 40), Map.of("source", "benchmark")));
+            if (batch.size() == 1000) {
+                store.add(batch);
+                batch.clear();
+            }
+        }
+        store.add(batch);
+
+        queries = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            queries.add(SearchRequest.builder().query(sentence(random, 8)).topK(4).build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        store.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public List<Document> similaritySearch() {
+        return store.similaritySearch(queries.get(next++ & 63));
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.oreilly.springaicourse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.core.io.ClassPathResource;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Splitting the pages of the WEF report, as loadVectorStore does
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextSplitterBenchmark {
+
+    private List<Document> pages;
+
+    @Setup
+    public void readPdf() {
+        pages = new PagePdfDocumentReader(new ClassPathResource("pdfs/WEF_Future_of_Jobs_Report_2025.pdf")).get();
+    }
+
+    @Benchmark
+    public List<Document> tokenTextSplitter() {
+        return new TokenTextSplitter().apply(pages);
+    }
+
+    @Benchmark
+    public List<Document> fastTokenTextSplitter() {
+        return new FastTokenTextSplitter().apply(pages);
+    }
+}
@@ -0,0 +1,149 @@
+package com.oreilly.springaicourse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// similaritySearch on the local store with 1536-dimension stub embeddings,
+// and the similarity kernels alone scoring vectors in place in a mapped file.
+// Building the larger HNSW graphs takes a few minutes of setup.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VectorSearchBenchmark {
+    private static final String[] WORDS = ("skills jobs growth technology ai automation workforce training "
+            + "employers economy green transition spring framework beans kendrick drake feud album diss "
+            + "reskilling upskilling productivity demand supply labour market industries report").split(" ");
+
+    @State(Scope.Benchmark)
+    public static class Search {
+        @Param({"1000", "10000", "100000"})
+        public int documents;
+
+        @Param({"exact", "hnsw", "int8"})
+        public String mode;
+
+        private Path directory;
+        private MappedVectorStore store;
+        private List<SearchRequest> queries;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void load() throws IOException {
+            directory = Files.createTempDirectory("vector-search-benchmark");
+            var builder = MappedVectorStore.builder(new StubEmbeddingModel()).directory(directory);
+            if (mode.equals("hnsw")) {
+                builder.hnsw(HnswIndex.Settings.defaults());
+            } else if (mode.equals("int8")) {
+                builder.quantization("int8", 8);
+            }
+            store = builder.build();
+
+            Random random = new Random(1);
+            List<Document> batch = new ArrayList<>();
+            for (int i = 0; i < documents; i++) {
+                batch.add(new Document("doc-" + i, sentence(random, 40), Map.of("source", "benchmark")));
+                if (batch.size() == 1000) {
+                    store.add(batch);
+                    batch.clear();
+                }
+            }
+            store.add(batch);
+
+            queries = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                queries.add(SearchRequest.builder().query(sentence(random, 8)).topK(4).build());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            store.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    // One pass of a kernel over 10,000 random 1536-dimension vectors
+    @State(Scope.Benchmark)
+    public static class Kernels {
+        @Param({"scalar", "vector"})
+        public String kernel;
+
+        private Path directory;
+        private MappedVectorFile vectors;
+        private SimilarityKernel similarity;
+        private float[] query;
+
+        @Setup(Level.Trial)
+        public void load() throws IOException {
+            directory = Files.createTempDirectory("kernel-benchmark");
+            vectors = MappedVectorFile.create(directory.resolve("vectors.f32"), 1536);
+            Random random = new Random(11);
+            for (int i = 0; i < 10_000; i++) {
+                vectors.append(randomVector(random, 1536));
+            }
+            query = randomVector(random, 1536);
+            similarity = SimilarityKernel.named(kernel);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            vectors.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    public List<Document> similaritySearch(Search search) {
+        return search.store.similaritySearch(search.queries.get(search.next++ & 63));
+    }
+
+    @Benchmark
+    public float dotProducts(Kernels kernels) {
+        float checksum = 0;
+        for (int slot = 0; slot < kernels.vectors.size(); slot++) {
+            checksum += kernels.vectors.dot(slot, kernels.query, kernels.similarity);
+        }
+        return checksum;
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static float[] randomVector(Random random, int length) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+}
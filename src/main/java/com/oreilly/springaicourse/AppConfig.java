@@ -1,118 +1,369 @@
 package com.oreilly.springaicourse;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
-import org.springframework.ai.document.Document;
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.ChatMemoryRepository;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.reader.jsoup.JsoupDocumentReader;
-import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
 import org.springframework.ai.transformer.splitter.TextSplitter;
-import org.springframework.ai.transformer.splitter.TokenTextSplitter;
-import org.springframework.ai.vectorstore.SimpleVectorStore;
 import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.redis.RedisVectorStore;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.Resource;
+import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.util.unit.DataSize;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPooled;
 
 @Configuration
 public class AppConfig {
     private static final String FEUD_URL = "https://en.wikipedia.org/wiki/Drake%E2%80%93Kendrick_Lamar_feud";
     private static final String SPRING_URL = "https://en.wikipedia.org/wiki/Spring_Framework";
 
-    private final TextSplitter splitter = new TokenTextSplitter();
+    // TokenTextSplitter's defaults, and its chunks. Recorded in the ingestion
+    // manifest, so changing how chunks are made re-ingests every source.
+    // The pipeline already splits pages in parallel, so the splitter does not.
+    private static final FastTokenTextSplitter.Settings SPLITTER = FastTokenTextSplitter.Settings.defaults();
+    private static final String SPLITTER_SETTINGS = "token splitter " + SPLITTER;
+    private final TextSplitter splitter = new FastTokenTextSplitter(SPLITTER);
+
+    @Value("${rag.ingestion.read-parallelism:3}")
+    private int readParallelism;
+
+    @Value("${rag.ingestion.split-parallelism:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int splitParallelism;
+
+    @Value("${rag.ingestion.write-parallelism:4}")
+    private int writeParallelism;
+
+    @Value("${rag.ingestion.queue-capacity:256}")
+    private int queueCapacity;
+
+    @Value("${rag.ingestion.write-batch-size:64}")
+    private int writeBatchSize;
+
+    @Value("${rag.embedding.batch.initial-tokens:2000}")
+    private int initialBatchTokens;
+
+    @Value("${rag.embedding.batch.max-tokens:7000}")
+    private int maxBatchTokens;
+
+    @Value("${rag.embedding.batch.max-concurrency:4}")
+    private int maxConcurrentBatches;
+
+    @Value("${rag.ingestion.pdf.parallelism:2}")
+    private int pdfParallelism;
+
+    @Value("${rag.ingestion.pdf.window:16}")
+    private int pdfWindow;
 
     @Value("classpath:/pdfs/WEF_Future_of_Jobs_Report_2025.pdf")
     private Resource jobsReport2025;
 
     @Bean
     @Profile("rag")
-    ApplicationRunner loadVectorStore(VectorStore vectorStore) {
+    ApplicationRunner loadVectorStore(VectorStore vectorStore, ObjectProvider<SemanticResponseCache> responseCache,
+                                      ObjectProvider<LexicalIndex> lexicalIndex,
+                                      ObjectProvider<RedisBulkLoader> redisBulkLoader,
+                                      @Value("${rag.ingestion.manifest:data/vectorstore/ingestion-manifest.json}") Path manifestPath,
+                                      @Value("${spring.ai.openai.embedding.options.model:text-embedding-3-small}") String embeddingModel,
+                                      @Value("${rag.vectorstore.shards:1}") int shards,
+                                      @Value("${rag.vectorstore.partition-key:}") String partitionKey) {
         return args -> {
             System.out.println("Using vector store: " + vectorStore.getClass().getSimpleName());
 
-            // Check if we're using Redis and if data already exists
-            boolean isRedisStore = vectorStore.getClass().getSimpleName().toLowerCase().contains("redis");
-            boolean dataExists;
-
-            System.out.println("Using vector store class: " + vectorStore.getClass().getName());
-            System.out.println("Redis detection enabled: " + isRedisStore);
-
-            if (isRedisStore) {
-                // Sample query to check if data exists by looking for existing Spring Framework content
-                try {
-                    // Simple approach: search for something we know should be there
-                    System.out.println("Checking if data exists by searching for 'Spring Framework'...");
-                    var results = vectorStore.similaritySearch("Spring Framework");
-                    assert results != null;  // Make warning go away -- we know the result list is never null
-                    dataExists = !results.isEmpty();  // This is the actual check
-                    System.out.println("Search returned " + results.size() + " results");
-
-                    if (dataExists) {
-                        System.out.println("Data already exists in Redis vector store - skipping data loading");
-                        return;
-                    }
-                } catch (Exception e) {
-                    // If the search fails, it likely means the data doesn't exist yet
-                    System.out.println("No existing data found in Redis vector store");
+            List<IngestionSource> sources = List.of(
+                    new IngestionSource(FEUD_URL, Map.of("source", "drake_feud"),
+                            () -> new JsoupDocumentReader(FEUD_URL).get()),
+                    new IngestionSource(SPRING_URL, Map.of("source", "spring_framework"),
+                            () -> new JsoupDocumentReader(SPRING_URL).get()),
+                    new IngestionSource(jobsReport2025.getFilename(),
+                            Map.of("source", "wef_jobs_report", "type", "pdf"),
+                            () -> new StreamingPdfReader(jobsReport2025, pdfSettings()),
+                            () -> fingerprint(jobsReport2025)));
+
+            // Only sources that changed since the last run are split and embedded;
+            // the lexical index is kept in step with the vector store
+            // With Redis, chunks are written in large pipelines rather than through VectorStore.add
+            var bulkLoader = redisBulkLoader.getIfAvailable();
+            try (var batcher = new EmbeddingBatcher(bulkLoader != null ? bulkLoader : vectorStore,
+                    embeddingBatchSettings())) {
+                var index = lexicalIndex.getIfAvailable();
+                // A source whose chunks have left the store is loaded again
+                var storedChunks = bulkLoader != null
+                        ? (IncrementalIngestion.StoredChunks) bulkLoader::containsAll
+                        : IncrementalIngestion.StoredChunks.of(vectorStore);
+                var ingestion = new IncrementalIngestion(IngestionManifest.load(manifestPath), vectorStore,
+                        batcher, index, storedChunks, splitter, ingestionSettings(),
+                        SPLITTER_SETTINGS + "; embedding " + embeddingModel + layout(shards, partitionKey));
+                var result = ingestion.run(sources);
+
+                System.out.println("Unchanged sources: " + result.unchanged());
+                System.out.println("Ingested sources: " + result.ingested());
+                if (!result.removed().isEmpty()) {
+                    System.out.println("Removed sources: " + result.removed());
                 }
+                result.report().stages().forEach(stage -> System.out.println("  " + stage));
+                System.out.printf("Wrote %d chunks and deleted %d in %d ms%n",
+                        result.chunksWritten(), result.chunksDeleted(), result.report().elapsed().toMillis());
+                System.out.println("Embedding batches: " + batcher.stats());
+                if (bulkLoader != null) {
+                    System.out.println("Redis bulk load: " + bulkLoader.finish());
+                }
+                if (index != null) {
+                    System.out.println("Lexical index: " + index.size() + " chunks");
+                }
+
+                // Cached answers may quote the documents that were just replaced
+                responseCache.ifAvailable(cache -> {
+                    if (!result.removed().isEmpty()) {
+                        cache.clear();
+                    }
+                    cache.invalidate(sources.stream()
+                            .filter(source -> result.ingested().contains(source.name()))
+                            .map(source -> String.valueOf(source.metadata().get("source")))
+                            .toList());
+                });
+            } catch (Exception e) {
+                System.err.println("Error loading vector store: " + e.getMessage());
+                throw new RuntimeException(e);
             }
+        };
+    }
 
-            System.out.println("Loading data into vector store");
+    // Which shard holds a chunk depends on these, so changing them re-ingests
+    private static String layout(int shards, String partitionKey) {
+        if (shards <= 1) {
+            return "";
+        }
+        return "; " + shards + " shards by " + (partitionKey.isBlank() ? "id" : partitionKey);
+    }
 
-            // Process URLs
-            List.of(FEUD_URL, SPRING_URL).forEach(url -> {
-                // Fetch HTML content using Jsoup
-                List<Document> documents = new JsoupDocumentReader(url).get();
-                System.out.println("Fetched " + documents.size() + " documents from " + url);
+    private StreamingPdfReader.Settings pdfSettings() {
+        return StreamingPdfReader.Settings.defaults().parallel(pdfParallelism, pdfWindow);
+    }
 
-                // Add source metadata to help identify content later
-                documents.forEach(doc -> {
-                    String source = url.contains("Drake") ? "drake_feud" : "spring_framework";
-                    doc.getMetadata().put("source", source);
-                });
+    private static String fingerprint(Resource resource) {
+        try (var in = resource.getInputStream()) {
+            return IngestionManifest.sha256(in.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private IngestionPipeline.Settings ingestionSettings() {
+        return new IngestionPipeline.Settings(
+                readParallelism, splitParallelism, writeParallelism, queueCapacity, writeBatchSize);
+    }
+
+    private EmbeddingBatcher.Settings embeddingBatchSettings() {
+        var defaults = EmbeddingBatcher.Settings.defaults();
+        return new EmbeddingBatcher.Settings(initialBatchTokens, defaults.minBatchTokens(), maxBatchTokens,
+                defaults.growthStep(), defaults.latencyTolerance(), maxConcurrentBatches,
+                defaults.maxRetries(), defaults.initialBackoff());
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "rag.embedding.query-cache.enabled", havingValue = "true", matchIfMissing = true)
+    QueryEmbeddingCache queryEmbeddingCache(@Value("${rag.embedding.query-cache.max-size:16MB}") DataSize maxSize) {
+        return new QueryEmbeddingCache(maxSize.toBytes());
+    }
+
+    // Every unqualified EmbeddingModel injected below is this one: a repeated
+    // question is embedded once for the semantic cache and the similarity
+    // search together. Stores that embed documents take the OpenAI model, so
+    // small ingestion batches do not fill the question cache.
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "rag.embedding.query-cache.enabled", havingValue = "true", matchIfMissing = true)
+    EmbeddingModel queryCachingEmbeddingModel(@Qualifier("openAiEmbeddingModel") EmbeddingModel embeddingModel,
+                                              QueryEmbeddingCache queryEmbeddingCache) {
+        return new QueryCachingEmbeddingModel(embeddingModel, queryEmbeddingCache);
+    }
 
-                // Split the document into chunks
-                List<Document> chunks = splitter.apply(documents);
-                System.out.println("Split into " + chunks.size() + " chunks");
+    @Bean
+    @ConditionalOnProperty(name = "rag.cache.enabled", havingValue = "true", matchIfMissing = true)
+    SemanticResponseCache semanticResponseCache(
+            EmbeddingModel embeddingModel,
+            @Value("${rag.cache.similarity-threshold:0.95}") double similarityThreshold,
+            @Value("${rag.cache.ttl:1h}") Duration ttl,
+            @Value("${rag.cache.max-entries:1000}") int maxEntries) {
+        return new SemanticResponseCache(embeddingModel,
+                new SemanticResponseCache.Settings(similarityThreshold, ttl, maxEntries));
+    }
 
-                // Add the chunks to the vector store
-                vectorStore.add(chunks);
-            });
+    @Bean
+    @ConditionalOnProperty(name = "rag.lexical.enabled", havingValue = "true", matchIfMissing = true)
+    LexicalIndex lexicalIndex(@Value("${rag.lexical.path:data/vectorstore/lexical-index.bin}") Path path) {
+        return LexicalIndex.load(path);
+    }
 
-            try {
-                // Add PDF to the vector store
-                System.out.println("Processing PDF document (this may take a few minutes)...");
+    @Bean
+    @ConditionalOnProperty(name = "rag.rerank.enabled", havingValue = "true", matchIfMissing = true)
+    Reranker reranker(@Value("${rag.rerank.candidate-factor:3}") int candidateFactor,
+                      @Value("${rag.rerank.lexical-weight:0.3}") double lexicalWeight,
+                      @Value("${rag.rerank.diversity:0.7}") double diversity,
+                      @Value("${rag.rerank.source-boosts:}") String sourceBoosts) {
+        return new Reranker(new Reranker.Settings(candidateFactor, lexicalWeight, diversity,
+                Reranker.sourceBoosts(sourceBoosts)));
+    }
 
-                // Process a specific page range for better performance
-                var pdfReader = new PagePdfDocumentReader(jobsReport2025);
+    @Bean
+    @ConditionalOnProperty(name = "rag.context.enabled", havingValue = "true", matchIfMissing = true)
+    ContextBudget contextBudget(@Value("${rag.context.max-tokens:4000}") int maxTokens,
+                                @Value("${rag.context.max-history-tokens:1000}") int maxHistoryTokens,
+                                @Value("${rag.context.duplicate-similarity:0.8}") double duplicateSimilarity) {
+        return new ContextBudget(new ContextBudget.Settings(maxTokens, maxHistoryTokens, duplicateSimilarity));
+    }
 
-                List<Document> pdfDocuments = pdfReader.get();
-                System.out.printf("Fetched %d documents from %s%n", pdfDocuments.size(), jobsReport2025.getFilename());
+    // RAGService's chat model: OpenAI and Anthropic behind a router, or OpenAI alone
+    @Bean
+    @ConditionalOnProperty(name = "rag.chat.routing.enabled", havingValue = "true", matchIfMissing = true)
+    RoutingChatModel ragChatModel(@Qualifier("openAiChatModel") ChatModel openAiChatModel,
+                                  @Qualifier("anthropicChatModel") ChatModel anthropicChatModel,
+                                  @Value("${rag.chat.routing.max-error-rate:0.5}") double maxErrorRate,
+                                  @Value("${rag.chat.routing.min-hedge-delay:200ms}") Duration minHedgeDelay,
+                                  @Value("${rag.chat.routing.hedge-budget:0.1}") double hedgeBudget) {
+        Map<String, ChatModel> models = new LinkedHashMap<>();
+        models.put("openai", openAiChatModel);
+        models.put("anthropic", anthropicChatModel);
+        var defaults = RoutingChatModel.Settings.defaults();
+        return new RoutingChatModel(models, new RoutingChatModel.Settings(defaults.window(), defaults.minSamples(),
+                defaults.errorDecay(), maxErrorRate, defaults.exploreEvery(), defaults.hedgePercentile(),
+                minHedgeDelay, hedgeBudget));
+    }
 
-                // Add source metadata to help identify PDF content
-                pdfDocuments.forEach(doc -> {
-                    doc.getMetadata().put("source", "wef_jobs_report");
-                    doc.getMetadata().put("type", "pdf");
-                });
+    @Bean("ragChatModel")
+    @ConditionalOnProperty(name = "rag.chat.routing.enabled", havingValue = "false")
+    ChatModel openAiRagChatModel(@Qualifier("openAiChatModel") ChatModel openAiChatModel) {
+        return openAiChatModel;
+    }
 
-                List<Document> pdfChunks = splitter.apply(pdfDocuments);
-                System.out.println("Split into " + pdfChunks.size() + " chunks");
+    @Bean
+    RequestLimiter requestLimiter(@Value("${rag.http.max-in-flight:2000}") int maxInFlight,
+                                  @Value("${rag.http.timeout:60s}") Duration timeout) {
+        return new RequestLimiter(new RequestLimiter.Settings(maxInFlight, timeout));
+    }
 
-                vectorStore.add(pdfChunks);
-                System.out.println("PDF processing complete!");
-            } catch (Exception e) {
-                System.err.println("Error processing PDF: " + e.getMessage());
-                throw new RuntimeException(e);
-            }
-        };
+    @Bean
+    ChatMemoryRepository chatMemoryRepository(
+            @Value("${rag.memory.max-conversations:10000}") int maxConversations,
+            @Value("${rag.memory.max-total-messages:200000}") int maxTotalMessages,
+            @Value("${rag.memory.idle-ttl:30m}") Duration idleTtl) {
+        return new BoundedChatMemoryRepository(
+                new BoundedChatMemoryRepository.Settings(maxConversations, maxTotalMessages, idleTtl));
+    }
+
+    @Bean
+    ChatMemory chatMemory(ChatMemoryRepository chatMemoryRepository,
+                          @Value("${rag.memory.window:20}") int window) {
+        // Keeps the most recent messages of each conversation
+        return MessageWindowChatMemory.builder()
+                .chatMemoryRepository(chatMemoryRepository)
+                .maxMessages(window)
+                .build();
     }
 
     @Bean
     @Profile("!redis")
-    VectorStore simpleVectorStore(EmbeddingModel embeddingModel) {
-        return SimpleVectorStore.builder(embeddingModel).build();
+    EmbeddingCache embeddingCache(@Value("${rag.embedding.cache.path:data/embedding-cache.bin}") Path path,
+                                  @Value("${rag.embedding.cache.max-entries:100000}") int maxEntries) {
+        return new EmbeddingCache(path, maxEntries);
+    }
+
+    @Bean
+    @Profile("!redis")
+    VectorStore localVectorStore(@Qualifier("openAiEmbeddingModel") EmbeddingModel documentEmbeddingModel,
+                                 EmbeddingModel embeddingModel, EmbeddingCache embeddingCache,
+                                 @Value("${spring.ai.openai.embedding.options.model:text-embedding-3-small}") String model,
+                                 @Value("${rag.vectorstore.path:data/vectorstore}") Path path,
+                                 @Value("${rag.vectorstore.hnsw.enabled:true}") boolean hnswEnabled,
+                                 @Value("${rag.vectorstore.hnsw.m:16}") int m,
+                                 @Value("${rag.vectorstore.hnsw.ef-construction:200}") int efConstruction,
+                                 @Value("${rag.vectorstore.hnsw.ef-search:64}") int efSearch,
+                                 @Value("${rag.vectorstore.kernel:auto}") String kernel,
+                                 @Value("${rag.vectorstore.quantization:none}") String quantization,
+                                 @Value("${rag.vectorstore.rerank-factor:8}") int rerankFactor,
+                                 @Value("${rag.vectorstore.shards:1}") int shards,
+                                 @Value("${rag.vectorstore.shard-parallelism:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}") int shardParallelism,
+                                 @Value("${rag.vectorstore.partition-key:}") String partitionKey) {
+        // Unchanged chunks are served from the on-disk cache instead of being
+        // re-embedded. Questions skip it: they would grow it with every new one.
+        var cachingModel = new CachingEmbeddingModel(documentEmbeddingModel, model, embeddingCache);
+        Consumer<MappedVectorStore.Builder> options = store -> store
+                .kernel(SimilarityKernel.named(kernel))
+                .quantization(quantization, rerankFactor)
+                .hnsw(hnswEnabled ? new HnswIndex.Settings(m, efConstruction, efSearch) : null);
+        if (shards > 1) {
+            return ShardedVectorStore.builder(cachingModel)
+                    .queryEmbeddingModel(embeddingModel)
+                    .directory(path)
+                    .shards(shards)
+                    .parallelism(shardParallelism)
+                    .partitionKey(partitionKey.isBlank() ? null : partitionKey)
+                    .shardOptions(options)
+                    .build();
+        }
+        var builder = MappedVectorStore.builder(cachingModel).queryEmbeddingModel(embeddingModel).directory(path);
+        options.accept(builder);
+        return builder.build();
+    }
+
+    // Replaces the auto-configured Redis store so that the search index is not
+    // created at startup: RedisBulkLoader creates it after the first bulk load
+    @Bean
+    @Profile("redis")
+    RedisVectorStore redisVectorStore(@Qualifier("openAiEmbeddingModel") EmbeddingModel embeddingModel,
+                                      JedisConnectionFactory connectionFactory,
+                                      ObjectProvider<ObservationRegistry> observationRegistry,
+                                      @Value("${spring.ai.vectorstore.redis.index-name:default-index}") String indexName,
+                                      @Value("${spring.ai.vectorstore.redis.prefix:default:}") String prefix) {
+        var clientConfig = DefaultJedisClientConfig.builder()
+                .ssl(connectionFactory.isUseSsl())
+                .clientName(connectionFactory.getClientName())
+                .timeoutMillis(connectionFactory.getTimeout())
+                .password(connectionFactory.getPassword())
+                .build();
+        var jedis = new JedisPooled(new HostAndPort(connectionFactory.getHostName(), connectionFactory.getPort()),
+                clientConfig);
+        return RedisVectorStore.builder(jedis, embeddingModel)
+                .observationRegistry(observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP))
+                .indexName(indexName)
+                .prefix(prefix)
+                .initializeSchema(false)
+                .build();
+    }
+
+    @Bean
+    @Profile("redis")
+    RedisBulkLoader redisBulkLoader(RedisVectorStore vectorStore,
+                                    @Qualifier("openAiEmbeddingModel") EmbeddingModel embeddingModel,
+                                    @Value("${spring.ai.vectorstore.redis.initialize-schema:false}") boolean initializeSchema,
+                                    @Value("${spring.ai.vectorstore.redis.index-name:default-index}") String indexName,
+                                    @Value("${spring.ai.vectorstore.redis.prefix:default:}") String prefix,
+                                    @Value("${rag.redis.bulk.pipeline-size:256}") int pipelineSize) {
+        var client = RedisBulkLoader.jedis(vectorStore.getJedis(), embeddingModel, indexName, prefix);
+        return new RedisBulkLoader(client, embeddingModel, prefix,
+                new RedisBulkLoader.Settings(pipelineSize, initializeSchema));
     }
-}
\ No newline at end of file
+}
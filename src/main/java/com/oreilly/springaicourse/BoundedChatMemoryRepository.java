@@ -0,0 +1,120 @@
+package com.oreilly.springaicourse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.ai.chat.memory.ChatMemoryRepository;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.util.Assert;
+
+// In-memory chat history with bounded total size. Conversations are kept in
+// least-recently-used order; a conversation idle for longer than the TTL is
+// dropped, and the least recently used ones are dropped whenever the number
+// of conversations or the total number of retained messages exceeds its cap.
+// The per-conversation window is MessageWindowChatMemory's job.
+class BoundedChatMemoryRepository implements ChatMemoryRepository {
+
+    record Settings(int maxConversations, int maxTotalMessages, Duration idleTtl) {
+        static Settings defaults() {
+            return new Settings(10_000, 200_000, Duration.ofMinutes(30));
+        }
+    }
+
+    record Stats(int conversations, int messages, long expired, long evicted) {}
+
+    private record Conversation(List<Message> messages, long lastAccess) {}
+
+    private final Settings settings;
+    private final Clock clock;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(256, 0.75f, true);
+    private int totalMessages;
+    private long expired;
+    private long evicted;
+
+    BoundedChatMemoryRepository(Settings settings, Clock clock) {
+        this.settings = settings;
+        this.clock = clock;
+    }
+
+    BoundedChatMemoryRepository(Settings settings) {
+        this(settings, Clock.systemUTC());
+    }
+
+    @Override
+    public synchronized List<String> findConversationIds() {
+        expireIdle();
+        return new ArrayList<>(conversations.keySet());
+    }
+
+    @Override
+    public synchronized List<Message> findByConversationId(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        expireIdle();
+        Conversation conversation = conversations.get(conversationId);
+        if (conversation == null) {
+            return List.of();
+        }
+        conversations.put(conversationId, new Conversation(conversation.messages(), clock.millis()));
+        return new ArrayList<>(conversation.messages());
+    }
+
+    @Override
+    public synchronized void saveAll(String conversationId, List<Message> messages) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Assert.notNull(messages, "messages cannot be null");
+        Assert.noNullElements(messages, "messages cannot contain null elements");
+        Conversation previous = conversations.put(conversationId, new Conversation(List.copyOf(messages), clock.millis()));
+        totalMessages += messages.size() - (previous != null ? previous.messages().size() : 0);
+        expireIdle();
+        evictOverCapacity(conversationId);
+    }
+
+    @Override
+    public synchronized void deleteByConversationId(String conversationId) {
+        Assert.hasText(conversationId, "conversationId cannot be null or empty");
+        Conversation removed = conversations.remove(conversationId);
+        if (removed != null) {
+            totalMessages -= removed.messages().size();
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(conversations.size(), totalMessages, expired, evicted);
+    }
+
+    // Idle entries sit at the LRU end, so stop at the first one still in use
+    private void expireIdle() {
+        long cutoff = clock.millis() - settings.idleTtl().toMillis();
+        Iterator<Conversation> iterator = conversations.values().iterator();
+        while (iterator.hasNext()) {
+            Conversation conversation = iterator.next();
+            if (conversation.lastAccess() > cutoff) {
+                break;
+            }
+            iterator.remove();
+            totalMessages -= conversation.messages().size();
+            expired++;
+        }
+    }
+
+    // Never evicts the conversation that was just written
+    private void evictOverCapacity(String current) {
+        Iterator<Map.Entry<String, Conversation>> iterator = conversations.entrySet().iterator();
+        while ((conversations.size() > settings.maxConversations() || totalMessages > settings.maxTotalMessages())
+                && iterator.hasNext()) {
+            Map.Entry<String, Conversation> eldest = iterator.next();
+            if (eldest.getKey().equals(current)) {
+                continue;
+            }
+            iterator.remove();
+            totalMessages -= eldest.getValue().messages().size();
+            evicted++;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+// EmbeddingModel decorator that only sends texts missing from the
+// EmbeddingCache to the underlying model.
+class CachingEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final String model;
+    private final EmbeddingCache cache;
+
+    CachingEmbeddingModel(EmbeddingModel delegate, String model, EmbeddingCache cache) {
+        this.delegate = delegate;
+        this.model = model;
+        this.cache = cache;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        // A model set on the request overrides the configured one; a
+        // dimension count set on it gives vectors of another length
+        String modelName = request.getOptions() != null && request.getOptions().getModel() != null
+                ? request.getOptions().getModel() : model;
+        Integer dimensions = request.getOptions() != null ? request.getOptions().getDimensions() : null;
+
+        List<String> texts = request.getInstructions();
+        float[][] vectors = new float[texts.size()][];
+        EmbeddingCache.Key[] keys = new EmbeddingCache.Key[texts.size()];
+        List<String> missing = new ArrayList<>();
+        List<Integer> missingIndexes = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            keys[i] = EmbeddingCache.key(modelName, dimensions, texts.get(i));
+            vectors[i] = cache.get(keys[i]);
+            if (vectors[i] == null) {
+                missing.add(texts.get(i));
+                missingIndexes.add(i);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            EmbeddingResponse response = delegate.call(new EmbeddingRequest(missing, request.getOptions()));
+            Map<EmbeddingCache.Key, float[]> computed = new HashMap<>();
+            List<Embedding> results = response.getResults();
+            for (int i = 0; i < results.size(); i++) {
+                Integer resultIndex = results.get(i).getIndex();
+                int index = missingIndexes.get(resultIndex != null ? resultIndex : i);
+                vectors[index] = results.get(i).getOutput();
+                computed.put(keys[index], vectors[index]);
+            }
+            cache.putAll(computed);
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            embeddings.add(new Embedding(vectors[i], i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+}
@@ -0,0 +1,205 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+// Fits retrieved documents and conversation history into one token budget,
+// so prompt size stops growing with top-k and conversation length. The
+// question, the system messages and the context template are always sent.
+// Documents go in by relevance, skipping near-duplicates and any that no
+// longer fit. History is kept newest first, up to maxHistoryTokens plus
+// whatever the documents leave unused, so the oldest messages go first.
+class ContextBudget {
+    private static final Logger log = LoggerFactory.getLogger(ContextBudget.class);
+
+    // Chat formats wrap each message in a few tokens of role markup
+    static final int TOKENS_PER_MESSAGE = 4;
+    private static final int SHINGLE_WORDS = 3;
+
+    record Settings(int maxTokens, int maxHistoryTokens, double duplicateSimilarity) {
+        Settings {
+            if (maxTokens < 1 || maxHistoryTokens < 0 || maxHistoryTokens > maxTokens) {
+                throw new IllegalArgumentException("Invalid token budget: " + maxTokens + ", history " + maxHistoryTokens);
+            }
+            if (duplicateSimilarity <= 0 || duplicateSimilarity > 1) {
+                throw new IllegalArgumentException("Invalid duplicate similarity: " + duplicateSimilarity);
+            }
+        }
+
+        static Settings defaults() {
+            return new Settings(4000, 1000, 0.8);
+        }
+    }
+
+    // The prompt's messages and documents after trimming, with their token estimate
+    record Assembly(List<Message> messages, List<Document> documents, int tokens,
+                    int droppedDocuments, int droppedMessages) {}
+
+    private final Settings settings;
+    private final TokenCountEstimator estimator;
+
+    ContextBudget(Settings settings, TokenCountEstimator estimator) {
+        this.settings = settings;
+        this.estimator = estimator;
+    }
+
+    ContextBudget(Settings settings) {
+        this(settings, new JTokkitTokenCountEstimator());
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    // messages ends with the question as a user message; questionPrompt is
+    // that message as it will be sent, with the context template but no documents
+    Assembly assemble(List<Message> messages, List<Document> documents, String questionPrompt) {
+        int question = lastUserMessage(messages);
+        int fixed = estimator.estimate(questionPrompt) + TOKENS_PER_MESSAGE;
+        List<Integer> history = new ArrayList<>();
+        List<Integer> historyTokens = new ArrayList<>();
+        int wantedHistory = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (i == question) {
+                continue;
+            }
+            int tokens = estimate(messages.get(i));
+            if (i > question || messages.get(i).getMessageType() == MessageType.SYSTEM) {
+                fixed += tokens;
+            } else {
+                history.add(i);
+                historyTokens.add(tokens);
+                wantedHistory += tokens;
+            }
+        }
+
+        // Documents first, leaving history its share
+        int documentBudget = settings.maxTokens() - fixed - Math.min(wantedHistory, settings.maxHistoryTokens());
+        List<Document> selected = new ArrayList<>();
+        List<Set<Long>> selectedShingles = new ArrayList<>();
+        int documentTokens = 0;
+        for (Document document : byRelevance(documents)) {
+            Set<Long> shingles = shingles(document.getText());
+            if (isDuplicate(shingles, selectedShingles)) {
+                continue;
+            }
+            // Documents are joined with a line separator
+            int tokens = estimator.estimate(document.getText()) + 1;
+            if (documentTokens + tokens > documentBudget) {
+                continue;
+            }
+            selected.add(document);
+            selectedShingles.add(shingles);
+            documentTokens += tokens;
+        }
+
+        // Then the newest history that fits in what is left
+        int historyBudget = settings.maxTokens() - fixed - documentTokens;
+        int keepFrom = history.size();
+        int keptTokens = 0;
+        while (keepFrom > 0 && keptTokens + historyTokens.get(keepFrom - 1) <= historyBudget) {
+            keepFrom--;
+            keptTokens += historyTokens.get(keepFrom);
+        }
+        // A conversation should not open with half an exchange
+        while (keepFrom < history.size()
+                && messages.get(history.get(keepFrom)).getMessageType() != MessageType.USER) {
+            keptTokens -= historyTokens.get(keepFrom);
+            keepFrom++;
+        }
+        Set<Integer> dropped = new HashSet<>(history.subList(0, keepFrom));
+        List<Message> kept = new ArrayList<>(messages.size() - dropped.size());
+        for (int i = 0; i < messages.size(); i++) {
+            if (!dropped.contains(i)) {
+                kept.add(messages.get(i));
+            }
+        }
+
+        var assembly = new Assembly(kept, selected, fixed + documentTokens + keptTokens,
+                documents.size() - selected.size(), dropped.size());
+        if (assembly.droppedDocuments() > 0 || assembly.droppedMessages() > 0) {
+            log.debug("Prompt trimmed to {} tokens: dropped {} documents and {} history messages",
+                    assembly.tokens(), assembly.droppedDocuments(), assembly.droppedMessages());
+        }
+        return assembly;
+    }
+
+    private int estimate(Message message) {
+        int tokens = estimator.estimate(message.getText()) + TOKENS_PER_MESSAGE;
+        if (message instanceof AssistantMessage assistant && assistant.hasToolCalls()) {
+            for (var call : assistant.getToolCalls()) {
+                tokens += estimator.estimate(call.name()) + estimator.estimate(call.arguments());
+            }
+        }
+        return tokens;
+    }
+
+    private static int lastUserMessage(List<Message> messages) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (messages.get(i).getMessageType() == MessageType.USER) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No user message in the prompt");
+    }
+
+    // Stores return the closest documents first, but fusion or a caller's
+    // list may not be sorted. Without scores, retrieval order is kept.
+    private static List<Document> byRelevance(List<Document> documents) {
+        if (documents.stream().map(Document::getScore).anyMatch(Objects::isNull)) {
+            return documents;
+        }
+        return documents.stream()
+                .sorted(Comparator.comparing(Document::getScore).reversed())
+                .toList();
+    }
+
+    // Overlapping chunks share most of their word shingles; a chunk that
+    // another contains shares all of its own
+    private boolean isDuplicate(Set<Long> shingles, List<Set<Long>> selected) {
+        for (Set<Long> other : selected) {
+            int shared = 0;
+            for (Long shingle : shingles) {
+                if (other.contains(shingle)) {
+                    shared++;
+                }
+            }
+            int smaller = Math.min(shingles.size(), other.size());
+            if (smaller > 0 && shared >= settings.duplicateSimilarity() * smaller) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Set<Long> shingles(String text) {
+        String[] words = text.toLowerCase(Locale.ROOT).split("\\W+");
+        Set<Long> shingles = new HashSet<>();
+        for (int i = 0; i + SHINGLE_WORDS <= words.length; i++) {
+            long hash = 1;
+            for (int j = i; j < i + SHINGLE_WORDS; j++) {
+                hash = hash * 1_000_003 + words[j].hashCode();
+            }
+            shingles.add(hash);
+        }
+        // Texts shorter than a shingle are compared whole
+        if (shingles.isEmpty() && !text.isBlank()) {
+            shingles.add((long) String.join(" ", words).hashCode());
+        }
+        return shingles;
+    }
+}
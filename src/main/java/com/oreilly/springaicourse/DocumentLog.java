@@ -0,0 +1,224 @@
+package com.oreilly.springaicourse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Append-only log of document text and metadata for the mapped vector store.
+// Each record is [payload length][CRC32][payload]; a torn record at the end
+// of the file (from a crash mid-write) is truncated when the log is replayed.
+class DocumentLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DocumentLog.class);
+
+    private static final int MAGIC = 0x444F4331; // "DOC1"
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final byte ADDED = 1;
+    private static final byte DELETED = 2;
+
+    sealed interface Entry permits Added, Deleted {}
+
+    record Added(int slot, String id, long textOffset, int textLength, byte[] metadata) implements Entry {}
+
+    record Deleted(String id) implements Entry {}
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long end;
+
+    DocumentLog(Path file) {
+        this.file = file;
+        try {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).flip(), 0);
+            }
+            this.end = channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open document log " + file, e);
+        }
+    }
+
+    void replay(Consumer<Entry> consumer) {
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(magic, 0);
+            if (magic.flip().getInt() != MAGIC) {
+                throw new IllegalStateException("Not a document log: " + file);
+            }
+
+            long position = Integer.BYTES;
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            while (position + RECORD_HEADER_BYTES <= size) {
+                header.clear();
+                readFully(header, position);
+                int length = header.getInt(0);
+                int crc = header.getInt(4);
+                if (length <= 0 || position + RECORD_HEADER_BYTES + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                long payloadOffset = position + RECORD_HEADER_BYTES;
+                readFully(payload, payloadOffset);
+                if (crc(payload.array()) != crc) {
+                    break;
+                }
+                consumer.accept(decode(payload.flip(), payloadOffset));
+                position = payloadOffset + length;
+            }
+
+            if (position < size) {
+                logger.warn("Truncating {} bytes of incomplete data from {}", size - position, file);
+                channel.truncate(position);
+            }
+            end = position;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read document log " + file, e);
+        }
+    }
+
+    // Buffers an added document and returns the file offset its text will have
+    synchronized long add(int slot, String id, byte[] text, byte[] metadata) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(text.length + metadata.length + 64);
+        try (var out = new DataOutputStream(payload)) {
+            out.writeByte(ADDED);
+            out.writeInt(slot);
+            writeId(out, id);
+            out.writeInt(text.length);
+            int textStart = out.size();
+            out.write(text);
+            out.writeInt(metadata.length);
+            out.write(metadata);
+            long textOffset = end + pending.size() + RECORD_HEADER_BYTES + textStart;
+            writeRecord(payload.toByteArray());
+            return textOffset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void delete(String id) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        try (var out = new DataOutputStream(payload)) {
+            out.writeByte(DELETED);
+            writeId(out, id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writeRecord(payload.toByteArray());
+    }
+
+    // Writes all buffered records with a single append
+    synchronized void flush() {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        try {
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to document log " + file, e);
+        } finally {
+            pending.reset();
+        }
+    }
+
+    String readText(long offset, int length) {
+        return new String(read(offset, length), StandardCharsets.UTF_8);
+    }
+
+    byte[] read(long offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            readFully(buffer, offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read document log " + file, e);
+        }
+        return buffer.array();
+    }
+
+    void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeRecord(byte[] payload) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES).putInt(payload.length).putInt(crc(payload));
+        pending.writeBytes(header.array());
+        pending.writeBytes(payload);
+    }
+
+    private static Entry decode(ByteBuffer payload, long payloadOffset) {
+        byte type = payload.get();
+        if (type == DELETED) {
+            return new Deleted(readId(payload));
+        }
+        int slot = payload.getInt();
+        String id = readId(payload);
+        int textLength = payload.getInt();
+        long textOffset = payloadOffset + payload.position();
+        payload.position(payload.position() + textLength);
+        byte[] metadata = new byte[payload.getInt()];
+        payload.get(metadata);
+        return new Added(slot, id, textOffset, textLength, metadata);
+    }
+
+    // An id is its UTF-8 bytes after an unsigned 16-bit length. That is the
+    // layout writeUTF gives ASCII ids, so older logs read the same, but ids
+    // with NUL or supplementary characters keep their standard encoding.
+    private static void writeId(DataOutputStream out, String id) throws IOException {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Document id longer than 65535 bytes: " + id.substring(0, 64) + "...");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readId(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+}
@@ -0,0 +1,227 @@
+package com.oreilly.springaicourse;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+
+// Groups documents into token-bounded batches in front of a DocumentWriter
+// (normally VectorStore.add, which embeds each batch) and sends them
+// concurrently. The batch size grows while latency stays flat, shrinks when
+// latency spikes, and is halved with exponential backoff on rate limits.
+class EmbeddingBatcher implements DocumentWriter, Flushable, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingBatcher.class);
+
+    record Settings(int initialBatchTokens, int minBatchTokens, int maxBatchTokens, int growthStep,
+                    double latencyTolerance, int maxConcurrency, int maxRetries, Duration initialBackoff) {
+
+        // maxBatchTokens stays under the 8191-token request limit that
+        // TokenCountBatchingStrategy enforces inside the vector stores
+        static Settings defaults() {
+            return new Settings(2000, 250, 7000, 500, 0.25, 4, 6, Duration.ofSeconds(1));
+        }
+    }
+
+    record Stats(int batchTokens, long batches, long documents, long rateLimited, long retries) {}
+
+    private final DocumentWriter delegate;
+    private final Settings settings;
+    private final Predicate<Throwable> rateLimited;
+    private final TokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+    private final Semaphore permits;
+    private final ExecutorService executor;
+
+    private final AtomicInteger batchTokens;
+    // Smoothed latency of full batches, in nanoseconds; guarded by this
+    private double smoothedLatency = Double.NaN;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder rateLimits = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    EmbeddingBatcher(DocumentWriter delegate, Settings settings) {
+        this(delegate, settings, EmbeddingBatcher::isRateLimit);
+    }
+
+    EmbeddingBatcher(DocumentWriter delegate, Settings settings, Predicate<Throwable> rateLimited) {
+        this.delegate = delegate;
+        this.settings = settings;
+        this.rateLimited = rateLimited;
+        this.permits = new Semaphore(settings.maxConcurrency());
+        this.batchTokens = new AtomicInteger(settings.initialBatchTokens());
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "embedding-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // OpenAI reports rate limits as HTTP 429, which Spring AI surfaces as a
+    // NonTransientAiException whose message starts with the status code.
+    // TransientAiException also covers 5xx responses and timeouts, which the
+    // model's own retries handle; those are not a reason to shrink batches.
+    static boolean isRateLimit(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null) {
+                String lower = message.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("429") || lower.contains("rate limit")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void accept(List<Document> docs) {
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (List<Document> batch : pack(docs, batchTokens.get())) {
+                // Blocks the caller once maxConcurrency batches are in flight
+                permits.acquire();
+                try {
+                    pending.add(executor.submit(() -> {
+                        try {
+                            send(batch);
+                        } finally {
+                            permits.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            pending.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing embeddings", e);
+        } catch (ExecutionException e) {
+            pending.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    List<List<Document>> pack(List<Document> docs, int budget) {
+        List<List<Document>> result = new ArrayList<>();
+        List<Document> current = new ArrayList<>();
+        int currentTokens = 0;
+        for (Document doc : docs) {
+            int tokens = estimator.estimate(doc.getText());
+            if (!current.isEmpty() && currentTokens + tokens > budget) {
+                result.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(doc);
+            currentTokens += tokens;
+        }
+        if (!current.isEmpty()) {
+            result.add(current);
+        }
+        return result;
+    }
+
+    private void send(List<Document> batch) {
+        int tokens = batch.stream().mapToInt(doc -> estimator.estimate(doc.getText())).sum();
+        for (int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            try {
+                delegate.accept(batch);
+                batches.increment();
+                documents.add(batch.size());
+                onSuccess(tokens, System.nanoTime() - start);
+                return;
+            } catch (RuntimeException e) {
+                if (!rateLimited.test(e) || attempt >= settings.maxRetries()) {
+                    throw e;
+                }
+                onRateLimited();
+                retries.increment();
+                sleep(backoff(attempt));
+            }
+        }
+    }
+
+    private synchronized void onSuccess(int tokens, long latency) {
+        int budget = batchTokens.get();
+        // Partial batches (the tail of a source) say little about the current size
+        if (tokens < budget / 2) {
+            return;
+        }
+        if (Double.isNaN(smoothedLatency)) {
+            smoothedLatency = latency;
+        } else if (latency <= smoothedLatency * (1 + settings.latencyTolerance())) {
+            batchTokens.set(Math.min(settings.maxBatchTokens(), budget + settings.growthStep()));
+        } else if (latency > smoothedLatency * 2) {
+            batchTokens.set(Math.max(settings.minBatchTokens(), budget * 3 / 4));
+        }
+        smoothedLatency = 0.8 * smoothedLatency + 0.2 * latency;
+    }
+
+    private synchronized void onRateLimited() {
+        rateLimits.increment();
+        int budget = batchTokens.get();
+        batchTokens.set(Math.max(settings.minBatchTokens(), budget / 2));
+        logger.warn("Embedding rate limit hit, batch size {} -> {} tokens", budget, batchTokens.get());
+    }
+
+    private Duration backoff(int attempt) {
+        long base = settings.initialBackoff().toMillis() << Math.min(attempt, 6);
+        return Duration.ofMillis(base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1));
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during rate limit backoff", e);
+        }
+    }
+
+    Stats stats() {
+        return new Stats(batchTokens.get(), batches.sum(), documents.sum(), rateLimits.sum(), retries.sum());
+    }
+
+    // Every batch has reached the delegate once accept returns; a buffering
+    // delegate such as RedisBulkLoader is flushed too
+    @Override
+    public void flush() throws IOException {
+        if (delegate instanceof Flushable flushable) {
+            flushable.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
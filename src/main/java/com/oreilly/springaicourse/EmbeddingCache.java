@@ -0,0 +1,255 @@
+package com.oreilly.springaicourse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Content-addressed embedding cache persisted to a single append-only file.
+// Each record is a SHA-256 key (of model name, dimensions and text), the
+// vector length and the float32 components, all little-endian. Only the keys
+// and their file offsets are kept in the heap, in least-recently-used order;
+// vectors are read back from the file on a hit. Past maxEntries the file is
+// rewritten with the most recently used three quarters of the entries.
+class EmbeddingCache implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingCache.class);
+
+    private static final int MAGIC = 0x454D4243; // "EMBC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int KEY_BYTES = 32;
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    // The four longs of a SHA-256 digest; compact and cheap to compare
+    record Key(long a, long b, long c, long d) {}
+
+    record Stats(int entries, long hits, long misses, long evictions) {}
+
+    private final Path file;
+    private final int maxEntries;
+    private FileChannel channel;
+    // Offset of each record's vector length, eldest use first; guarded by this
+    private final LinkedHashMap<Key, Long> offsets = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    EmbeddingCache(Path file, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid embedding cache size: " + maxEntries);
+        }
+        this.file = file;
+        this.maxEntries = maxEntries;
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.channel = open(file);
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open embedding cache " + file, e);
+        }
+    }
+
+    EmbeddingCache(Path file) {
+        this(file, DEFAULT_MAX_ENTRIES);
+    }
+
+    // Dimensions are hashed only when a request sets them, so keys of
+    // requests at the model's default size are unchanged
+    static Key key(String model, Integer dimensions, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            if (dimensions != null) {
+                digest.update((byte) 1);
+                digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(dimensions).array());
+            }
+            digest.update((byte) 0);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+            return new Key(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads under the lock too: compaction replaces the file and its offsets
+    synchronized float[] get(Key key) {
+        Long offset = offsets.get(key);
+        if (offset == null) {
+            misses.increment();
+            return null;
+        }
+        try {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(length, offset);
+            ByteBuffer data = ByteBuffer.allocate(length.getInt(0) * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(data, offset + Integer.BYTES);
+            float[] embedding = new float[length.getInt(0)];
+            data.flip().asFloatBuffer().get(embedding);
+            hits.increment();
+            return embedding;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read embedding cache " + file, e);
+        }
+    }
+
+    // Appends all new entries in a single write
+    synchronized void putAll(Map<Key, float[]> embeddings) {
+        int bytes = 0;
+        for (var entry : embeddings.entrySet()) {
+            if (!offsets.containsKey(entry.getKey())) {
+                bytes += recordBytes(entry.getValue().length);
+            }
+        }
+        if (bytes == 0) {
+            return;
+        }
+        try {
+            long position = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (var entry : embeddings.entrySet()) {
+                Key key = entry.getKey();
+                float[] embedding = entry.getValue();
+                if (offsets.putIfAbsent(key, position + buffer.position() + KEY_BYTES) != null) {
+                    continue;
+                }
+                buffer.putLong(key.a()).putLong(key.b()).putLong(key.c()).putLong(key.d());
+                buffer.putInt(embedding.length);
+                buffer.asFloatBuffer().put(embedding);
+                buffer.position(buffer.position() + embedding.length * Float.BYTES);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            if (offsets.size() > maxEntries) {
+                compact(maxEntries - maxEntries / 4);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to embedding cache " + file, e);
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(offsets.size(), hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    private static int recordBytes(int dimensions) {
+        return KEY_BYTES + Integer.BYTES + dimensions * Float.BYTES;
+    }
+
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // Reads only the record headers, skipping over the vectors
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            writeHeader(channel);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (size < HEADER_BYTES || channel.read(header, 0) < HEADER_BYTES
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IllegalStateException("Not an embedding cache file: " + file);
+        }
+
+        long position = HEADER_BYTES;
+        ByteBuffer record = ByteBuffer.allocate(KEY_BYTES + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + record.capacity() <= size) {
+            record.clear();
+            readFully(record, position);
+            int dimensions = record.getInt(KEY_BYTES);
+            if (dimensions < 0 || position + recordBytes(dimensions) > size) {
+                break;
+            }
+            offsets.put(new Key(record.getLong(0), record.getLong(8), record.getLong(16), record.getLong(24)),
+                    position + KEY_BYTES);
+            position += recordBytes(dimensions);
+        }
+
+        // Drop a partially written record left behind by a crash
+        if (position < size) {
+            logger.warn("Truncating {} bytes of incomplete data from {}", size - position, file);
+            channel.truncate(position);
+        }
+        if (offsets.size() > maxEntries) {
+            compact(maxEntries);
+        }
+        logger.info("Loaded {} cached embeddings from {}", offsets.size(), file);
+    }
+
+    // Rewrites the file with the most recently used entries, copying each
+    // record as it is, and moves it into place
+    private void compact(int keep) throws IOException {
+        List<Map.Entry<Key, Long>> kept = new ArrayList<>(offsets.entrySet());
+        kept = kept.subList(Math.max(0, kept.size() - keep), kept.size());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<Key, Long> moved = new LinkedHashMap<>();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(out);
+            long position = HEADER_BYTES;
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (var entry : kept) {
+                long start = entry.getValue() - KEY_BYTES;
+                length.clear();
+                readFully(length, entry.getValue());
+                long bytes = recordBytes(length.getInt(0));
+                for (long copied = 0; copied < bytes; ) {
+                    copied += channel.transferTo(start + copied, bytes - copied, out.position(position + copied));
+                }
+                moved.put(entry.getKey(), position + KEY_BYTES);
+                position += bytes;
+            }
+            out.force(false);
+        }
+        channel.close();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open(file);
+        evictions.add(offsets.size() - moved.size());
+        logger.info("Compacted {} to its {} most recently used embeddings", file, moved.size());
+        offsets.clear();
+        offsets.putAll(moved);
+    }
+
+    private static void writeHeader(FileChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        target.write(header, 0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
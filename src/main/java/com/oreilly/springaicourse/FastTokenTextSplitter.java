@@ -0,0 +1,291 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+
+// TokenTextSplitter's algorithm with the same chunks, without its repeated
+// work. TokenTextSplitter boxes every token, decodes each window back to a
+// string and re-encodes the (possibly truncated) window to learn how many
+// tokens it used. This splitter encodes the text once, keeps the character
+// offset of every token boundary, cuts windows by slicing the original
+// string, and counts a window's tokens from the original tokens between
+// its first and last word boundary plus the few tokens at either end.
+// Windows that start or end inside a multi-byte character are decoded and
+// counted exactly as TokenTextSplitter does.
+class FastTokenTextSplitter extends TextSplitter {
+
+    private static final Encoding ENCODING =
+            Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+    // UTF-8 length of each cl100k token, filled in as tokens are first seen;
+    // 0 means not yet known. Racing writers store the same value.
+    private static final int[] TOKEN_BYTES = new int[100_352];
+
+    // Overlap is in tokens; 0 gives exactly TokenTextSplitter's chunks.
+    // Parallelism applies to apply()/split() over several documents.
+    record Settings(int chunkSize, int minChunkSizeChars, int minChunkLengthToEmbed, int maxNumChunks,
+                    boolean keepSeparator, int overlap, int parallelism) {
+        Settings {
+            if (chunkSize < 1 || maxNumChunks < 1 || overlap < 0 || overlap >= chunkSize || parallelism < 1) {
+                throw new IllegalArgumentException("Invalid splitter settings: " + this);
+            }
+        }
+
+        // TokenTextSplitter's defaults
+        static Settings defaults() {
+            return new Settings(800, 350, 5, 10_000, true, 0, 1);
+        }
+
+        Settings withOverlap(int overlap) {
+            return new Settings(chunkSize, minChunkSizeChars, minChunkLengthToEmbed, maxNumChunks,
+                    keepSeparator, overlap, parallelism);
+        }
+
+        Settings withParallelism(int parallelism) {
+            return new Settings(chunkSize, minChunkSizeChars, minChunkLengthToEmbed, maxNumChunks,
+                    keepSeparator, overlap, parallelism);
+        }
+    }
+
+    private final Settings settings;
+
+    FastTokenTextSplitter(Settings settings) {
+        this.settings = settings;
+    }
+
+    FastTokenTextSplitter() {
+        this(Settings.defaults());
+    }
+
+    @Override
+    public List<Document> apply(List<Document> documents) {
+        if (settings.parallelism() == 1 || documents.size() < 2) {
+            return super.apply(documents);
+        }
+        ForkJoinPool pool = new ForkJoinPool(settings.parallelism());
+        try {
+            List<List<String>> chunks = pool.submit(() -> IntStream.range(0, documents.size())
+                    .parallel()
+                    .mapToObj(i -> splitText(documents.get(i).getText()))
+                    .toList()).get();
+            // Assembled the way TextSplitter does it
+            List<Document> result = new ArrayList<>();
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                for (String chunk : chunks.get(i)) {
+                    Map<String, Object> metadata = document.getMetadata().entrySet().stream()
+                            .filter(e -> e.getKey() != null && e.getValue() != null)
+                            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                    Document split = new Document(chunk, metadata);
+                    if (isCopyContentFormatter()) {
+                        split.setContentFormatter(document.getContentFormatter());
+                    }
+                    result.add(split);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while splitting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    protected List<String> splitText(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+        Tokens tokens = new Tokens(text);
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        int numChunks = 0;
+        while (start < tokens.size && numChunks < settings.maxNumChunks()) {
+            int end = Math.min(start + settings.chunkSize(), tokens.size);
+            String chunkText = tokens.text(start, end);
+            if (chunkText.trim().isEmpty()) {
+                start = end;
+                continue;
+            }
+            int lastPunctuation = Math.max(chunkText.lastIndexOf('.'), Math.max(chunkText.lastIndexOf('?'),
+                    Math.max(chunkText.lastIndexOf('!'), chunkText.lastIndexOf('\n'))));
+            if (lastPunctuation != -1 && lastPunctuation > settings.minChunkSizeChars()) {
+                chunkText = chunkText.substring(0, lastPunctuation + 1);
+            }
+            String toAppend = settings.keepSeparator()
+                    ? chunkText.trim()
+                    : chunkText.replace(System.lineSeparator(), " ").trim();
+            if (toAppend.length() > settings.minChunkLengthToEmbed()) {
+                chunks.add(toAppend);
+            }
+            // TokenTextSplitter advances by the token count of the re-encoded chunk text
+            int used = tokens.count(start, end, chunkText);
+            int next = Math.min(start + used, tokens.size);
+            start = next < tokens.size ? Math.max(start + 1, next - settings.overlap()) : next;
+            numChunks++;
+        }
+        if (start < tokens.size) {
+            String remaining = tokens.text(start, tokens.size).replace(System.lineSeparator(), " ").trim();
+            if (remaining.length() > settings.minChunkLengthToEmbed()) {
+                chunks.add(remaining);
+            }
+        }
+        return chunks;
+    }
+
+    // A text encoded once, with the character offset of each token boundary
+    private static final class Tokens {
+        final String text;
+        final int[] ids;
+        final int size;
+        // charAt[i] is where token i starts (charAt[size] is the end), or -1
+        // when the boundary falls inside a character's UTF-8 bytes
+        final int[] charAt;
+        // The inverse for boundaries that are characters: token starting at a
+        // character offset, or -1
+        final int[] tokenAt;
+
+        Tokens(String text) {
+            this.text = text;
+            IntArrayList encoded = ENCODING.encode(text);
+            this.size = encoded.size();
+            this.ids = new int[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = encoded.get(i);
+            }
+            this.charAt = new int[size + 1];
+            this.tokenAt = new int[text.length() + 1];
+            Arrays.fill(tokenAt, -1);
+            if (!mapOffsets()) {
+                // A lone surrogate does not survive encoding, so nothing can
+                // be sliced; every window is decoded instead
+                Arrays.fill(charAt, -1);
+                Arrays.fill(tokenAt, -1);
+            }
+        }
+
+        private boolean mapOffsets() {
+            int index = 0;
+            long bytePosition = 0;
+            long tokenPosition = 0;
+            for (int i = 0; i <= size; i++) {
+                while (index < text.length() && bytePosition < tokenPosition) {
+                    char c = text.charAt(index);
+                    if (Character.isHighSurrogate(c) && index + 1 < text.length()
+                            && Character.isLowSurrogate(text.charAt(index + 1))) {
+                        bytePosition += 4;
+                        index += 2;
+                    } else if (Character.isSurrogate(c)) {
+                        return false;
+                    } else {
+                        bytePosition += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+                        index++;
+                    }
+                }
+                if (bytePosition == tokenPosition) {
+                    charAt[i] = index;
+                    tokenAt[index] = i;
+                } else {
+                    charAt[i] = -1;
+                }
+                if (i < size) {
+                    tokenPosition += tokenBytes(ids[i]);
+                }
+            }
+            return charAt[size] == text.length();
+        }
+
+        // Tokens [start, end) as TokenTextSplitter decodes them
+        String text(int start, int end) {
+            if (charAt[start] >= 0 && charAt[end] >= 0) {
+                return text.substring(charAt[start], charAt[end]);
+            }
+            return ENCODING.decode(list(start, end));
+        }
+
+        // How many tokens encoding chunkText, a prefix of the text of tokens
+        // [start, end), produces. Cl100k pre-tokenization always breaks
+        // between an ASCII letter and a following space, whatever precedes
+        // it, so between the first and the last such break inside the chunk
+        // the chunk's tokens are the original ones and only the two ends
+        // need encoding.
+        int count(int start, int end, String chunkText) {
+            if (charAt[start] < 0 || charAt[end] < 0) {
+                return ENCODING.countTokens(chunkText);
+            }
+            int from = charAt[start];
+            int to = from + chunkText.length();
+            int first = -1;
+            for (int x = from + 1; x < to; x++) {
+                if (isWordBreak(x)) {
+                    first = x;
+                    break;
+                }
+            }
+            int last = -1;
+            for (int x = to - 1; x > from && x >= first; x--) {
+                if (isWordBreak(x)) {
+                    last = x;
+                    break;
+                }
+            }
+            if (first < 0 || last < 0 || tokenAt[first] < 0 || tokenAt[last] < 0) {
+                return ENCODING.countTokens(chunkText);
+            }
+            return ENCODING.countTokens(text.substring(from, first))
+                    + tokenAt[last] - tokenAt[first]
+                    + ENCODING.countTokens(text.substring(last, to));
+        }
+
+        private boolean isWordBreak(int x) {
+            char previous = text.charAt(x - 1);
+            return text.charAt(x) == ' '
+                    && (previous >= 'a' && previous <= 'z' || previous >= 'A' && previous <= 'Z');
+        }
+
+        private IntArrayList list(int start, int end) {
+            IntArrayList list = new IntArrayList(end - start);
+            for (int i = start; i < end; i++) {
+                list.add(ids[i]);
+            }
+            return list;
+        }
+    }
+
+    private static int tokenBytes(int id) {
+        if (id < 0 || id >= TOKEN_BYTES.length) {
+            return decodedLength(id);
+        }
+        int length = TOKEN_BYTES[id];
+        if (length == 0) {
+            length = decodedLength(id);
+            TOKEN_BYTES[id] = length;
+        }
+        return length;
+    }
+
+    private static int decodedLength(int id) {
+        IntArrayList single = new IntArrayList(1);
+        single.add(id);
+        return ENCODING.decodeBytes(single).length;
+    }
+}
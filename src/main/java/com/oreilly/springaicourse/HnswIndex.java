@@ -0,0 +1,418 @@
+package com.oreilly.springaicourse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.function.IntPredicate;
+
+// Hierarchical Navigable Small World graph (Malkov & Yashunin) over vectors
+// identified by dense int ids. The index only stores the graph; vectors are
+// read back through the Vectors callback, so they can stay memory-mapped.
+// Not thread-safe: callers must serialize insert() against search(). The
+// graph can be saved to a file and loaded back without recomputing it.
+class HnswIndex {
+    private static final int MAGIC = 0x484E5331; // "HNS1"
+
+    // m: links per node (2m on the bottom layer); efConstruction/efSearch:
+    // candidate list sizes while building and querying. Larger is slower but
+    // more accurate.
+    record Settings(int m, int efConstruction, int efSearch) {
+        Settings {
+            // Link counts are saved as single bytes
+            if (m < 2 || m > 127 || efConstruction < 1 || efSearch < 1) {
+                throw new IllegalArgumentException("Invalid HNSW settings: " + this);
+            }
+        }
+
+        static Settings defaults() {
+            return new Settings(16, 200, 64);
+        }
+    }
+
+    interface Vectors {
+        int dimensions();
+
+        void read(int id, float[] target);
+
+        // Dot product of query with the vector, without copying it out
+        float dot(float[] query, int id);
+
+        float norm(int id);
+    }
+
+    // Similarity of one query to the vector with the given id; search can
+    // traverse with an approximate scorer and re-rank afterwards
+    interface Scorer {
+        float score(int id);
+    }
+
+    private final Settings settings;
+    private final Vectors vectors;
+    private final SimilarityKernel kernel;
+    private final double levelMultiplier;
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    // links[id][level] = {count, neighbour ids...}
+    private int[][][] links = new int[1024][][];
+    private int size;
+    // One more than the highest id inserted
+    private int span;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Scratch buffer, only used by insert()
+    private float[] other;
+
+    HnswIndex(Settings settings, Vectors vectors, SimilarityKernel kernel) {
+        this.settings = settings;
+        this.vectors = vectors;
+        this.kernel = kernel;
+        this.levelMultiplier = 1 / Math.log(settings.m());
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int span() {
+        return span;
+    }
+
+    void insert(int id) {
+        if (other == null) {
+            other = new float[vectors.dimensions()];
+        }
+        float[] vector = new float[vectors.dimensions()];
+        vectors.read(id, vector);
+        float norm = vectors.norm(id);
+
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        if (id >= links.length) {
+            links = Arrays.copyOf(links, Math.max(id + 1, links.length * 2));
+        }
+        int[][] nodeLinks = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            nodeLinks[l] = new int[maxLinks(l) + 1];
+        }
+        links[id] = nodeLinks;
+        size++;
+        span = Math.max(span, id + 1);
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return;
+        }
+
+        Scorer scorer = other -> score(vector, norm, other);
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedyClosest(scorer, current, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            TopK candidates = searchLayer(scorer, current, settings.efConstruction(), l, ignored -> true);
+            int[] ids = new int[candidates.size()];
+            float[] scores = new float[candidates.size()];
+            int count = candidates.drainDescending(ids, scores);
+            current = ids[0];
+
+            int selected = selectNeighbours(ids, scores, count, maxLinks(l));
+            System.arraycopy(ids, 0, nodeLinks[l], 1, selected);
+            nodeLinks[l][0] = selected;
+            for (int i = 0; i < selected; i++) {
+                link(ids[i], id, l);
+            }
+        }
+        if (level > maxLevel) {
+            entryPoint = id;
+            maxLevel = level;
+        }
+    }
+
+    // Returns up to k accepted ids ordered by descending cosine similarity
+    TopK search(float[] query, int k, int ef, IntPredicate accept) {
+        float norm = kernel.norm(query);
+        return search(id -> score(query, norm, id), k, ef, accept);
+    }
+
+    TopK search(Scorer scorer, int k, int ef, IntPredicate accept) {
+        TopK results = new TopK(k);
+        if (entryPoint < 0) {
+            return results;
+        }
+        int current = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            current = greedyClosest(scorer, current, l);
+        }
+        TopK candidates = searchLayer(scorer, current, Math.max(ef, k), 0, accept);
+        int[] ids = new int[candidates.size()];
+        float[] scores = new float[candidates.size()];
+        int count = candidates.drainDescending(ids, scores);
+        for (int i = 0; i < count; i++) {
+            results.offer(ids[i], scores[i]);
+        }
+        return results;
+    }
+
+    // Written to a temporary file and moved into place
+    void save(Path file) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(settings.m());
+            out.writeInt(span);
+            out.writeInt(size);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int id = 0; id < span; id++) {
+                int[][] nodeLinks = links[id];
+                out.writeByte(nodeLinks == null ? 0 : nodeLinks.length);
+                for (int l = 0; nodeLinks != null && l < nodeLinks.length; l++) {
+                    out.writeByte(nodeLinks[l][0]);
+                    for (int i = 1; i <= nodeLinks[l][0]; i++) {
+                        out.writeInt(nodeLinks[l][i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write HNSW graph " + temp, e);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write HNSW graph " + file, e);
+        }
+    }
+
+    // The saved graph, or null when there is none or it was built with
+    // another m or over more vectors than there are now
+    static HnswIndex load(Path file, Settings settings, Vectors vectors, SimilarityKernel kernel, int maxSpan) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != settings.m()) {
+                return null;
+            }
+            int span = in.readInt();
+            if (span > maxSpan) {
+                return null;
+            }
+            var index = new HnswIndex(settings, vectors, kernel);
+            index.links = new int[Math.max(span, 1024)][][];
+            index.span = span;
+            index.size = in.readInt();
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            for (int id = 0; id < span; id++) {
+                int levels = in.readUnsignedByte();
+                if (levels == 0) {
+                    continue;
+                }
+                int[][] nodeLinks = new int[levels][];
+                for (int l = 0; l < levels; l++) {
+                    nodeLinks[l] = new int[index.maxLinks(l) + 1];
+                    int count = in.readUnsignedByte();
+                    nodeLinks[l][0] = count;
+                    for (int i = 1; i <= count; i++) {
+                        nodeLinks[l][i] = in.readInt();
+                    }
+                }
+                index.links[id] = nodeLinks;
+            }
+            return index;
+        } catch (NoSuchFileException | EOFException e) {
+            // Missing, or cut short by a crash while it was being written
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read HNSW graph " + file, e);
+        }
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * settings.m() : settings.m();
+    }
+
+    private int greedyClosest(Scorer scorer, int start, int level) {
+        int current = start;
+        float best = scorer.score(current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = links[current][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                float score = scorer.score(neighbours[i]);
+                if (score > best) {
+                    best = score;
+                    current = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Best-first search of one layer. Rejected ids are still traversed so a
+    // filter cannot disconnect the graph; they just never enter the results.
+    private TopK searchLayer(Scorer scorer, int start, int ef, int level, IntPredicate accept) {
+        BitSet visited = new BitSet(size);
+        CandidateQueue candidates = new CandidateQueue();
+        TopK results = new TopK(ef);
+
+        float startScore = scorer.score(start);
+        visited.set(start);
+        candidates.push(start, startScore);
+        if (accept.test(start)) {
+            results.offer(start, startScore);
+        }
+        while (!candidates.isEmpty()) {
+            float candidateScore = candidates.topScore();
+            if (results.isFull() && candidateScore < results.threshold()) {
+                break;
+            }
+            int candidate = candidates.pop();
+            int[][] candidateLinks = links[candidate];
+            if (candidateLinks.length <= level) {
+                continue;
+            }
+            int[] neighbours = candidateLinks[level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float score = scorer.score(neighbour);
+                if (!results.isFull() || score > results.threshold()) {
+                    candidates.push(neighbour, score);
+                    if (accept.test(neighbour)) {
+                        results.offer(neighbour, score);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    // Keeps a candidate only if it is closer to the base than to any already
+    // selected neighbour, which spreads links across clusters. Candidates are
+    // in descending score order; the selection is moved to the front.
+    private int selectNeighbours(int[] ids, float[] scores, int count, int max) {
+        int selected = 0;
+        for (int i = 0; i < count && selected < max; i++) {
+            vectors.read(ids[i], other);
+            float candidateNorm = vectors.norm(ids[i]);
+            boolean keep = true;
+            for (int j = 0; j < selected && keep; j++) {
+                keep = score(other, candidateNorm, ids[j]) < scores[i];
+            }
+            if (keep) {
+                ids[selected] = ids[i];
+                scores[selected] = scores[i];
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    // Adds a back link, re-selecting the neighbour's links when it is full
+    private void link(int from, int to, int level) {
+        int[] neighbours = links[from][level];
+        int count = neighbours[0];
+        if (count < neighbours.length - 1) {
+            neighbours[++count] = to;
+            neighbours[0] = count;
+            return;
+        }
+        float[] base = new float[vectors.dimensions()];
+        vectors.read(from, base);
+        float baseNorm = vectors.norm(from);
+
+        TopK ranked = new TopK(count + 1);
+        for (int i = 1; i <= count; i++) {
+            ranked.offer(neighbours[i], score(base, baseNorm, neighbours[i]));
+        }
+        ranked.offer(to, score(base, baseNorm, to));
+        int[] ids = new int[count + 1];
+        float[] scores = new float[count + 1];
+        int total = ranked.drainDescending(ids, scores);
+        int selected = selectNeighbours(ids, scores, total, count);
+        System.arraycopy(ids, 0, neighbours, 1, selected);
+        neighbours[0] = selected;
+    }
+
+    private float score(float[] query, float norm, int id) {
+        float denominator = norm * vectors.norm(id);
+        return denominator == 0 ? 0 : vectors.dot(query, id) / denominator;
+    }
+
+    // Growable max-heap of (id, score) used as the search frontier
+    private static final class CandidateQueue {
+        private int[] ids = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        void push(int id, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] >= score) {
+                    break;
+                }
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = ids[0];
+            size--;
+            int id = ids[size];
+            float score = scores[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (score >= scores[child]) {
+                    break;
+                }
+                ids[i] = ids[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return top;
+        }
+    }
+}
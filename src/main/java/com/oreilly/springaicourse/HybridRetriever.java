@@ -0,0 +1,89 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+
+// Vector search and BM25 combined by reciprocal rank fusion. Embeddings
+// retrieve proper nouns ("Kendrick Lamar", "Drake") poorly, where lexical
+// matching finds them exactly. RRF scores a chunk 1 / (k + rank) for each
+// list it appears in, so the two rankings merge without calibrating cosine
+// similarity against BM25 scores. Each list is searched for candidateFactor
+// times top-k chunks. The filter applies to both lists, the similarity
+// threshold to the vector list only: BM25 scores are not comparable.
+class HybridRetriever {
+
+    record Settings(int candidateFactor, int rankConstant) {
+        Settings {
+            if (candidateFactor < 1 || rankConstant < 1) {
+                throw new IllegalArgumentException("Invalid hybrid retrieval settings: " + this);
+            }
+        }
+
+        // k = 60 is the constant from the original RRF paper
+        static Settings defaults() {
+            return new Settings(4, 60);
+        }
+    }
+
+    private final VectorStore vectorStore;
+    private final LexicalIndex lexicalIndex;
+    private final Settings settings;
+
+    HybridRetriever(VectorStore vectorStore, LexicalIndex lexicalIndex, Settings settings) {
+        this.vectorStore = vectorStore;
+        this.lexicalIndex = lexicalIndex;
+        this.settings = settings;
+    }
+
+    HybridRetriever(VectorStore vectorStore, LexicalIndex lexicalIndex) {
+        this(vectorStore, lexicalIndex, Settings.defaults());
+    }
+
+    // Documents come back with their fused score
+    List<Document> search(SearchRequest request) {
+        int candidates = request.getTopK() * settings.candidateFactor();
+        List<Document> vector = vectorStore.similaritySearch(SearchRequest.from(request).topK(candidates).build());
+        List<Document> lexical = lexicalIndex.search(request.getQuery(), candidates,
+                MetadataFilter.predicate(request.getFilterExpression()));
+
+        Map<String, Fused> fused = new HashMap<>();
+        add(fused, vector);
+        add(fused, lexical);
+        List<Fused> ranked = new ArrayList<>(fused.values());
+        ranked.sort(Comparator.comparingDouble((Fused f) -> -f.score).thenComparingInt(f -> f.order));
+
+        List<Document> documents = new ArrayList<>(Math.min(request.getTopK(), ranked.size()));
+        for (int i = 0; i < ranked.size() && i < request.getTopK(); i++) {
+            documents.add(ranked.get(i).document.mutate().score(ranked.get(i).score).build());
+        }
+        return documents;
+    }
+
+    private void add(Map<String, Fused> fused, List<Document> ranking) {
+        for (int rank = 0; rank < ranking.size(); rank++) {
+            Document document = ranking.get(rank);
+            // The vector list goes first, so its copy (with the distance) is kept
+            Fused entry = fused.computeIfAbsent(document.getId(), id -> new Fused(document, fused.size()));
+            entry.score += 1.0 / (settings.rankConstant() + rank + 1);
+        }
+    }
+
+    private static final class Fused {
+        final Document document;
+        // First-seen order breaks ties, favouring the vector ranking
+        final int order;
+        double score;
+
+        Fused(Document document, int order) {
+            this.document = document;
+            this.order = order;
+        }
+    }
+}
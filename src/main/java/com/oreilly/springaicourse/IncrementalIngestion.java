@@ -0,0 +1,285 @@
+package com.oreilly.springaicourse;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+
+// Brings the vector store up to date with a list of sources, using the
+// manifest to skip the ones whose content and settings are unchanged. Only
+// changed sources go through the ingestion pipeline. Their chunks get ids
+// derived from the source and the chunk text, so writing a source again
+// overwrites its chunks instead of duplicating them; ids the source no
+// longer produces are deleted afterwards, as are the chunks of sources that
+// are no longer listed. A lexical index, when given, receives the same writes
+// and deletes. A source whose chunks the vector store or the lexical index
+// lacks is ingested again.
+class IncrementalIngestion {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalIngestion.class);
+
+    // Carries the source name from the reader to the chunk writer; not stored
+    private static final String SOURCE_KEY = "ingestion_source";
+
+    // Whether the vector store still holds chunks, so that a manifest
+    // outliving the store (a cleared Redis, a deleted store directory) does
+    // not keep sources out of it
+    interface StoredChunks {
+        boolean containsAll(Collection<String> ids);
+
+        // The local stores look up every id; null for stores that cannot tell
+        static StoredChunks of(VectorStore vectorStore) {
+            if (vectorStore instanceof MappedVectorStore store) {
+                return store::containsAll;
+            }
+            if (vectorStore instanceof ShardedVectorStore store) {
+                return store::containsAll;
+            }
+            return null;
+        }
+    }
+
+    record Result(List<String> unchanged, List<String> ingested, List<String> removed,
+                  long chunksWritten, long chunksDeleted, IngestionPipeline.Report report) {}
+
+    private final IngestionManifest manifest;
+    private final VectorStore vectorStore;
+    private final DocumentWriter writer;
+    private final LexicalIndex lexicalIndex;
+    private final StoredChunks storedChunks;
+    private final TextSplitter splitter;
+    private final IngestionPipeline.Settings pipelineSettings;
+    private final String settings;
+
+    // The settings text describes everything besides the content that
+    // shapes the stored chunks: splitter parameters, embedding model
+    IncrementalIngestion(IngestionManifest manifest, VectorStore vectorStore, DocumentWriter writer,
+                         LexicalIndex lexicalIndex, StoredChunks storedChunks, TextSplitter splitter,
+                         IngestionPipeline.Settings pipelineSettings, String settings) {
+        this.manifest = manifest;
+        this.vectorStore = vectorStore;
+        this.writer = writer;
+        this.lexicalIndex = lexicalIndex;
+        this.storedChunks = storedChunks;
+        this.splitter = splitter;
+        this.pipelineSettings = pipelineSettings;
+        this.settings = settings;
+    }
+
+    IncrementalIngestion(IngestionManifest manifest, VectorStore vectorStore, DocumentWriter writer,
+                         LexicalIndex lexicalIndex, TextSplitter splitter,
+                         IngestionPipeline.Settings pipelineSettings, String settings) {
+        this(manifest, vectorStore, writer, lexicalIndex, StoredChunks.of(vectorStore), splitter,
+                pipelineSettings, settings);
+    }
+
+    IncrementalIngestion(IngestionManifest manifest, VectorStore vectorStore, DocumentWriter writer,
+                         TextSplitter splitter, IngestionPipeline.Settings pipelineSettings, String settings) {
+        this(manifest, vectorStore, writer, null, splitter, pipelineSettings, settings);
+    }
+
+    Result run(List<IngestionSource> sources) {
+        Set<String> unchanged = ConcurrentHashMap.newKeySet();
+        Map<String, String> contentHashes = new ConcurrentHashMap<>();
+        Map<String, Set<String>> chunkIds = new ConcurrentHashMap<>();
+
+        List<IngestionSource> toRead = new ArrayList<>();
+        for (IngestionSource source : sources) {
+            IngestionManifest.Entry entry = manifest.get(source.name());
+            String expected = entry != null && entry.settingsHash().equals(settingsHash(source)) && indexed(entry)
+                    ? entry.contentHash() : null;
+            if (source.fingerprint() != null) {
+                String fingerprint = source.fingerprint().get();
+                if (fingerprint.equals(expected)) {
+                    unchanged.add(source.name());
+                    continue;
+                }
+                contentHashes.put(source.name(), fingerprint);
+            }
+            if (entry == null) {
+                deleteUntracked(source);
+            }
+            toRead.add(new IngestionSource(source.name(), source.metadata(),
+                    () -> read(source, expected, unchanged, contentHashes)));
+        }
+
+        LongAdder written = new LongAdder();
+        IngestionPipeline.Report report = new IngestionPipeline(splitter, chunks -> {
+            List<Document> batch = withChunkIds(chunks, chunkIds);
+            if (!batch.isEmpty()) {
+                writer.accept(batch);
+                if (lexicalIndex != null) {
+                    lexicalIndex.add(batch);
+                }
+                written.add(batch.size());
+            }
+        }, pipelineSettings).run(toRead);
+        // A buffering writer must have written everything before the manifest records it
+        if (writer instanceof Flushable flushable) {
+            try {
+                flushable.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Everything read has been written; record it and drop what is stale
+        long deleted = 0;
+        List<String> ingested = new ArrayList<>();
+        String now = Instant.now().toString();
+        for (IngestionSource source : sources) {
+            String contentHash = contentHashes.get(source.name());
+            if (contentHash == null || unchanged.contains(source.name())) {
+                continue;
+            }
+            Set<String> ids = chunkIds.getOrDefault(source.name(), Set.of());
+            IngestionManifest.Entry previous = manifest.get(source.name());
+            if (previous != null) {
+                deleted += delete(previous.chunkIds().stream().filter(id -> !ids.contains(id)).toList());
+            }
+            manifest.put(source.name(), new IngestionManifest.Entry(
+                    contentHash, settingsHash(source), ids.stream().sorted().toList(), now));
+            ingested.add(source.name());
+        }
+
+        Set<String> listed = sources.stream().map(IngestionSource::name).collect(Collectors.toSet());
+        List<String> removed = new ArrayList<>();
+        for (String name : manifest.sources()) {
+            if (!listed.contains(name)) {
+                deleted += delete(manifest.remove(name).chunkIds());
+                removed.add(name);
+            }
+        }
+        // The index first: chunks it has and the manifest lacks are cleared
+        // as untracked next time, while the reverse would go unnoticed
+        if (lexicalIndex != null) {
+            lexicalIndex.save();
+        }
+        manifest.save();
+
+        logger.info("Ingestion: {} unchanged, {} ingested, {} removed; {} chunks written, {} deleted",
+                unchanged.size(), ingested.size(), removed.size(), written.sum(), deleted);
+        return new Result(sources.stream().map(IngestionSource::name).filter(unchanged::contains).toList(),
+                ingested, removed, written.sum(), deleted, report);
+    }
+
+    static String chunkId(String source, String text) {
+        return UUID.nameUUIDFromBytes((source + '\n' + text).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private boolean indexed(IngestionManifest.Entry entry) {
+        return (storedChunks == null || storedChunks.containsAll(entry.chunkIds()))
+                && (lexicalIndex == null || lexicalIndex.containsAll(entry.chunkIds()));
+    }
+
+    // Runs on a pipeline read thread. A source without a fingerprint is read
+    // in full and hashed here, and dropped if the hash matches the manifest;
+    // one with a fingerprint is passed through as it is read.
+    private Iterable<Document> read(IngestionSource source, String expected,
+                                    Set<String> unchanged, Map<String, String> contentHashes) {
+        if (source.fingerprint() != null) {
+            Iterable<? extends Document> documents = source.reader().get();
+            return () -> new Iterator<>() {
+                private final Iterator<? extends Document> pages = documents.iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return pages.hasNext();
+                }
+
+                @Override
+                public Document next() {
+                    Document document = pages.next();
+                    document.getMetadata().put(SOURCE_KEY, source.name());
+                    return document;
+                }
+            };
+        }
+        List<Document> documents = new ArrayList<>();
+        source.reader().get().forEach(documents::add);
+        String contentHash = contentHash(documents);
+        if (contentHash.equals(expected)) {
+            unchanged.add(source.name());
+            return List.of();
+        }
+        contentHashes.put(source.name(), contentHash);
+        documents.forEach(document -> document.getMetadata().put(SOURCE_KEY, source.name()));
+        return documents;
+    }
+
+    // Duplicate chunks of one source share an id and are written once
+    private static List<Document> withChunkIds(List<Document> chunks, Map<String, Set<String>> chunkIds) {
+        List<Document> batch = new ArrayList<>(chunks.size());
+        for (Document chunk : chunks) {
+            Map<String, Object> metadata = new HashMap<>(chunk.getMetadata());
+            String source = (String) metadata.remove(SOURCE_KEY);
+            String id = chunkId(source, chunk.getText());
+            if (chunkIds.computeIfAbsent(source, key -> ConcurrentHashMap.newKeySet()).add(id)) {
+                batch.add(new Document(id, chunk.getText(), metadata));
+            }
+        }
+        return batch;
+    }
+
+    // Chunks stored before the manifest existed have random ids; a source
+    // the manifest does not know is cleared by its "source" metadata
+    private void deleteUntracked(IngestionSource source) {
+        Object label = source.metadata().get("source");
+        if (label == null) {
+            return;
+        }
+        if (lexicalIndex != null) {
+            lexicalIndex.delete(metadata -> label.equals(metadata.get("source")));
+        }
+        try {
+            vectorStore.delete(new FilterExpressionBuilder().eq("source", label).build());
+        } catch (RuntimeException e) {
+            logger.warn("Could not clear untracked chunks of {}: {}", source.name(), e.getMessage());
+        }
+    }
+
+    private int delete(List<String> ids) {
+        if (!ids.isEmpty()) {
+            vectorStore.delete(ids);
+            if (lexicalIndex != null) {
+                lexicalIndex.delete(ids);
+            }
+        }
+        return ids.size();
+    }
+
+    private String settingsHash(IngestionSource source) {
+        return IngestionManifest.sha256(settings + '\n' + new TreeMap<>(source.metadata()));
+    }
+
+    private static String contentHash(List<Document> documents) {
+        MessageDigest digest = IngestionManifest.digest();
+        for (Document document : documents) {
+            digest.update(String.valueOf(document.getText()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
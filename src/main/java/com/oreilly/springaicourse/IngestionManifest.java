@@ -0,0 +1,106 @@
+package com.oreilly.springaicourse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+// What has been ingested into the vector store, kept as JSON next to it. For
+// each source: a hash of its content, a hash of the settings its chunks were
+// made with, and the ids of those chunks. IncrementalIngestion saves an
+// entry only after all of the source's chunks are stored, so a load that was
+// interrupted is not mistaken for a complete one.
+class IngestionManifest {
+    private static final int VERSION = 1;
+
+    record Entry(String contentHash, String settingsHash, List<String> chunkIds, String ingestedAt) {}
+
+    record Contents(int version, Map<String, Entry> sources) {}
+
+    private static final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final Path file;
+    // Sorted, so the file diffs cleanly between runs
+    private final Map<String, Entry> entries;
+
+    private IngestionManifest(Path file, Map<String, Entry> entries) {
+        this.file = file;
+        this.entries = new TreeMap<>(entries);
+    }
+
+    // A missing or unreadable manifest is empty: every source is ingested again
+    static IngestionManifest load(Path file) {
+        if (!Files.exists(file)) {
+            return new IngestionManifest(file, Map.of());
+        }
+        try {
+            Contents contents = objectMapper.readValue(file.toFile(), Contents.class);
+            if (contents.version() != VERSION || contents.sources() == null) {
+                return new IngestionManifest(file, Map.of());
+            }
+            return new IngestionManifest(file, contents.sources());
+        } catch (IOException e) {
+            return new IngestionManifest(file, Map.of());
+        }
+    }
+
+    Entry get(String source) {
+        return entries.get(source);
+    }
+
+    void put(String source, Entry entry) {
+        entries.put(source, entry);
+    }
+
+    Entry remove(String source) {
+        return entries.remove(source);
+    }
+
+    Set<String> sources() {
+        return Set.copyOf(entries.keySet());
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves
+    // either the old manifest or the new one
+    void save() {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            objectMapper.writeValue(temp.toFile(), new Contents(VERSION, entries));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write ingestion manifest " + file, e);
+        }
+    }
+
+    static String sha256(byte[] bytes) {
+        return HexFormat.of().formatHex(digest().digest(bytes));
+    }
+
+    static String sha256(String text) {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
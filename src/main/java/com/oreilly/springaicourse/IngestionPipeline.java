@@ -0,0 +1,260 @@
+package com.oreilly.springaicourse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.transformer.splitter.TextSplitter;
+
+// Staged ingestion: read -> split -> write, with bounded queues between the
+// stages so that slow sources (the PDF) overlap with splitting and with the
+// embedding calls made by the writer (VectorStore.add embeds before storing).
+class IngestionPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(IngestionPipeline.class);
+
+    // Marks the end of a queue; compared by identity
+    private static final Document END_OF_STREAM = new Document("end-of-stream");
+
+    record Settings(int readParallelism, int splitParallelism, int writeParallelism,
+                    int queueCapacity, int writeBatchSize) {
+
+        static Settings defaults() {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return new Settings(3, cores, 4, 256, 64);
+        }
+    }
+
+    record StageReport(String stage, int threads, long itemsIn, long itemsOut, Duration elapsed) {
+        double throughput() {
+            double seconds = elapsed.toNanos() / 1e9;
+            return seconds > 0 ? itemsOut / seconds : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %2d threads %6d in %6d out %8d ms %10.1f docs/s",
+                    stage, threads, itemsIn, itemsOut, elapsed.toMillis(), throughput());
+        }
+    }
+
+    record Report(List<StageReport> stages, Duration elapsed) {
+        long documentsWritten() {
+            return stages.isEmpty() ? 0 : stages.get(stages.size() - 1).itemsOut();
+        }
+    }
+
+    private final TextSplitter splitter;
+    private final DocumentWriter writer;
+    private final Settings settings;
+
+    IngestionPipeline(TextSplitter splitter, DocumentWriter writer, Settings settings) {
+        this.splitter = splitter;
+        this.writer = writer;
+        this.settings = settings;
+    }
+
+    Report run(List<IngestionSource> sources) {
+        return new Execution(sources).run();
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static final class Stage {
+        final String name;
+        final int threads;
+        final ExecutorService executor;
+        final LongAdder itemsIn = new LongAdder();
+        final LongAdder itemsOut = new LongAdder();
+        final AtomicInteger remaining;
+        final AtomicLong startNanos = new AtomicLong();
+        volatile long endNanos;
+
+        Stage(String name, int threads, int tasks) {
+            this.name = name;
+            this.threads = threads;
+            this.remaining = new AtomicInteger(tasks);
+            AtomicInteger counter = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "ingest-" + name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void started() {
+            startNanos.compareAndSet(0, System.nanoTime());
+        }
+
+        // Returns true for the last task of the stage to finish
+        boolean finished() {
+            if (remaining.decrementAndGet() == 0) {
+                endNanos = System.nanoTime();
+                return true;
+            }
+            return false;
+        }
+
+        StageReport report() {
+            long start = startNanos.get();
+            long elapsed = start == 0 ? 0 : Math.max(0, endNanos - start);
+            return new StageReport(name, threads, itemsIn.sum(), itemsOut.sum(), Duration.ofNanos(elapsed));
+        }
+    }
+
+    private final class Execution {
+        private final List<IngestionSource> sources;
+        private final BlockingQueue<Document> pages;
+        private final BlockingQueue<Document> chunks;
+        private final Stage read;
+        private final Stage split;
+        private final Stage write;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Execution(List<IngestionSource> sources) {
+            this.sources = sources;
+            this.pages = new ArrayBlockingQueue<>(settings.queueCapacity());
+            this.chunks = new ArrayBlockingQueue<>(settings.queueCapacity());
+            int readers = Math.max(1, Math.min(settings.readParallelism(), sources.size()));
+            this.read = new Stage("read", readers, sources.size());
+            this.split = new Stage("split", settings.splitParallelism(), settings.splitParallelism());
+            this.write = new Stage("write", settings.writeParallelism(), settings.writeParallelism());
+        }
+
+        Report run() {
+            long start = System.nanoTime();
+            if (sources.isEmpty()) {
+                return new Report(List.of(), Duration.ZERO);
+            }
+
+            for (int i = 0; i < write.threads; i++) {
+                submit(write, this::writeChunks);
+            }
+            for (int i = 0; i < split.threads; i++) {
+                submit(split, this::splitPages);
+            }
+            for (IngestionSource source : sources) {
+                submit(read, () -> readSource(source));
+            }
+
+            List<Stage> stages = List.of(read, split, write);
+            stages.forEach(stage -> stage.executor.shutdown());
+            try {
+                for (Stage stage : stages) {
+                    stage.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort(e);
+            }
+
+            Throwable error = failure.get();
+            if (error != null) {
+                throw new IllegalStateException("Ingestion failed: " + error.getMessage(), error);
+            }
+
+            List<StageReport> reports = stages.stream().map(Stage::report).toList();
+            return new Report(reports, Duration.ofNanos(System.nanoTime() - start));
+        }
+
+        private void readSource(IngestionSource source) throws InterruptedException {
+            read.started();
+            logger.info("Reading {}", source.name());
+            for (Document document : source.reader().get()) {
+                document.getMetadata().putAll(source.metadata());
+                read.itemsOut.increment();
+                pages.put(document);
+            }
+            read.itemsIn.increment();
+            if (read.finished()) {
+                for (int i = 0; i < split.threads; i++) {
+                    pages.put(END_OF_STREAM);
+                }
+            }
+        }
+
+        private void splitPages() throws InterruptedException {
+            Document page;
+            while ((page = pages.take()) != END_OF_STREAM) {
+                split.started();
+                split.itemsIn.increment();
+                for (Document chunk : splitter.split(page)) {
+                    split.itemsOut.increment();
+                    chunks.put(chunk);
+                }
+            }
+            if (split.finished()) {
+                for (int i = 0; i < write.threads; i++) {
+                    chunks.put(END_OF_STREAM);
+                }
+            }
+        }
+
+        private void writeChunks() throws InterruptedException {
+            List<Document> batch = new ArrayList<>(settings.writeBatchSize());
+            Document chunk;
+            while ((chunk = chunks.take()) != END_OF_STREAM && failure.get() == null) {
+                write.started();
+                write.itemsIn.increment();
+                batch.add(chunk);
+                if (batch.size() >= settings.writeBatchSize()) {
+                    flush(batch);
+                }
+            }
+            flush(batch);
+            write.finished();
+        }
+
+        private void flush(List<Document> batch) {
+            if (batch.isEmpty() || failure.get() != null) {
+                return;
+            }
+            writer.accept(List.copyOf(batch));
+            write.itemsOut.add(batch.size());
+            batch.clear();
+        }
+
+        private void submit(Stage stage, Task task) {
+            stage.executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    abort(t);
+                }
+            });
+        }
+
+        // Stops every stage. Readers and splitters are interrupted. Writers
+        // are not: an interrupt during file I/O closes the channel (and with
+        // it the local vector store), so they finish the batch in hand and
+        // are woken with end markers instead.
+        private void abort(Throwable t) {
+            if (failure.compareAndSet(null, t)) {
+                logger.error("Aborting ingestion", t);
+                read.executor.shutdownNow();
+                split.executor.shutdownNow();
+                chunks.clear();
+                for (int i = 0; i < write.threads; i++) {
+                    chunks.offer(END_OF_STREAM);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.oreilly.springaicourse;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.springframework.ai.document.Document;
+
+// A named document source for the ingestion pipeline. The metadata is copied
+// onto every document the reader produces. The optional fingerprint is a
+// cheap content hash (of a file's bytes, say) that lets incremental
+// ingestion skip an unchanged source without reading it; without one, the
+// source is read and its text is hashed.
+record IngestionSource(String name, Map<String, Object> metadata, Supplier<? extends Iterable<Document>> reader,
+                       Supplier<String> fingerprint) {
+
+    IngestionSource(String name, Map<String, Object> metadata, Supplier<? extends Iterable<Document>> reader) {
+        this(name, metadata, reader, null);
+    }
+}
@@ -0,0 +1,599 @@
+package com.oreilly.springaicourse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+
+// BM25 over chunk text. Each term has a posting list of (chunk ordinal,
+// term frequency) pairs in one int array, and terms and ids are looked up in
+// open-addressing tables, so the index holds no boxed numbers. The heap keeps
+// only the postings, the ids and each chunk's length and offset: the chunks
+// themselves (id, text, metadata) are appended to a segment file and read
+// back for the hits a search returns and for the chunks it removes. Adding
+// chunks appends to the postings; removing or replacing one marks its
+// ordinal dead and lowers the document frequencies, and the postings and
+// segment are rewritten once dead ordinals outnumber live ones. Saving writes
+// the live chunks to a file, and loading rebuilds the postings from it.
+class LexicalIndex implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LexicalIndex.class);
+
+    private static final int MAGIC = 0x4C455832;
+    private static final int MIN_DEAD_TO_COMPACT = 1024;
+    private static final TypeReference<HashMap<String, Object>> METADATA = new TypeReference<>() {};
+
+    static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "did", "do", "does", "for", "from", "had",
+            "has", "have", "he", "her", "his", "how", "if", "in", "into", "is", "it", "its", "of", "on", "or",
+            "she", "so", "than", "that", "the", "their", "them", "then", "there", "these", "they", "this", "to",
+            "was", "were", "what", "when", "where", "which", "who", "whom", "why", "will", "with", "would", "you");
+
+    // Okapi BM25: k1 saturates term frequency, b normalizes for chunk length
+    record Settings(double k1, double b) {
+        static Settings defaults() {
+            return new Settings(1.2, 0.75);
+        }
+    }
+
+    // A chunk read back from the segment; metadata stays JSON until a filter needs it
+    private record Chunk(String id, String text, byte[] metadata) {}
+
+    private final Path file;
+    private final Settings settings;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Records of (id, text, metadata) lengths and bytes, in ordinal order
+    private FileChannel segment;
+    private long segmentEnd;
+
+    // Indexed by chunk ordinal
+    private long[] offsets = new long[256];
+    private int[] lengths = new int[256];
+    private int ordinalCount;
+    private final BitSet live = new BitSet();
+    private int liveCount;
+    private long liveLength;
+    private final Dictionary ordinals = new Dictionary();
+
+    // Indexed by term id
+    private final Dictionary terms = new Dictionary();
+    private int[][] postings = new int[1024][];
+    private int[] postingSizes = new int[1024];
+    private int[] documentFrequencies = new int[1024];
+
+    private LexicalIndex(Path file, Settings settings) {
+        this.file = file;
+        this.settings = settings;
+        try {
+            this.segment = openSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create lexical index segment", e);
+        }
+    }
+
+    // Not saved; the segment is a temporary file all the same
+    LexicalIndex() {
+        this(null, Settings.defaults());
+    }
+
+    static LexicalIndex load(Path file) {
+        return load(file, Settings.defaults());
+    }
+
+    // A missing or unreadable file gives an empty index; incremental
+    // ingestion then loads the sources whose chunks it lacks
+    static LexicalIndex load(Path file, Settings settings) {
+        LexicalIndex index = new LexicalIndex(file, settings);
+        if (!Files.exists(file)) {
+            return index;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a lexical index");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] id = readBytes(in);
+                byte[] text = readBytes(in);
+                byte[] metadata = readBytes(in);
+                index.append(new String(id, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8),
+                        record(id, text, metadata));
+            }
+            logger.info("Loaded lexical index from {} with {} chunks", file, count);
+        } catch (IOException e) {
+            logger.warn("Ignoring unreadable lexical index {}: {}", file, e.getMessage());
+            index.close();
+            return new LexicalIndex(file, settings);
+        }
+        return index;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean containsAll(Collection<String> ids) {
+        lock.readLock().lock();
+        try {
+            for (String id : ids) {
+                if (ordinals.get(id) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Re-adding an id replaces the earlier version
+    void add(List<Document> documents) {
+        lock.writeLock().lock();
+        try {
+            for (Document document : documents) {
+                int previous = ordinals.get(document.getId());
+                if (previous >= 0) {
+                    remove(previous);
+                }
+                String text = document.getText() != null ? document.getText() : "";
+                append(document.getId(), text, record(document.getId().getBytes(StandardCharsets.UTF_8),
+                        text.getBytes(StandardCharsets.UTF_8), objectMapper.writeValueAsBytes(document.getMetadata())));
+            }
+            compactIfSparse();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write lexical index segment", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int delete(Collection<String> ids) {
+        lock.writeLock().lock();
+        try {
+            int deleted = 0;
+            for (String id : ids) {
+                int ordinal = ordinals.get(id);
+                if (ordinal >= 0) {
+                    remove(ordinal);
+                    deleted++;
+                }
+            }
+            compactIfSparse();
+            return deleted;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write lexical index segment", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Reads every live chunk's metadata back from the segment
+    int delete(Predicate<Map<String, Object>> filter) {
+        lock.writeLock().lock();
+        try {
+            int deleted = 0;
+            for (int ordinal = live.nextSetBit(0); ordinal >= 0; ordinal = live.nextSetBit(ordinal + 1)) {
+                if (filter.test(metadata(read(ordinal)))) {
+                    remove(ordinal);
+                    deleted++;
+                }
+            }
+            compactIfSparse();
+            return deleted;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write lexical index segment", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The best topK chunks for the query's terms, each with its BM25 score.
+    // Only chunks that match a term are scored. They are read from the
+    // segment best first and the filter is tested on each until topK pass,
+    // so an unfiltered search reads topK chunks.
+    List<Document> search(String query, int topK, Predicate<Map<String, Object>> filter) {
+        lock.readLock().lock();
+        try {
+            int[] queryTerms = Arrays.stream(termIds(query, false)).filter(id -> id >= 0).distinct().toArray();
+            if (queryTerms.length == 0 || liveCount == 0) {
+                return List.of();
+            }
+            float[] scores = new float[ordinalCount];
+            int[] touched = new int[64];
+            int touchedCount = 0;
+            double averageLength = Math.max(1.0, (double) liveLength / liveCount);
+            double k1 = settings.k1();
+            double b = settings.b();
+            for (int term : queryTerms) {
+                int frequency = documentFrequencies[term];
+                if (frequency == 0) {
+                    continue;
+                }
+                double idf = Math.log(1 + (liveCount - frequency + 0.5) / (frequency + 0.5));
+                int[] list = postings[term];
+                for (int i = 0, size = postingSizes[term]; i < size; i += 2) {
+                    int ordinal = list[i];
+                    if (!live.get(ordinal)) {
+                        continue;
+                    }
+                    int tf = list[i + 1];
+                    double norm = k1 * (1 - b + b * lengths[ordinal] / averageLength);
+                    if (scores[ordinal] == 0) {
+                        if (touchedCount == touched.length) {
+                            touched = Arrays.copyOf(touched, touchedCount * 2);
+                        }
+                        touched[touchedCount++] = ordinal;
+                    }
+                    scores[ordinal] += (float) (idf * tf * (k1 + 1) / (tf + norm));
+                }
+            }
+
+            // Positive float bits sort like the floats; the low half puts
+            // earlier ordinals first among equal scores
+            long[] ranked = new long[touchedCount];
+            for (int i = 0; i < touchedCount; i++) {
+                int ordinal = touched[i];
+                ranked[i] = (long) Float.floatToIntBits(scores[ordinal]) << 32 | (Integer.MAX_VALUE - ordinal);
+            }
+            Arrays.sort(ranked);
+            List<Document> documents = new ArrayList<>(Math.min(topK, touchedCount));
+            for (int i = touchedCount - 1; i >= 0 && documents.size() < topK; i--) {
+                int ordinal = Integer.MAX_VALUE - (int) ranked[i];
+                Chunk chunk = read(ordinal);
+                Map<String, Object> metadata = metadata(chunk);
+                if (filter.test(metadata)) {
+                    documents.add(Document.builder()
+                            .id(chunk.id())
+                            .text(chunk.text())
+                            .metadata(metadata)
+                            .score((double) scores[ordinal])
+                            .build());
+                }
+            }
+            return documents;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read lexical index segment", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Written to a temporary file and moved into place, like the manifest
+    void save() {
+        if (file == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(liveCount);
+                for (int ordinal = live.nextSetBit(0); ordinal >= 0; ordinal = live.nextSetBit(ordinal + 1)) {
+                    ByteBuffer record = readRecord(segment, offsets[ordinal], end(ordinal));
+                    out.write(record.array());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write lexical index " + file, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Closing deletes the segment; save first to keep the chunks
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            segment.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close lexical index segment: {}", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Lowercased runs of letters and digits, without stop words and
+    // single letters. Unknown terms are -1 unless create is set.
+    private int[] termIds(String text, boolean create) {
+        int[] ids = new int[16];
+        int count = 0;
+        StringBuilder term = new StringBuilder();
+        for (int i = 0, length = text.length(); i <= length; ) {
+            int codePoint = i < length ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+            } else if (!term.isEmpty()) {
+                String word = term.toString();
+                term.setLength(0);
+                if ((word.length() > 1 || Character.isDigit(word.charAt(0))) && !STOP_WORDS.contains(word)) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = create ? termId(word) : terms.get(word);
+                }
+            }
+            i += i < length ? Character.charCount(codePoint) : 1;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    private int termId(String word) {
+        int id = terms.get(word);
+        if (id >= 0) {
+            return id;
+        }
+        id = terms.size();
+        terms.put(word, id);
+        if (id == postings.length) {
+            postings = Arrays.copyOf(postings, id * 2);
+            postingSizes = Arrays.copyOf(postingSizes, id * 2);
+            documentFrequencies = Arrays.copyOf(documentFrequencies, id * 2);
+        }
+        return id;
+    }
+
+    private void appendPosting(int term, int ordinal, int frequency) {
+        int[] list = postings[term];
+        int size = postingSizes[term];
+        if (list == null) {
+            list = postings[term] = new int[4];
+        } else if (size + 2 > list.length) {
+            list = postings[term] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[size] = ordinal;
+        list[size + 1] = frequency;
+        postingSizes[term] = size + 2;
+    }
+
+    // Writes the record at the end of the segment and indexes the text under the next ordinal
+    private void append(String id, String text, ByteBuffer record) throws IOException {
+        int ordinal = ordinalCount;
+        if (ordinal == lengths.length) {
+            lengths = Arrays.copyOf(lengths, ordinal * 2);
+            offsets = Arrays.copyOf(offsets, ordinal * 2);
+        }
+        while (record.hasRemaining()) {
+            segment.write(record, segmentEnd + record.position());
+        }
+        offsets[ordinal] = segmentEnd;
+        segmentEnd += record.limit();
+        ordinalCount++;
+
+        int[] termIds = termIds(text, true);
+        Arrays.sort(termIds);
+        for (int i = 0; i < termIds.length; ) {
+            int j = i;
+            while (j < termIds.length && termIds[j] == termIds[i]) {
+                j++;
+            }
+            appendPosting(termIds[i], ordinal, j - i);
+            documentFrequencies[termIds[i]]++;
+            i = j;
+        }
+        lengths[ordinal] = termIds.length;
+        live.set(ordinal);
+        liveCount++;
+        liveLength += termIds.length;
+        ordinals.put(id, ordinal);
+    }
+
+    private void remove(int ordinal) throws IOException {
+        Chunk chunk = read(ordinal);
+        int[] termIds = termIds(chunk.text(), false);
+        Arrays.sort(termIds);
+        for (int i = 0; i < termIds.length; i++) {
+            if (i == 0 || termIds[i] != termIds[i - 1]) {
+                documentFrequencies[termIds[i]]--;
+            }
+        }
+        live.clear(ordinal);
+        liveCount--;
+        liveLength -= lengths[ordinal];
+        ordinals.put(chunk.id(), -1);
+    }
+
+    // Rebuilds the postings and a fresh segment from the live chunks once most ordinals are dead
+    private void compactIfSparse() throws IOException {
+        int dead = ordinalCount - liveCount;
+        if (dead < MIN_DEAD_TO_COMPACT || dead < liveCount) {
+            return;
+        }
+        FileChannel previous = segment;
+        long[] previousOffsets = offsets;
+        long previousEnd = segmentEnd;
+        int previousCount = ordinalCount;
+        BitSet survivors = (BitSet) live.clone();
+
+        segment = openSegment();
+        segmentEnd = 0;
+        offsets = new long[Math.max(256, survivors.cardinality())];
+        lengths = new int[offsets.length];
+        ordinalCount = 0;
+        live.clear();
+        liveCount = 0;
+        liveLength = 0;
+        ordinals.clear();
+        terms.clear();
+        Arrays.fill(postings, null);
+        Arrays.fill(postingSizes, 0);
+        Arrays.fill(documentFrequencies, 0);
+        try (previous) {
+            for (int ordinal = survivors.nextSetBit(0); ordinal >= 0; ordinal = survivors.nextSetBit(ordinal + 1)) {
+                long end = ordinal + 1 < previousCount ? previousOffsets[ordinal + 1] : previousEnd;
+                ByteBuffer record = readRecord(previous, previousOffsets[ordinal], end);
+                Chunk chunk = decode(record.duplicate());
+                append(chunk.id(), chunk.text(), record);
+            }
+        }
+    }
+
+    // Next to the saved file, or in the temporary directory when there is none
+    private FileChannel openSegment() throws IOException {
+        Path parent = file != null ? file.toAbsolutePath().getParent() : null;
+        Path path;
+        if (parent != null) {
+            Files.createDirectories(parent);
+            path = Files.createTempFile(parent, "lexical-", ".segment");
+        } else {
+            path = Files.createTempFile("lexical-", ".segment");
+        }
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    private long end(int ordinal) {
+        return ordinal + 1 < ordinalCount ? offsets[ordinal + 1] : segmentEnd;
+    }
+
+    private Chunk read(int ordinal) throws IOException {
+        return decode(readRecord(segment, offsets[ordinal], end(ordinal)));
+    }
+
+    private Map<String, Object> metadata(Chunk chunk) throws IOException {
+        return objectMapper.readValue(chunk.metadata(), METADATA);
+    }
+
+    private static ByteBuffer readRecord(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of lexical index segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static Chunk decode(ByteBuffer record) {
+        String id = new String(bytes(record), StandardCharsets.UTF_8);
+        String text = new String(bytes(record), StandardCharsets.UTF_8);
+        return new Chunk(id, text, bytes(record));
+    }
+
+    private static byte[] bytes(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    // The same layout in the segment and the saved file: each part is an int length and its bytes
+    private static ByteBuffer record(byte[] id, byte[] text, byte[] metadata) {
+        return ByteBuffer.allocate(12 + id.length + text.length + metadata.length)
+                .putInt(id.length).put(id)
+                .putInt(text.length).put(text)
+                .putInt(metadata.length).put(metadata)
+                .flip();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length in lexical index");
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Lexical index is cut short");
+        }
+        return bytes;
+    }
+
+    // String to int map with linear probing; get returns -1 when absent
+    private static final class Dictionary {
+        private String[] keys = new String[64];
+        private int[] values = new int[64];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        int get(String key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(key)) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(String key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != null && !keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == null) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        void clear() {
+            keys = new String[64];
+            values = new int[64];
+            size = 0;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(String key, int mask) {
+            int hash = key.hashCode() * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.oreilly.springaicourse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Fixed-width float32 vectors stored contiguously in a memory-mapped file.
+// The file is mapped in segments so it can grow past 2 GB and past the heap;
+// vector i lives at HEADER_BYTES + i * dimensions * 4, little-endian.
+class MappedVectorFile implements Closeable {
+    private static final int MAGIC = 0x56454331; // "VEC1"
+    private static final int HEADER_BYTES = 64;
+    private static final int COUNT_OFFSET = 8;
+    private static final long SEGMENT_BYTES = 32L * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int dimensions;
+    private final int vectorsPerSegment;
+    // Copy-on-write so readers never see a half-grown list
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final List<FloatBuffer> views = new CopyOnWriteArrayList<>();
+    private volatile int size;
+
+    private MappedVectorFile(Path file, FileChannel channel, int dimensions, int size) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.dimensions = dimensions;
+        this.size = size;
+        this.vectorsPerSegment = (int) Math.max(1, SEGMENT_BYTES / ((long) dimensions * Float.BYTES));
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        for (int segment = 0; segment * (long) vectorsPerSegment < size; segment++) {
+            mapSegment(segment);
+        }
+    }
+
+    static MappedVectorFile create(Path file, int dimensions) {
+        try {
+            FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            var vectors = new MappedVectorFile(file, channel, dimensions, 0);
+            vectors.header.putInt(0, MAGIC).putInt(4, dimensions).putInt(COUNT_OFFSET, 0);
+            return vectors;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create vector file " + file, e);
+        }
+    }
+
+    static MappedVectorFile open(Path file) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IllegalStateException("Not a vector file: " + file);
+            }
+            return new MappedVectorFile(file, channel, header.getInt(4), header.getInt(COUNT_OFFSET));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open vector file " + file, e);
+        }
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Not thread-safe; callers serialize writes
+    int append(float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException(
+                    "Expected " + dimensions + " dimensions but got " + vector.length);
+        }
+        int slot = size;
+        int segment = slot / vectorsPerSegment;
+        while (views.size() <= segment) {
+            mapSegment(views.size());
+        }
+        views.get(segment).put((slot % vectorsPerSegment) * dimensions, vector);
+        size = slot + 1;
+        header.putInt(COUNT_OFFSET, size);
+        return slot;
+    }
+
+    void read(int slot, float[] target) {
+        views.get(slot / vectorsPerSegment).get((slot % vectorsPerSegment) * dimensions, target, 0, dimensions);
+    }
+
+    // Dot product of query with the vector in slot, scored in place
+    float dot(int slot, float[] query, SimilarityKernel kernel) {
+        return kernel.dot(query, segments.get(slot / vectorsPerSegment),
+                (slot % vectorsPerSegment) * dimensions * Float.BYTES);
+    }
+
+    void force() {
+        segments.forEach(MappedByteBuffer::force);
+        header.force();
+    }
+
+    private void mapSegment(int segment) {
+        long offset = HEADER_BYTES + segment * (long) vectorsPerSegment * dimensions * Float.BYTES;
+        long length = (long) vectorsPerSegment * dimensions * Float.BYTES;
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(buffer);
+            views.add(buffer.asFloatBuffer());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map segment " + segment + " of " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
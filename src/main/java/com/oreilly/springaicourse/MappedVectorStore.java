@@ -0,0 +1,722 @@
+package com.oreilly.springaicourse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentMetadata;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.observation.conventions.VectorStoreProvider;
+import org.springframework.ai.observation.conventions.VectorStoreSimilarityMetric;
+import org.springframework.ai.vectorstore.AbstractVectorStoreBuilder;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.observation.AbstractObservationVectorStore;
+import org.springframework.ai.vectorstore.observation.VectorStoreObservationContext;
+
+// Persistent replacement for SimpleVectorStore. Embeddings live in a
+// memory-mapped file of contiguous float32 vectors (MappedVectorFile); text
+// and metadata go to an append-only DocumentLog. Opening a store maps the
+// vectors and replays the log, so restarts need no re-embedding. Only ids,
+// metadata and norms stay on the heap; text is read back for search hits.
+// Replacing or deleting a document leaves a dead slot in both files; once
+// dead slots outnumber live ones, the files are rewritten with the live ones.
+// Search is an exact cosine scan unless an HNSW index is configured. The
+// graph is extended as documents are added, saved on close and loaded on
+// open; without a saved graph covering the vectors, the rest is built on a
+// background thread and searches scan exactly until it is ready.
+// With quantization enabled either path shortlists on compressed in-heap
+// codes and re-ranks the shortlist at full precision; product quantization
+// codes are saved on close and loaded on open, like the graph. Filters on the
+// bitmap-indexed keys ("source" and "type" by default) are resolved to a set
+// of slots before the search: a small set is scanned exactly, a large one
+// restricts the HNSW search, and no candidate goes through SpEL.
+public class MappedVectorStore extends AbstractObservationVectorStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedVectorStore.class);
+
+    static final String VECTORS_FILE = "vectors.f32";
+    static final String DOCUMENTS_FILE = "documents.log";
+    static final String GRAPH_FILE = "hnsw.graph";
+    static final String QUANTIZED_FILE = "pq.codes";
+    // Compacted files are written here and moved into place once complete
+    static final String COMPACTING_DIRECTORY = "compacting";
+    private static final String COMPACTED_MARKER = "complete";
+    static final int MIN_DEAD_TO_COMPACT = 1024;
+
+    // Filtered searches over at most this many slots scan them all exactly
+    // rather than walk the graph, which rarely finds enough matches in them
+    static final int PREFILTER_SCAN_LIMIT = 4096;
+
+    private record Slot(String id, long textOffset, int textLength, Map<String, Object> metadata) {}
+
+    private final Path directory;
+    private final EmbeddingModel queryEmbeddingModel;
+    private final SimilarityKernel kernel;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private DocumentLog log;
+    // Volatile for the thread building the graph; written under the lock
+    private volatile MappedVectorFile vectors;
+    private final List<Slot> slots = new ArrayList<>();
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private volatile float[] norms = new float[1024];
+    private final HnswIndex.Settings hnsw;
+    // Null while the graph is being built
+    private volatile HnswIndex index;
+    // Bumped to abandon a graph being built
+    private volatile int indexGeneration;
+    private final String quantization;
+    private final int rerankFactor;
+    private QuantizedVectors quantized;
+    private MetadataBitmaps bitmaps;
+    // Vectors compared against queries, for seeing how much of the store a search touches
+    final LongAdder vectorsScored = new LongAdder();
+
+    protected MappedVectorStore(Builder builder) {
+        super(builder);
+        this.directory = builder.directory;
+        this.queryEmbeddingModel = builder.queryEmbeddingModel != null
+                ? builder.queryEmbeddingModel : builder.getEmbeddingModel();
+        this.kernel = builder.kernel;
+        this.quantization = builder.quantization;
+        this.rerankFactor = builder.rerankFactor;
+        this.hnsw = builder.hnsw;
+        this.bitmaps = new MetadataBitmaps(builder.filterKeys);
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create vector store directory " + directory, e);
+        }
+        recoverCompaction();
+        Path vectorsFile = directory.resolve(VECTORS_FILE);
+        if (Files.exists(vectorsFile)) {
+            this.vectors = MappedVectorFile.open(vectorsFile);
+        }
+        this.log = new DocumentLog(directory.resolve(DOCUMENTS_FILE));
+        log.replay(this::replay);
+        if (vectors != null && !"none".equals(quantization)) {
+            quantized = QuantizedVectors.open(quantization, vectors.dimensions(),
+                    directory.resolve(QUANTIZED_FILE), vectors.size());
+            if (quantized.loaded() > 0) {
+                logger.info("Loaded {} quantized codes for {} vectors from {}", quantized.name(), quantized.loaded(),
+                        directory);
+            }
+            float[] vector = new float[vectors.dimensions()];
+            for (int slot = live.nextSetBit(quantized.loaded()); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                vectors.read(slot, vector);
+                quantized.addExisting(slot, vector);
+            }
+        }
+        if (hnsw != null) {
+            HnswIndex graph = vectors != null
+                    ? HnswIndex.load(directory.resolve(GRAPH_FILE), hnsw, new IndexedVectors(), kernel, vectors.size())
+                    : null;
+            if (graph != null) {
+                logger.info("Loaded HNSW graph of {} vectors from {}", graph.size(), directory);
+            }
+            buildIndex(graph != null ? graph : new HnswIndex(hnsw, new IndexedVectors(), kernel));
+        }
+        logger.info("Opened vector store at {} with {} documents ({} kernel, {} quantization)",
+                directory, size(), kernel.name(), quantization);
+    }
+
+    public static Builder builder(EmbeddingModel embeddingModel) {
+        return new Builder(embeddingModel);
+    }
+
+    public boolean containsAll(Collection<String> ids) {
+        lock.readLock().lock();
+        try {
+            return slotsById.keySet().containsAll(ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slotsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void doAdd(List<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        add(documents, embeddingModel.embed(documents, EmbeddingOptionsBuilder.builder().build(), batchingStrategy));
+    }
+
+    // Adds documents that are already embedded, for ShardedVectorStore
+    void add(List<Document> documents, List<float[]> embeddings) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < documents.size(); i++) {
+                Document document = documents.get(i);
+                float[] embedding = embeddings.get(i);
+                if (vectors == null) {
+                    vectors = MappedVectorFile.create(directory.resolve(VECTORS_FILE), embedding.length);
+                    createQuantized();
+                }
+                // Re-adding an id replaces the earlier version
+                removeSlot(document.getId());
+
+                byte[] text = Objects.requireNonNullElse(document.getText(), "").getBytes(StandardCharsets.UTF_8);
+                byte[] metadata = objectMapper.writeValueAsBytes(document.getMetadata());
+                int slot = vectors.append(embedding);
+                long textOffset = log.add(slot, document.getId(), text, metadata);
+                register(slot, new Slot(document.getId(), textOffset, text.length,
+                        new HashMap<>(document.getMetadata())), kernel.norm(embedding));
+                HnswIndex graph = index;
+                if (graph != null) {
+                    graph.insert(slot);
+                }
+                if (quantized != null) {
+                    quantized.add(slot, embedding);
+                }
+            }
+            compactIfSparse();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            log.flush();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void doDelete(List<String> idList) {
+        lock.writeLock().lock();
+        try {
+            for (String id : idList) {
+                if (removeSlot(id)) {
+                    log.delete(id);
+                }
+            }
+            compactIfSparse();
+        } finally {
+            log.flush();
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void doDelete(Filter.Expression filterExpression) {
+        List<String> ids = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            MetadataBitmaps.Selection selection = bitmaps.select(filterExpression, live);
+            BitSet candidates = selection != null ? selection.slots() : live;
+            Predicate<Map<String, Object>> filter = selection != null && selection.exact()
+                    ? metadata -> true : MetadataFilter.predicate(filterExpression);
+            for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+                Slot info = slots.get(slot);
+                if (filter.test(info.metadata())) {
+                    ids.add(info.id());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        doDelete(ids);
+    }
+
+    @Override
+    public List<Document> doSimilaritySearch(SearchRequest request) {
+        return search(request, queryEmbeddingModel.embed(request.getQuery()));
+    }
+
+    // Search with a query that is already embedded, so that shards of a
+    // ShardedVectorStore share one embedding call
+    List<Document> search(SearchRequest request, float[] query) {
+        float queryNorm = kernel.norm(query);
+
+        lock.readLock().lock();
+        int[] scored = new int[1];
+        try {
+            if (vectors == null || queryNorm == 0) {
+                return List.of();
+            }
+            // The slots a filter can match, from the bitmaps where possible;
+            // only what they cannot decide is left to SpEL
+            MetadataBitmaps.Selection selection = request.hasFilterExpression()
+                    ? bitmaps.select(request.getFilterExpression(), live) : null;
+            BitSet candidates = selection != null ? selection.slots() : live;
+            Predicate<Map<String, Object>> filter = !request.hasFilterExpression()
+                    || selection != null && selection.exact()
+                    ? null : MetadataFilter.predicate(request.getFilterExpression());
+            // Replaced and deleted slots stay in the graph but are never returned
+            IntPredicate accept = filter == null
+                    ? candidates::get
+                    : slot -> candidates.get(slot) && filter.test(slots.get(slot).metadata());
+            HnswIndex graph = index;
+            boolean useGraph = graph != null
+                    && (selection == null || candidates.cardinality() > PREFILTER_SCAN_LIMIT);
+
+            MappedVectorFile file = vectors;
+            float[] slotNorms = norms;
+            // Scored in place in the mapped file
+            HnswIndex.Scorer exact = slot -> {
+                scored[0]++;
+                float denominator = queryNorm * slotNorms[slot];
+                return denominator == 0 ? 0 : file.dot(slot, query, kernel) / denominator;
+            };
+            int topK = request.getTopK();
+
+            TopK top;
+            if (quantized == null) {
+                top = useGraph
+                        ? graph.search(exact, topK, hnsw.efSearch(), accept)
+                        : scan(exact, topK, candidates, accept);
+            } else {
+                QuantizedVectors.Scorer codes = quantized.scorer(query);
+                HnswIndex.Scorer approximate = slot -> {
+                    scored[0]++;
+                    float denominator = queryNorm * slotNorms[slot];
+                    return denominator == 0 ? 0 : codes.dot(slot) / denominator;
+                };
+                int shortlist = topK * rerankFactor;
+                TopK shortlisted = useGraph
+                        ? graph.search(approximate, shortlist, hnsw.efSearch(), accept)
+                        : scan(approximate, shortlist, candidates, accept);
+                top = rerank(shortlisted, exact, topK);
+            }
+            return toDocuments(top, request.getSimilarityThreshold());
+        } finally {
+            lock.readLock().unlock();
+            vectorsScored.add(scored[0]);
+        }
+    }
+
+    // False while the graph is being built and searches scan exactly
+    boolean indexReady() {
+        return hnsw == null || index != null;
+    }
+
+    // Heap used by quantized codes, or 0 when vectors are only memory-mapped
+    public long quantizedBytes() {
+        lock.readLock().lock();
+        try {
+            return quantized != null ? quantized.memoryBytes() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Copies a consistent view of the store into another directory
+    public void snapshot(Path target) {
+        lock.writeLock().lock();
+        try {
+            Files.createDirectories(target);
+            log.flush();
+            log.force();
+            if (vectors != null) {
+                vectors.force();
+                Files.copy(directory.resolve(VECTORS_FILE), target.resolve(VECTORS_FILE),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.copy(directory.resolve(DOCUMENTS_FILE), target.resolve(DOCUMENTS_FILE),
+                    StandardCopyOption.REPLACE_EXISTING);
+            HnswIndex graph = index;
+            if (graph != null) {
+                graph.save(target.resolve(GRAPH_FILE));
+            } else {
+                Files.deleteIfExists(target.resolve(GRAPH_FILE));
+            }
+            Files.deleteIfExists(target.resolve(QUANTIZED_FILE));
+            if (quantized != null) {
+                quantized.save(target.resolve(QUANTIZED_FILE));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot snapshot vector store to " + target, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public VectorStoreObservationContext.Builder createObservationContextBuilder(String operationName) {
+        return VectorStoreObservationContext.builder(VectorStoreProvider.SIMPLE.value(), operationName)
+                .collectionName(directory.toString())
+                .similarityMetric(VectorStoreSimilarityMetric.COSINE.value());
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            indexGeneration++;
+            HnswIndex graph = index;
+            if (graph != null && vectors != null) {
+                graph.save(directory.resolve(GRAPH_FILE));
+            }
+            if (quantized != null) {
+                quantized.save(directory.resolve(QUANTIZED_FILE));
+            }
+            log.close();
+            if (vectors != null) {
+                vectors.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void replay(DocumentLog.Entry entry) {
+        if (entry instanceof DocumentLog.Added added) {
+            // A vector that never reached the file means the add was interrupted
+            if (vectors == null || added.slot() >= vectors.size()) {
+                return;
+            }
+            removeSlot(added.id());
+            float[] embedding = new float[vectors.dimensions()];
+            vectors.read(added.slot(), embedding);
+            register(added.slot(), new Slot(added.id(), added.textOffset(), added.textLength(),
+                    readMetadata(added.metadata())), kernel.norm(embedding));
+        } else if (entry instanceof DocumentLog.Deleted deleted) {
+            removeSlot(deleted.id());
+        }
+    }
+
+    // Dead slots in the files, left by replaced and deleted documents
+    int deadSlots() {
+        lock.readLock().lock();
+        try {
+            return vectors != null ? vectors.size() - slotsById.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Called under the write lock, like LexicalIndex's compaction
+    private void compactIfSparse() {
+        int dead = vectors != null ? vectors.size() - slotsById.size() : 0;
+        if (dead >= MIN_DEAD_TO_COMPACT && dead > slotsById.size()) {
+            compact();
+        }
+    }
+
+    // Copies the live slots, renumbered from 0, into new files in the
+    // compacting directory, marks them complete and moves them into place.
+    // The graph and the quantized codes refer to the old slot numbers and
+    // are rebuilt.
+    private void compact() {
+        long started = System.nanoTime();
+        int before = vectors.size();
+        Path work = directory.resolve(COMPACTING_DIRECTORY);
+        List<Slot> kept = new ArrayList<>(slotsById.size());
+        float[] keptNorms = new float[Math.max(1024, slotsById.size())];
+        try {
+            // The copies read the text of documents still buffered in the log
+            log.flush();
+            deleteCompacting(work);
+            Files.createDirectories(work);
+            try (var compactedVectors = MappedVectorFile.create(work.resolve(VECTORS_FILE), vectors.dimensions());
+                 var compactedLog = new DocumentLog(work.resolve(DOCUMENTS_FILE))) {
+                float[] vector = new float[vectors.dimensions()];
+                for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                    Slot info = slots.get(slot);
+                    vectors.read(slot, vector);
+                    int moved = compactedVectors.append(vector);
+                    long textOffset = compactedLog.add(moved, info.id(),
+                            log.read(info.textOffset(), info.textLength()),
+                            objectMapper.writeValueAsBytes(info.metadata()));
+                    kept.add(new Slot(info.id(), textOffset, info.textLength(), info.metadata()));
+                    keptNorms[moved] = norms[slot];
+                }
+            }
+            Files.createFile(work.resolve(COMPACTED_MARKER));
+            indexGeneration++;
+            index = null;
+            log.close();
+            vectors.close();
+            recoverCompaction();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact vector store " + directory, e);
+        }
+
+        vectors = MappedVectorFile.open(directory.resolve(VECTORS_FILE));
+        log = new DocumentLog(directory.resolve(DOCUMENTS_FILE));
+        slots.clear();
+        slotsById.clear();
+        live.clear();
+        bitmaps = new MetadataBitmaps(bitmaps.keys());
+        norms = new float[keptNorms.length];
+        for (int slot = 0; slot < kept.size(); slot++) {
+            register(slot, kept.get(slot), keptNorms[slot]);
+        }
+        createQuantized();
+        float[] vector = new float[vectors.dimensions()];
+        for (int slot = 0; quantized != null && slot < kept.size(); slot++) {
+            vectors.read(slot, vector);
+            quantized.addExisting(slot, vector);
+        }
+        if (hnsw != null) {
+            buildIndex(new HnswIndex(hnsw, new IndexedVectors(), kernel));
+        }
+        logger.info("Compacted vector store at {} from {} to {} slots in {} ms", directory, before, kept.size(),
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    // Finishes a compaction that was marked complete, or drops one that was
+    // not; the files in the store directory are intact either way
+    private void recoverCompaction() {
+        Path work = directory.resolve(COMPACTING_DIRECTORY);
+        if (!Files.isDirectory(work)) {
+            return;
+        }
+        try {
+            if (Files.exists(work.resolve(COMPACTED_MARKER))) {
+                Files.deleteIfExists(directory.resolve(GRAPH_FILE));
+                Files.deleteIfExists(directory.resolve(QUANTIZED_FILE));
+                for (String name : List.of(VECTORS_FILE, DOCUMENTS_FILE)) {
+                    if (Files.exists(work.resolve(name))) {
+                        Files.move(work.resolve(name), directory.resolve(name),
+                                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+            deleteCompacting(work);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot finish compacting vector store " + directory, e);
+        }
+    }
+
+    private static void deleteCompacting(Path work) throws IOException {
+        for (String name : List.of(VECTORS_FILE, DOCUMENTS_FILE, COMPACTED_MARKER)) {
+            Files.deleteIfExists(work.resolve(name));
+        }
+        Files.deleteIfExists(work);
+    }
+
+    // Inserts the live slots the graph lacks on a background thread, then
+    // publishes it. Called from the constructor or under the write lock.
+    private void buildIndex(HnswIndex graph) {
+        int generation = ++indexGeneration;
+        int from = graph.span();
+        int end = vectors != null ? vectors.size() : 0;
+        BitSet pending = live.get(from, Math.max(from, end));
+        if (pending.isEmpty()) {
+            index = graph;
+            return;
+        }
+        index = null;
+        Thread builder = new Thread(() -> {
+            long started = System.nanoTime();
+            try {
+                for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+                    if (generation != indexGeneration) {
+                        return;
+                    }
+                    graph.insert(from + i);
+                }
+                lock.writeLock().lock();
+                try {
+                    if (generation != indexGeneration) {
+                        return;
+                    }
+                    // Documents added while the graph was being built
+                    for (int slot = live.nextSetBit(end); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                        graph.insert(slot);
+                    }
+                    index = graph;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                logger.info("Built HNSW graph for {} vectors at {} in {} ms", pending.cardinality(), directory,
+                        (System.nanoTime() - started) / 1_000_000);
+            } catch (RuntimeException e) {
+                if (generation == indexGeneration) {
+                    logger.error("Could not build the HNSW graph at {}; searches stay exact", directory, e);
+                }
+            }
+        }, "hnsw-build-" + directory.getFileName());
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    private void createQuantized() {
+        if (!"none".equals(quantization)) {
+            quantized = QuantizedVectors.create(quantization, vectors.dimensions());
+        }
+    }
+
+    private TopK scan(HnswIndex.Scorer scorer, int k, BitSet candidates, IntPredicate accept) {
+        TopK top = new TopK(k);
+        for (int slot = candidates.nextSetBit(0); slot >= 0; slot = candidates.nextSetBit(slot + 1)) {
+            if (accept.test(slot)) {
+                top.offer(slot, scorer.score(slot));
+            }
+        }
+        return top;
+    }
+
+    private static TopK rerank(TopK candidates, HnswIndex.Scorer exact, int k) {
+        int[] ids = new int[candidates.size()];
+        int count = candidates.drainDescending(ids, new float[candidates.size()]);
+        TopK top = new TopK(k);
+        for (int i = 0; i < count; i++) {
+            top.offer(ids[i], exact.score(ids[i]));
+        }
+        return top;
+    }
+
+    private void register(int slot, Slot info, float norm) {
+        while (slots.size() <= slot) {
+            slots.add(null);
+        }
+        slots.set(slot, info);
+        slotsById.put(info.id(), slot);
+        live.set(slot);
+        bitmaps.add(slot, info.metadata());
+        if (slot >= norms.length) {
+            norms = Arrays.copyOf(norms, Math.max(slot + 1, norms.length * 2));
+        }
+        norms[slot] = norm;
+    }
+
+    private boolean removeSlot(String id) {
+        Integer slot = slotsById.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        live.clear(slot);
+        bitmaps.remove(slot, slots.get(slot).metadata());
+        slots.set(slot, null);
+        return true;
+    }
+
+    private List<Document> toDocuments(TopK top, double threshold) {
+        int[] ids = new int[top.size()];
+        float[] scores = new float[top.size()];
+        int count = top.drainDescending(ids, scores);
+        List<Document> documents = new ArrayList<>(count);
+        for (int i = 0; i < count && scores[i] >= threshold; i++) {
+            Slot info = slots.get(ids[i]);
+            Map<String, Object> metadata = new HashMap<>(info.metadata());
+            metadata.put(DocumentMetadata.DISTANCE.value(), 1.0 - scores[i]);
+            documents.add(Document.builder()
+                    .id(info.id())
+                    .text(log.readText(info.textOffset(), info.textLength()))
+                    .metadata(metadata)
+                    .score((double) scores[i])
+                    .build());
+        }
+        return documents;
+    }
+
+    private Map<String, Object> readMetadata(byte[] json) {
+        try {
+            return objectMapper.readValue(json, new TypeReference<HashMap<String, Object>>() {});
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Exposes the mapped vectors and heap norms to the HNSW graph
+    private class IndexedVectors implements HnswIndex.Vectors {
+        @Override
+        public int dimensions() {
+            return vectors.dimensions();
+        }
+
+        @Override
+        public void read(int id, float[] target) {
+            vectors.read(id, target);
+        }
+
+        @Override
+        public float dot(float[] query, int id) {
+            return vectors.dot(id, query, kernel);
+        }
+
+        @Override
+        public float norm(int id) {
+            return norms[id];
+        }
+    }
+
+    public static final class Builder extends AbstractVectorStoreBuilder<Builder> {
+        private Path directory = Path.of("data", "vectorstore");
+        private EmbeddingModel queryEmbeddingModel;
+        private HnswIndex.Settings hnsw;
+        private SimilarityKernel kernel = SimilarityKernel.best();
+        private String quantization = "none";
+        private int rerankFactor = 8;
+        private Set<String> filterKeys = Set.of("source", "type");
+
+        private Builder(EmbeddingModel embeddingModel) {
+            super(embeddingModel);
+        }
+
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        // Embeds search queries; defaults to the model that embeds documents
+        public Builder queryEmbeddingModel(EmbeddingModel queryEmbeddingModel) {
+            this.queryEmbeddingModel = queryEmbeddingModel;
+            return this;
+        }
+
+        public Builder kernel(SimilarityKernel kernel) {
+            this.kernel = kernel;
+            return this;
+        }
+
+        // "none", "int8" or "pq"; the top k * rerankFactor approximate
+        // matches are re-scored at full precision
+        public Builder quantization(String quantization, int rerankFactor) {
+            this.quantization = quantization;
+            this.rerankFactor = Math.max(1, rerankFactor);
+            return this;
+        }
+
+        // Null keeps the exact scan
+        public Builder hnsw(HnswIndex.Settings hnsw) {
+            this.hnsw = hnsw;
+            return this;
+        }
+
+        // Metadata keys with per-value bitmaps for filtering; suits keys with
+        // few distinct values
+        public Builder filterKeys(String... keys) {
+            this.filterKeys = Set.of(keys);
+            return this;
+        }
+
+        @Override
+        public MappedVectorStore build() {
+            return new MappedVectorStore(this);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.oreilly.springaicourse;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.ai.vectorstore.filter.Filter;
+
+// One bitmap of slots per value of a few low-cardinality metadata keys
+// ("source", "type"), so that a filter on them becomes a handful of bitmap
+// operations instead of a SpEL evaluation per candidate. Only string values
+// are indexed. Equality, in, their negations and and/or/not over them are
+// answered exactly, with the same results as the SpEL filter: a chunk
+// without the key matches != and nin, as in SimpleVectorStore. Anything else
+// narrows the candidates as far as it can and leaves the rest of the
+// expression to the SpEL filter. Not thread-safe; MappedVectorStore guards
+// it with its lock.
+class MetadataBitmaps {
+
+    // The slots that can match, and whether they all do
+    record Selection(BitSet slots, boolean exact) {}
+
+    private final Set<String> keys;
+    private final Map<String, Map<String, BitSet>> bitmaps = new HashMap<>();
+
+    MetadataBitmaps(Set<String> keys) {
+        this.keys = Set.copyOf(keys);
+    }
+
+    Set<String> keys() {
+        return keys;
+    }
+
+    void add(int slot, Map<String, Object> metadata) {
+        for (String key : keys) {
+            if (metadata.get(key) instanceof String value) {
+                bitmaps.computeIfAbsent(key, k -> new HashMap<>()).computeIfAbsent(value, v -> new BitSet()).set(slot);
+            }
+        }
+    }
+
+    void remove(int slot, Map<String, Object> metadata) {
+        for (String key : keys) {
+            if (metadata.get(key) instanceof String value) {
+                Map<String, BitSet> values = bitmaps.get(key);
+                BitSet slots = values != null ? values.get(value) : null;
+                if (slots != null) {
+                    slots.clear(slot);
+                    if (slots.isEmpty()) {
+                        values.remove(value);
+                    }
+                }
+            }
+        }
+    }
+
+    // The live slots the expression can match, or null when the bitmaps do
+    // not help
+    Selection select(Filter.Expression expression, BitSet live) {
+        Selection selection = evaluate(expression, live);
+        if (selection == null) {
+            return null;
+        }
+        BitSet slots = (BitSet) selection.slots().clone();
+        slots.and(live);
+        return new Selection(slots, selection.exact());
+    }
+
+    // Null means "every slot, inexact"
+    private Selection evaluate(Filter.Operand operand, BitSet live) {
+        if (operand instanceof Filter.Group group) {
+            return evaluate(group.content(), live);
+        }
+        if (!(operand instanceof Filter.Expression expression)) {
+            return null;
+        }
+        return switch (expression.type()) {
+            case EQ, IN -> matching(expression);
+            case NE, NIN -> {
+                Selection matching = matching(expression);
+                yield matching != null ? new Selection(andNot(live, matching.slots()), true) : null;
+            }
+            case AND -> {
+                Selection left = evaluate(expression.left(), live);
+                Selection right = evaluate(expression.right(), live);
+                if (left == null || right == null) {
+                    Selection known = left != null ? left : right;
+                    yield known != null ? new Selection(known.slots(), false) : null;
+                }
+                BitSet both = (BitSet) left.slots().clone();
+                both.and(right.slots());
+                yield new Selection(both, left.exact() && right.exact());
+            }
+            case OR -> {
+                Selection left = evaluate(expression.left(), live);
+                Selection right = evaluate(expression.right(), live);
+                if (left == null || right == null) {
+                    yield null;
+                }
+                BitSet either = (BitSet) left.slots().clone();
+                either.or(right.slots());
+                yield new Selection(either, left.exact() && right.exact());
+            }
+            case NOT -> {
+                Selection inner = evaluate(expression.left(), live);
+                yield inner != null && inner.exact() ? new Selection(andNot(live, inner.slots()), true) : null;
+            }
+            default -> null;
+        };
+    }
+
+    // Slots whose value for the key is one of the expression's string values
+    private Selection matching(Filter.Expression expression) {
+        if (!(expression.left() instanceof Filter.Key key) || !(expression.right() instanceof Filter.Value value)
+                || value.value() == null) {
+            return null;
+        }
+        String name = unquote(key.key());
+        if (!keys.contains(name)) {
+            return null;
+        }
+        List<?> values = value.value() instanceof List<?> list ? list : List.of(value.value());
+        Map<String, BitSet> byValue = bitmaps.getOrDefault(name, Map.of());
+        BitSet slots = new BitSet();
+        for (Object v : values) {
+            if (!(v instanceof String text)) {
+                return null;
+            }
+            BitSet matching = byValue.get(text);
+            if (matching != null) {
+                slots.or(matching);
+            }
+        }
+        return new Selection(slots, true);
+    }
+
+    private static BitSet andNot(BitSet live, BitSet excluded) {
+        BitSet slots = (BitSet) live.clone();
+        slots.andNot(excluded);
+        return slots;
+    }
+
+    // The text parser keeps quotes around quoted identifiers
+    private static String unquote(String key) {
+        if (key.length() > 1 && (key.startsWith("'") && key.endsWith("'") || key.startsWith("\"") && key.endsWith("\""))) {
+            return key.substring(1, key.length() - 1);
+        }
+        return key;
+    }
+}
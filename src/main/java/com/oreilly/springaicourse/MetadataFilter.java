@@ -0,0 +1,35 @@
+package com.oreilly.springaicourse;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.filter.FilterExpressionConverter;
+import org.springframework.ai.vectorstore.filter.converter.SimpleVectorStoreFilterExpressionConverter;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+// Evaluates a vector store filter expression against in-heap metadata, the
+// way SimpleVectorStore does: converted to SpEL and parsed once per request
+final class MetadataFilter {
+    private static final ExpressionParser expressionParser = new SpelExpressionParser();
+    private static final FilterExpressionConverter filterExpressionConverter =
+            new SimpleVectorStoreFilterExpressionConverter();
+
+    private MetadataFilter() {
+    }
+
+    // A null expression accepts everything
+    static Predicate<Map<String, Object>> predicate(Filter.Expression expression) {
+        if (expression == null) {
+            return metadata -> true;
+        }
+        var spel = expressionParser.parseExpression(filterExpressionConverter.convertExpression(expression));
+        return metadata -> {
+            StandardEvaluationContext context = new StandardEvaluationContext();
+            context.setVariable("metadata", metadata);
+            return Boolean.TRUE.equals(spel.getValue(context, Boolean.class));
+        };
+    }
+}
@@ -0,0 +1,392 @@
+package com.oreilly.springaicourse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Product quantization: each vector is cut into subvectors of a few
+// dimensions and every subvector is replaced by the index of its nearest
+// centroid in a 256-entry codebook, one byte each. With 4-dimension
+// subvectors that is 16x smaller than float32. Codebooks are trained with
+// k-means on a background thread once enough vectors have arrived, and are
+// swapped in by the next add or search; until then vectors are kept as is
+// and scored exactly. The codebooks and codes are saved with the store, so
+// reopening it neither retrains nor re-encodes.
+class ProductQuantizedVectors implements QuantizedVectors {
+    private static final Logger logger = LoggerFactory.getLogger(ProductQuantizedVectors.class);
+
+    private static final int MAGIC = 0x50514331; // "PQC1"
+    private static final int CENTROIDS = 256;
+    private static final int TRAINING_ITERATIONS = 8;
+
+    // Codebooks and the codes of the first size pending vectors
+    private record Trained(float[][] codebooks, byte[] codes, int size) {}
+
+    private final int dimensions;
+    private final int subspaceDimensions;
+    private final int subspaces;
+    private final int trainingSize;
+
+    // codebooks[j] = CENTROIDS centroids of subspace j, flattened
+    private float[][] codebooks;
+    private byte[] codes;
+    private int count;
+    private int loaded;
+    // Vectors waiting for the codebooks, in slot order: pendingSlots[i] is
+    // stored at pendingVectors[i * dimensions]
+    private float[] pendingVectors;
+    private int[] pendingSlots;
+    private int pendingCount;
+    private Thread trainer;
+    private volatile Trained trained;
+
+    ProductQuantizedVectors(int dimensions, int subspaceDimensions, int trainingSize) {
+        this.dimensions = dimensions;
+        this.subspaceDimensions = subspaceDimensions;
+        this.subspaces = (dimensions + subspaceDimensions - 1) / subspaceDimensions;
+        this.trainingSize = Math.max(trainingSize, CENTROIDS);
+        this.codes = new byte[subspaces * 256];
+        this.pendingVectors = new float[64 * dimensions];
+        this.pendingSlots = new int[64];
+    }
+
+    @Override
+    public String name() {
+        return "pq" + subspaceDimensions;
+    }
+
+    synchronized boolean isTrained() {
+        return codebooks != null;
+    }
+
+    // Waits for a running training to finish and swaps it in
+    void awaitTraining() throws InterruptedException {
+        Thread running;
+        synchronized (this) {
+            running = trainer;
+        }
+        if (running != null) {
+            running.join();
+        }
+        synchronized (this) {
+            swapInCodebooks();
+        }
+    }
+
+    @Override
+    public synchronized void add(int slot, float[] vector) {
+        count = Math.max(count, slot + 1);
+        swapInCodebooks();
+        if (codebooks != null) {
+            encode(slot, vector, 0);
+            return;
+        }
+        if (pendingCount == pendingSlots.length) {
+            pendingSlots = Arrays.copyOf(pendingSlots, 2 * pendingCount);
+            pendingVectors = Arrays.copyOf(pendingVectors, 2 * pendingCount * dimensions);
+        }
+        pendingSlots[pendingCount] = slot;
+        System.arraycopy(vector, 0, pendingVectors, pendingCount * dimensions, dimensions);
+        pendingCount++;
+        if (pendingCount == trainingSize && trainer == null) {
+            startTraining();
+        }
+    }
+
+    // Vectors replayed on open would all pile up in pendingVectors while the
+    // codebooks train; waiting for them caps the copy at trainingSize vectors
+    @Override
+    public void addExisting(int slot, float[] vector) {
+        add(slot, vector);
+        try {
+            awaitTraining();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training product quantization codebooks", e);
+        }
+    }
+
+    @Override
+    public synchronized int loaded() {
+        return loaded;
+    }
+
+    // Codebooks and codes, written to a temporary file and moved into place.
+    // A training under way is waited for, so the store does not close
+    // without the codebooks it has paid for; before that, nothing is saved.
+    @Override
+    public void save(Path file) {
+        try {
+            awaitTraining();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training product quantization codebooks", e);
+        }
+        synchronized (this) {
+            write(file);
+        }
+    }
+
+    private void write(Path file) {
+        try {
+            if (codebooks == null) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(dimensions);
+                out.writeInt(subspaceDimensions);
+                out.writeInt(count);
+                for (float[] codebook : codebooks) {
+                    for (float value : codebook) {
+                        out.writeFloat(value);
+                    }
+                }
+                out.write(codes, 0, count * subspaces);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write product quantization codes " + file, e);
+        }
+    }
+
+    // The saved codes, or null when there are none, they were made with
+    // other settings or they cover more vectors than there are now
+    static ProductQuantizedVectors load(Path file, int dimensions, int subspaceDimensions, int trainingSize,
+                                        int maxSpan) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != dimensions || in.readInt() != subspaceDimensions) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count > maxSpan) {
+                return null;
+            }
+            var vectors = new ProductQuantizedVectors(dimensions, subspaceDimensions, trainingSize);
+            float[][] codebooks = new float[vectors.subspaces][];
+            for (int j = 0; j < codebooks.length; j++) {
+                int length = Math.min(subspaceDimensions, dimensions - j * subspaceDimensions);
+                codebooks[j] = new float[CENTROIDS * length];
+                for (int i = 0; i < codebooks[j].length; i++) {
+                    codebooks[j][i] = in.readFloat();
+                }
+            }
+            vectors.codes = new byte[Math.max(count, 256) * vectors.subspaces];
+            in.readFully(vectors.codes, 0, count * vectors.subspaces);
+            vectors.codebooks = codebooks;
+            vectors.count = count;
+            vectors.loaded = count;
+            vectors.pendingVectors = null;
+            vectors.pendingSlots = null;
+            return vectors;
+        } catch (NoSuchFileException | EOFException e) {
+            // Missing, or cut short by a crash while it was being written
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read product quantization codes " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized Scorer scorer(float[] query) {
+        swapInCodebooks();
+        if (codebooks == null) {
+            float[] vectors = pendingVectors;
+            int[] slots = pendingSlots;
+            int size = pendingCount;
+            return slot -> {
+                int offset = Arrays.binarySearch(slots, 0, size, slot) * dimensions;
+                float sum = 0;
+                for (int d = 0; d < dimensions; d++) {
+                    sum += query[d] * vectors[offset + d];
+                }
+                return sum;
+            };
+        }
+        // Dot product of each query subvector with every centroid, so a
+        // stored vector scores with one table lookup per subspace
+        float[] table = new float[subspaces * CENTROIDS];
+        for (int j = 0; j < subspaces; j++) {
+            int start = j * subspaceDimensions;
+            int length = Math.min(subspaceDimensions, dimensions - start);
+            for (int c = 0; c < CENTROIDS; c++) {
+                float sum = 0;
+                for (int d = 0; d < length; d++) {
+                    sum += query[start + d] * codebooks[j][c * length + d];
+                }
+                table[j * CENTROIDS + c] = sum;
+            }
+        }
+        byte[] stored = codes;
+        return slot -> {
+            int offset = slot * subspaces;
+            float sum = 0;
+            for (int j = 0; j < subspaces; j++) {
+                sum += table[j * CENTROIDS + (stored[offset + j] & 0xFF)];
+            }
+            return sum;
+        };
+    }
+
+    @Override
+    public synchronized long memoryBytes() {
+        if (codebooks == null) {
+            return (long) pendingCount * dimensions * Float.BYTES;
+        }
+        return (long) count * subspaces + (long) CENTROIDS * dimensions * Float.BYTES;
+    }
+
+    // Trains off the caller's thread, so the store's write lock is not held
+    // for the k-means iterations. Pending vectors are only ever appended, so
+    // the first size of them can be read without the lock.
+    private void startTraining() {
+        int size = pendingCount;
+        float[] sample = pendingVectors;
+        trainer = new Thread(() -> {
+            long started = System.nanoTime();
+            try {
+                float[][] trainedCodebooks = train(sample, size);
+                byte[] sampleCodes = new byte[size * subspaces];
+                for (int i = 0; i < size; i++) {
+                    encode(trainedCodebooks, sample, i * dimensions, sampleCodes, i * subspaces);
+                }
+                trained = new Trained(trainedCodebooks, sampleCodes, size);
+                logger.debug("Trained product quantization codebooks on {} vectors in {} ms", size,
+                        (System.nanoTime() - started) / 1_000_000);
+            } catch (RuntimeException e) {
+                logger.error("Could not train product quantization codebooks; vectors stay exact", e);
+            }
+        }, "pq-training");
+        trainer.setDaemon(true);
+        trainer.start();
+    }
+
+    // Installs finished codebooks, encoding the vectors added meanwhile
+    private void swapInCodebooks() {
+        Trained result = trained;
+        if (result == null || codebooks != null) {
+            return;
+        }
+        codebooks = result.codebooks();
+        for (int i = 0; i < pendingCount; i++) {
+            int slot = pendingSlots[i];
+            if (i < result.size()) {
+                ensureCapacity(slot);
+                System.arraycopy(result.codes(), i * subspaces, codes, slot * subspaces, subspaces);
+            } else {
+                encode(slot, pendingVectors, i * dimensions);
+            }
+        }
+        pendingVectors = null;
+        pendingSlots = null;
+        pendingCount = 0;
+        trained = null;
+    }
+
+    private void encode(int slot, float[] source, int offset) {
+        ensureCapacity(slot);
+        encode(codebooks, source, offset, codes, slot * subspaces);
+    }
+
+    private void ensureCapacity(int slot) {
+        if ((long) (slot + 1) * subspaces > codes.length) {
+            codes = Arrays.copyOf(codes, Math.multiplyExact(Math.max(slot + 1, 2 * codes.length / subspaces), subspaces));
+        }
+    }
+
+    private void encode(float[][] codebooks, float[] source, int offset, byte[] target, int targetOffset) {
+        for (int j = 0; j < subspaces; j++) {
+            int start = j * subspaceDimensions;
+            int length = Math.min(subspaceDimensions, dimensions - start);
+            target[targetOffset + j] = (byte) nearest(codebooks[j], length, source, offset + start);
+        }
+    }
+
+    // Lloyd's k-means per subspace over size vectors packed in sample,
+    // seeded with distinct training vectors
+    private float[][] train(float[] sample, int size) {
+        SplittableRandom random = new SplittableRandom(17);
+        float[][] trained = new float[subspaces][];
+        int[] assignment = new int[size];
+        for (int j = 0; j < subspaces; j++) {
+            int start = j * subspaceDimensions;
+            int length = Math.min(subspaceDimensions, dimensions - start);
+            float[] centroids = new float[CENTROIDS * length];
+            int[] order = shuffledIndexes(size, random);
+            for (int c = 0; c < CENTROIDS; c++) {
+                System.arraycopy(sample, order[c] * dimensions + start, centroids, c * length, length);
+            }
+
+            for (int iteration = 0; iteration < TRAINING_ITERATIONS; iteration++) {
+                for (int i = 0; i < size; i++) {
+                    assignment[i] = nearest(centroids, length, sample, i * dimensions + start);
+                }
+                float[] sums = new float[CENTROIDS * length];
+                int[] sizes = new int[CENTROIDS];
+                for (int i = 0; i < size; i++) {
+                    int c = assignment[i];
+                    sizes[c]++;
+                    for (int d = 0; d < length; d++) {
+                        sums[c * length + d] += sample[i * dimensions + start + d];
+                    }
+                }
+                for (int c = 0; c < CENTROIDS; c++) {
+                    // An empty cluster keeps its previous centroid
+                    if (sizes[c] > 0) {
+                        for (int d = 0; d < length; d++) {
+                            centroids[c * length + d] = sums[c * length + d] / sizes[c];
+                        }
+                    }
+                }
+            }
+            trained[j] = centroids;
+        }
+        return trained;
+    }
+
+    private static int nearest(float[] centroids, int length, float[] vector, int start) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < CENTROIDS; c++) {
+            float distance = 0;
+            for (int d = 0; d < length; d++) {
+                float diff = vector[start + d] - centroids[c * length + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static int[] shuffledIndexes(int size, SplittableRandom random) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+}
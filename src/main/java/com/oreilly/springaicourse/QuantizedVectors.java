@@ -0,0 +1,60 @@
+package com.oreilly.springaicourse;
+
+import java.nio.file.Path;
+
+// Compressed in-heap copies of the stored vectors. Searches shortlist
+// candidates with these approximate scores and re-rank the shortlist against
+// the full-precision vectors, so the mapped float32 file is only touched for
+// a few slots per query.
+interface QuantizedVectors {
+
+    interface Scorer {
+        // Approximate dot product between the query and a stored vector
+        float dot(int slot);
+    }
+
+    String name();
+
+    // Slots arrive in increasing order from the store
+    void add(int slot, float[] vector);
+
+    // Adds a vector already in the store as it opens. Nothing else waits on
+    // the store then, so work add() defers can be done at once.
+    default void addExisting(int slot, float[] vector) {
+        add(slot, vector);
+    }
+
+    // Slots below this had their codes loaded from a saved file
+    default int loaded() {
+        return 0;
+    }
+
+    // Saves what is costly to rebuild next to the vectors; nothing by default
+    default void save(Path file) {}
+
+    Scorer scorer(float[] query);
+
+    // Heap used by the codes, for comparing against 4 bytes per dimension
+    long memoryBytes();
+
+    // "int8" or "pq"
+    static QuantizedVectors create(String type, int dimensions) {
+        return switch (type) {
+            case "int8" -> new ScalarQuantizedVectors(dimensions);
+            case "pq" -> new ProductQuantizedVectors(dimensions, 4, 512);
+            default -> throw new IllegalArgumentException("Unknown quantization: " + type);
+        };
+    }
+
+    // As create, but starting from what save() wrote to the file when it
+    // fits the store's maxSpan vectors
+    static QuantizedVectors open(String type, int dimensions, Path file, int maxSpan) {
+        if ("pq".equals(type)) {
+            var saved = ProductQuantizedVectors.load(file, dimensions, 4, 512, maxSpan);
+            if (saved != null) {
+                return saved;
+            }
+        }
+        return create(type, dimensions);
+    }
+}
@@ -0,0 +1,60 @@
+package com.oreilly.springaicourse;
+
+import java.util.List;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptions;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+// EmbeddingModel decorator that answers single-text requests, the shape of
+// a similarity search or a semantic cache lookup, from a QueryEmbeddingCache.
+// Batches, the shape of ingestion, go straight to the underlying model.
+class QueryCachingEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final QueryEmbeddingCache cache;
+
+    QueryCachingEmbeddingModel(EmbeddingModel delegate, QueryEmbeddingCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<String> texts = request.getInstructions();
+        if (texts.size() != 1) {
+            return delegate.call(request);
+        }
+        String key = key(texts.get(0), request.getOptions());
+        float[] cached = cache.get(key);
+        if (cached != null) {
+            // Callers get their own copy, so the cached vector cannot change under others
+            return new EmbeddingResponse(List.of(new Embedding(cached.clone(), 0)));
+        }
+        EmbeddingResponse response = delegate.call(request);
+        if (response.getResults().size() == 1) {
+            cache.put(key, response.getResults().get(0).getOutput().clone());
+        }
+        return response;
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    // Options that change the vector are part of the key
+    private static String key(String text, EmbeddingOptions options) {
+        if (options == null || (options.getModel() == null && options.getDimensions() == null)) {
+            return text;
+        }
+        return options.getModel() + '\u0000' + options.getDimensions() + '\u0000' + text;
+    }
+}
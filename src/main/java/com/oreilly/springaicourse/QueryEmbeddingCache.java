@@ -0,0 +1,264 @@
+package com.oreilly.springaicourse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+// In-memory cache of question embeddings, bounded by bytes, with W-TinyLFU
+// eviction: new entries go to a small LRU window; an entry leaving the
+// window only displaces the main area's eviction candidate if a count-min
+// sketch has seen it more often. A burst of one-off questions therefore
+// cannot flush the questions people keep asking. The main area is a
+// segmented LRU: entries hit again move from probation to the protected
+// segment. All operations take one lock; each is a few pointer updates,
+// far below the embedding round trip a hit saves.
+class QueryEmbeddingCache implements MeterBinder {
+
+    record Stats(long hits, long misses, long evictions, long rejections, int entries, long bytes) {
+        double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private static final class Node {
+        final String key;
+        float[] value;
+        int weight;
+        int queue;
+        Node prev, next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final Map<String, Node> nodes = new HashMap<>();
+    // Circular lists with sentinel heads; head.next is least recently used
+    private final Node[] queues = {new Node(null), new Node(null), new Node(null)};
+    private final long[] queueBytes = new long[3];
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    QueryEmbeddingCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        // 1% window, then 80% of the main area protected, as in Caffeine
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        for (Node head : queues) {
+            head.prev = head;
+            head.next = head;
+        }
+        // Sized for 1536-dimension embeddings, about 6 KB each
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, maxBytes / 6400)));
+    }
+
+    // Approximate heap use: array header and floats, key chars, node and map entry
+    static int weight(String key, float[] value) {
+        return 16 + 4 * value.length + 40 + 2 * key.length() + 80;
+    }
+
+    synchronized float[] get(String key) {
+        sketch.increment(key.hashCode());
+        Node node = nodes.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (node.queue == PROBATION) {
+            move(node, PROTECTED);
+            // Overflow from protected goes back to probation
+            while (queueBytes[PROTECTED] > protectedMax) {
+                move(queues[PROTECTED].next, PROBATION);
+            }
+        } else {
+            move(node, node.queue);
+        }
+        return node.value;
+    }
+
+    synchronized void put(String key, float[] value) {
+        int weight = weight(key, value);
+        Node node = nodes.get(key);
+        if (weight > maxBytes - windowMax) {
+            if (node != null) {
+                unlink(node);
+                nodes.remove(key);
+            }
+            rejections.increment();
+            return;
+        }
+        if (node != null) {
+            // A heavier value can overfill its segment; restore the bounds
+            queueBytes[node.queue] += weight - node.weight;
+            node.value = value;
+            node.weight = weight;
+            while (queueBytes[PROTECTED] > protectedMax) {
+                move(queues[PROTECTED].next, PROBATION);
+            }
+            while (queueBytes[PROBATION] + queueBytes[PROTECTED] > maxBytes - windowMax) {
+                Node victim = queues[PROBATION].next != queues[PROBATION]
+                        ? queues[PROBATION].next : queues[PROTECTED].next;
+                unlink(victim);
+                nodes.remove(victim.key);
+                evictions.increment();
+            }
+            evict();
+            return;
+        }
+        node = new Node(key);
+        node.value = value;
+        node.weight = weight;
+        nodes.put(key, node);
+        link(node, WINDOW);
+        evict();
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+        for (int queue = 0; queue < queues.length; queue++) {
+            queues[queue].prev = queues[queue];
+            queues[queue].next = queues[queue];
+            queueBytes[queue] = 0;
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), rejections.sum(), nodes.size(),
+                queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED]);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.embedding.query-cache.requests", hits, LongAdder::sum).tag("result", "hit")
+                .description("Question embedding lookups").register(registry);
+        FunctionCounter.builder("rag.embedding.query-cache.requests", misses, LongAdder::sum).tag("result", "miss")
+                .description("Question embedding lookups").register(registry);
+        FunctionCounter.builder("rag.embedding.query-cache.evictions", evictions, LongAdder::sum)
+                .description("Embeddings evicted to make room").register(registry);
+        FunctionCounter.builder("rag.embedding.query-cache.rejections", rejections, LongAdder::sum)
+                .description("Embeddings refused admission").register(registry);
+        Gauge.builder("rag.embedding.query-cache.size", this, cache -> cache.stats().bytes())
+                .baseUnit("bytes").description("Approximate heap held by cached embeddings").register(registry);
+        Gauge.builder("rag.embedding.query-cache.entries", this, cache -> cache.stats().entries())
+                .description("Cached question embeddings").register(registry);
+    }
+
+    // Entries leaving the window compete with the main area's LRU entry
+    private void evict() {
+        while (queueBytes[WINDOW] > windowMax) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            boolean admitted = true;
+            while (queueBytes[PROBATION] + queueBytes[PROTECTED] + candidate.weight > maxBytes - windowMax) {
+                Node victim = queues[PROBATION].next != queues[PROBATION]
+                        ? queues[PROBATION].next : queues[PROTECTED].next;
+                // Ties go to the incumbent, so one-off questions do not churn the cache
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    unlink(victim);
+                    nodes.remove(victim.key);
+                    evictions.increment();
+                } else {
+                    nodes.remove(candidate.key);
+                    rejections.increment();
+                    admitted = false;
+                    break;
+                }
+            }
+            if (admitted) {
+                link(candidate, PROBATION);
+            }
+        }
+    }
+
+    private void move(Node node, int queue) {
+        unlink(node);
+        link(node, queue);
+    }
+
+    private void link(Node node, int queue) {
+        Node head = queues[queue];
+        node.queue = queue;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        queueBytes[queue] += node.weight;
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        queueBytes[node.queue] -= node.weight;
+    }
+
+    // Count-min sketch of 4-bit counters, four per key in one table of 16
+    // counters per expected entry, halved every 10 * entries increments so
+    // that old popularity fades
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int increments;
+
+        FrequencySketch(int entries) {
+            int size = Integer.highestOneBit(16 * entries - 1) << 1;
+            this.counters = new byte[size];
+            this.mask = size - 1;
+            this.resetAfter = 10 * entries;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (long seed : SEEDS) {
+                int index = index(hash, seed);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= resetAfter) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (long seed : SEEDS) {
+                frequency = Math.min(frequency, counters[index(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, long seed) {
+            long h = (hash + seed) * seed;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.oreilly.springaicourse;
+
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.vectorstore.SearchRequest;
+
+// Per-request settings for RAGService.query, passed to the default advisors
+// as advisor params. A null filter expression searches all documents.
+// Filters on "source" and "type" are resolved from bitmaps in the local
+// vector store, so a scoped question only searches the chunks in scope.
+public record QueryOptions(String conversationId, int topK, double similarityThreshold, String filterExpression) {
+
+    public static QueryOptions defaults() {
+        return new QueryOptions(ChatMemory.DEFAULT_CONVERSATION_ID, SearchRequest.DEFAULT_TOP_K,
+                SearchRequest.SIMILARITY_THRESHOLD_ACCEPT_ALL, null);
+    }
+
+    public QueryOptions withConversationId(String conversationId) {
+        return new QueryOptions(conversationId, topK, similarityThreshold, filterExpression);
+    }
+
+    public QueryOptions withTopK(int topK) {
+        return new QueryOptions(conversationId, topK, similarityThreshold, filterExpression);
+    }
+
+    public QueryOptions withSimilarityThreshold(double similarityThreshold) {
+        return new QueryOptions(conversationId, topK, similarityThreshold, filterExpression);
+    }
+
+    public QueryOptions withFilterExpression(String filterExpression) {
+        return new QueryOptions(conversationId, topK, similarityThreshold, filterExpression);
+    }
+
+    // Only chunks from these sources ("drake_feud", "spring_framework",
+    // "wef_jobs_report"), on top of any filter already set
+    public QueryOptions withSources(String... sources) {
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("At least one source is required");
+        }
+        StringBuilder condition = new StringBuilder("source in [");
+        for (int i = 0; i < sources.length; i++) {
+            condition.append(i > 0 ? ", " : "").append(quote(sources[i]));
+        }
+        return withCondition(condition.append(']').toString());
+    }
+
+    // Only chunks of this type ("pdf"), on top of any filter already set
+    public QueryOptions withType(String type) {
+        return withCondition("type == " + quote(type));
+    }
+
+    private QueryOptions withCondition(String condition) {
+        return withFilterExpression(filterExpression == null || filterExpression.isBlank()
+                ? condition : "(" + filterExpression + ") && " + condition);
+    }
+
+    private static String quote(String value) {
+        if (value == null || value.contains("'")) {
+            throw new IllegalArgumentException("Invalid filter value: " + value);
+        }
+        return "'" + value + "'";
+    }
+}
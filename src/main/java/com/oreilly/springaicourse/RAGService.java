@@ -1,47 +1,281 @@
 package com.oreilly.springaicourse;
 
 import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.ChatClientResponse;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
-import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
 import org.springframework.ai.chat.memory.ChatMemory;
-import org.springframework.ai.openai.OpenAiChatModel;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.document.Document;
 import org.springframework.ai.vectorstore.VectorStore;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.SpringApplication;
 import org.springframework.context.ApplicationContext;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Service
 public class RAGService {
     private final ChatClient chatClient;
-    private final VectorStore vectorStore;
-
+    private final RetrievalAdvisor retrievalAdvisor;
     private final ChatMemory memory;
+    private final SemanticResponseCache responseCache;
+    private final SingleFlight<FlightKey, RagAnswer> inFlight = new SingleFlight<>();
 
     @Autowired
     public RAGService(
-            OpenAiChatModel chatModel,
-            VectorStore vectorStore, ChatMemory memory) {
-        this.chatClient = ChatClient.create(chatModel);
-        this.vectorStore = vectorStore;
+            @Qualifier("ragChatModel") ChatModel chatModel,
+            VectorStore vectorStore, ChatMemory memory,
+            @Nullable SemanticResponseCache responseCache,
+            @Nullable LexicalIndex lexicalIndex,
+            @Nullable Reranker reranker,
+            @Nullable ContextBudget contextBudget) {
+        // Build the advisors once; per-query settings travel as advisor params.
+        // With a lexical index, retrieval fuses BM25 and vector results; with a
+        // reranker, over-fetched candidates are re-ranked locally; with a
+        // context budget, documents and history are trimmed to fit it.
+        this.retrievalAdvisor = new RetrievalAdvisor(vectorStore, lexicalIndex, reranker, contextBudget);
+        this.chatClient = ChatClient.builder(chatModel)
+                .defaultAdvisors(
+                        retrievalAdvisor,
+                        // Good to use chat memory when doing RAG
+                        MessageChatMemoryAdvisor.builder(memory).build())
+                .build();
         this.memory = memory;
+        this.responseCache = responseCache;
+    }
+
+    public RAGService(ChatModel chatModel, VectorStore vectorStore, ChatMemory memory,
+                      SemanticResponseCache responseCache) {
+        this(chatModel, vectorStore, memory, responseCache, null, null, null);
+    }
+
+    public RAGService(ChatModel chatModel, VectorStore vectorStore, ChatMemory memory) {
+        this(chatModel, vectorStore, memory, null, null, null, null);
     }
 
     public String query(String question) {
-        // Create a QuestionAnswerAdvisor with the vectorStore
-        var questionAnswerAdvisor = new QuestionAnswerAdvisor(vectorStore);
+        return query(question, QueryOptions.defaults());
+    }
 
-        // Good to use chat memory when doing RAG
-        var chatMemoryAdvisor = MessageChatMemoryAdvisor.builder(memory).build();
+    public String query(String question, String conversationId) {
+        return query(question, QueryOptions.defaults().withConversationId(conversationId));
+    }
 
-        // Use the advisor to handle the RAG workflow
-        return chatClient.prompt()
-                .advisors(questionAnswerAdvisor, chatMemoryAdvisor)
+    public String query(String question, QueryOptions options) {
+        return ask(question, options).answer();
+    }
+
+    // Identical opening questions asked at the same time share one
+    // retrieval and model call; see coalescable()
+    public RagAnswer ask(String question, QueryOptions options) {
+        if (!coalescable(options)) {
+            return answer(question, options);
+        }
+        return shared(question, options, inFlight.call(FlightKey.of(question, options),
+                () -> answer(question, options)));
+    }
+
+    private RagAnswer answer(String question, QueryOptions options) {
+        CacheLookup lookup = lookup(question, options);
+        if (lookup.cached() != null) {
+            return lookup.cached();
+        }
+
+        long start = System.nanoTime();
+        ChatClientResponse response = chatClient.prompt()
+                .advisors(advisor -> applyOptions(advisor, options))
                 .user(question)
                 .call()
-                .content();
+                .chatClientResponse();
+        long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+
+        ChatResponse chatResponse = response.chatResponse();
+        String answer = chatResponse != null && chatResponse.getResult() != null
+                ? chatResponse.getResult().getOutput().getText() : null;
+        Integer tokens = chatResponse != null ? chatResponse.getMetadata().getUsage().getTotalTokens() : null;
+        return answered(lookup, options, answer, retrievedDocuments(response), latencyMillis, tokens);
+    }
+
+    // ask() without blocking a thread while the model works: the answer is
+    // collected from the model's stream. Cancelling the Mono, for example on
+    // a timeout, cancels the model call. Retrieval still blocks, briefly, on
+    // the bounded elastic scheduler.
+    public Mono<RagAnswer> askAsync(String question, QueryOptions options) {
+        return Mono.defer(() -> coalescable(options)
+                ? inFlight.execute(FlightKey.of(question, options), () -> answerAsync(question, options))
+                        .map(outcome -> shared(question, options, outcome))
+                : answerAsync(question, options));
+    }
+
+    private Mono<RagAnswer> answerAsync(String question, QueryOptions options) {
+        return Mono.fromCallable(() -> lookup(question, options))
+                .flatMap(lookup -> lookup.cached() != null
+                        ? Mono.just(lookup.cached())
+                        : generate(question, options, lookup))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private Mono<RagAnswer> generate(String question, QueryOptions options, CacheLookup lookup) {
+        Map<String, Object> params = params(options);
+        List<Document> documents = retrievalAdvisor.retrieveWithinBudget(question, params,
+                memory.get(options.conversationId()));
+        long start = System.nanoTime();
+        return chatClient.prompt()
+                .advisors(advisor -> advisor.params(params).param(RetrievalAdvisor.RETRIEVED_DOCUMENTS, documents))
+                .user(question)
+                .stream()
+                .chatResponse()
+                .collect(StreamedAnswer::new, StreamedAnswer::add)
+                .map(streamed -> answered(lookup, options, streamed.text.toString(),
+                        streamed.documents != null ? streamed.documents : documents,
+                        (System.nanoTime() - start) / 1_000_000, streamed.tokens));
+    }
+
+    // Coalescing collapses a burst of the same question, for example a
+    // popular one, that arrives before any cached answer exists. Like the
+    // cache it only applies to the first question of a conversation, where
+    // the answer depends on the question and retrieval options alone.
+    private boolean coalescable(QueryOptions options) {
+        return memory.get(options.conversationId()).isEmpty();
+    }
+
+    // The call that ran recorded the exchange in its own conversation;
+    // callers that shared it record it in theirs
+    private RagAnswer shared(String question, QueryOptions options, SingleFlight.Outcome<RagAnswer> outcome) {
+        RagAnswer answer = outcome.value();
+        if (outcome.shared() && answer.answer() != null) {
+            memory.add(options.conversationId(),
+                    List.of(new UserMessage(question), new AssistantMessage(answer.answer())));
+        }
+        return answer;
+    }
+
+    long coalescedQuestions() {
+        return inFlight.sharedCalls();
+    }
+
+    // With earlier messages the answer depends on the conversation, so only
+    // the first question of a conversation goes through the cache
+    private CacheLookup lookup(String question, QueryOptions options) {
+        if (responseCache == null || !memory.get(options.conversationId()).isEmpty()) {
+            return CacheLookup.UNCACHEABLE;
+        }
+        float[] embedding = responseCache.embed(question);
+        var cached = responseCache.get(embedding, options);
+        if (cached == null) {
+            return new CacheLookup(embedding, null);
+        }
+        memory.add(options.conversationId(),
+                List.of(new UserMessage(question), new AssistantMessage(cached.text())));
+        return new CacheLookup(embedding, new RagAnswer(cached.text(), cached.documentIds(), true));
+    }
+
+    private RagAnswer answered(CacheLookup lookup, QueryOptions options, String answer,
+                               List<Document> documents, long latencyMillis, Integer tokens) {
+        List<String> documentIds = documents.stream().map(Document::getId).toList();
+        if (lookup.embedding() != null && answer != null) {
+            Set<String> sources = documents.stream()
+                    .map(document -> document.getMetadata().get("source"))
+                    .filter(Objects::nonNull)
+                    .map(Object::toString)
+                    .collect(Collectors.toSet());
+            responseCache.put(lookup.embedding(), options, new SemanticResponseCache.Answer(
+                    answer, documentIds, sources, latencyMillis, tokens != null ? tokens : 0));
+        }
+        return new RagAnswer(answer, documentIds, false);
+    }
+
+    // Emits the sources as soon as the search is done, then the answer tokens
+    // as the model produces them. The sources are the documents left after
+    // the context budget, the ones the model sees. Demand and cancellation
+    // pass through to the model's stream, so a subscriber that stops reading
+    // or goes away also stops the model call.
+    public Flux<RagEvent> stream(String question, QueryOptions options) {
+        Map<String, Object> params = params(options);
+        return Mono.fromCallable(() -> retrievalAdvisor.retrieveWithinBudget(question, params,
+                        memory.get(options.conversationId())))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(documents -> Flux.concat(
+                        Mono.just(RagEvent.sources(documents)),
+                        chatClient.prompt()
+                                .advisors(advisor -> advisor.params(params)
+                                        .param(RetrievalAdvisor.RETRIEVED_DOCUMENTS, documents))
+                                .user(question)
+                                .stream()
+                                .content()
+                                .map(RagEvent.Token::new)));
+    }
+
+    // Questions differing only in case or spacing share a flight
+    private record FlightKey(String question, int topK, double similarityThreshold, String filterExpression) {
+        static FlightKey of(String question, QueryOptions options) {
+            return new FlightKey(question.strip().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT),
+                    options.topK(), options.similarityThreshold(), options.filterExpression());
+        }
+    }
+
+    // A null embedding means the question is not cacheable
+    private record CacheLookup(float[] embedding, RagAnswer cached) {
+        static final CacheLookup UNCACHEABLE = new CacheLookup(null, null);
+    }
+
+    private static class StreamedAnswer {
+        final StringBuilder text = new StringBuilder();
+        Integer tokens;
+        List<Document> documents;
+
+        // Usage, when the model reports it, and the documents the prompt
+        // carried come with the last chunk
+        @SuppressWarnings("unchecked")
+        void add(ChatResponse chunk) {
+            if (chunk.getResult() != null && chunk.getResult().getOutput().getText() != null) {
+                text.append(chunk.getResult().getOutput().getText());
+            }
+            Integer total = chunk.getMetadata().getUsage().getTotalTokens();
+            if (total != null && total > 0) {
+                tokens = total;
+            }
+            if (chunk.getMetadata().get(RetrievalAdvisor.RETRIEVED_DOCUMENTS) instanceof List<?> retrieved) {
+                documents = (List<Document>) retrieved;
+            }
+        }
+    }
+
+    private static List<Document> retrievedDocuments(ChatClientResponse response) {
+        List<Document> documents = RetrievalAdvisor.retrievedDocuments(response.context());
+        return documents != null ? documents : List.of();
+    }
+
+    private static void applyOptions(ChatClient.AdvisorSpec advisor, QueryOptions options) {
+        advisor.params(params(options));
+    }
+
+    private static Map<String, Object> params(QueryOptions options) {
+        Map<String, Object> params = new HashMap<>(8);
+        params.put(ChatMemory.CONVERSATION_ID, options.conversationId());
+        params.put(RetrievalAdvisor.TOP_K, options.topK());
+        params.put(RetrievalAdvisor.SIMILARITY_THRESHOLD, options.similarityThreshold());
+        if (options.filterExpression() != null) {
+            params.put(RetrievalAdvisor.FILTER_EXPRESSION, options.filterExpression());
+        }
+        return params;
     }
 
     public static void main(String[] args) {
@@ -60,6 +294,9 @@ public class RAGService {
         // Create a Scanner for user input
         Scanner scanner = new Scanner(System.in);
 
+        // One conversation per console session
+        String conversationId = UUID.randomUUID().toString();
+
         System.out.println("RAG Question-Answering System");
         System.out.println("Type 'exit' to quit");
         System.out.println("------------------------------");
@@ -78,7 +315,7 @@ public class RAGService {
             try {
                 // Query the RAG system and display the response
                 System.out.println("\nThinking...");
-                String response = ragService.query(question);
+                String response = ragService.query(question, conversationId);
                 System.out.println("\nResponse:");
                 System.out.println(response);
             } catch (Exception e) {
@@ -0,0 +1,6 @@
+package com.oreilly.springaicourse;
+
+import java.util.List;
+
+// An answer from RAGService with the ids of the documents it was based on
+public record RagAnswer(String answer, List<String> documentIds, boolean cached) {}
@@ -0,0 +1,87 @@
+package com.oreilly.springaicourse;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ProblemDetail;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// HTTP access to RAGService. Both endpoints return reactive types, so Spring
+// MVC frees the servlet thread while the model works, and every request
+// goes through the RequestLimiter.
+@RestController
+@RequestMapping("/rag")
+class RagController {
+    private final RAGService ragService;
+    private final RequestLimiter limiter;
+
+    RagController(RAGService ragService, RequestLimiter limiter) {
+        this.ragService = ragService;
+        this.limiter = limiter;
+    }
+
+    record QueryRequest(String question, String conversationId, Integer topK,
+                        Double similarityThreshold, String filter) {}
+
+    @PostMapping("/query")
+    Mono<RagAnswer> query(@RequestBody QueryRequest request) {
+        if (request.question() == null || request.question().isBlank()) {
+            throw new IllegalArgumentException("question is required");
+        }
+        var options = options(request.conversationId(), request.topK(), request.filter());
+        if (request.similarityThreshold() != null) {
+            options = options.withSimilarityThreshold(request.similarityThreshold());
+        }
+        var queryOptions = options;
+        return limiter.limit(() -> ragService.askAsync(request.question(), queryOptions));
+    }
+
+    // Server-Sent Events: one "sources" event, then a "token" event per chunk
+    // of the answer. Spring MVC requests one event at a time from the Flux and
+    // cancels it when the client disconnects.
+    @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    Flux<ServerSentEvent<RagEvent>> stream(
+            @RequestParam String question,
+            @RequestParam(required = false) String conversationId,
+            @RequestParam(required = false) Integer topK,
+            @RequestParam(required = false) String filter) {
+        return limiter.limitStream(() -> ragService.stream(question, options(conversationId, topK, filter)))
+                .map(event -> ServerSentEvent.builder(event)
+                        .event(event instanceof RagEvent.Sources ? "sources" : "token")
+                        .build());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    ProblemDetail badRequest(IllegalArgumentException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    ProblemDetail tooManyRequests(RejectedExecutionException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.TOO_MANY_REQUESTS, e.getMessage());
+    }
+
+    @ExceptionHandler(TimeoutException.class)
+    ProblemDetail timedOut(TimeoutException e) {
+        return ProblemDetail.forStatusAndDetail(HttpStatus.GATEWAY_TIMEOUT, "The model did not answer in time");
+    }
+
+    private static QueryOptions options(String conversationId, Integer topK, String filter) {
+        var options = QueryOptions.defaults().withFilterExpression(filter);
+        if (conversationId != null) {
+            options = options.withConversationId(conversationId);
+        }
+        return topK != null ? options.withTopK(topK) : options;
+    }
+}
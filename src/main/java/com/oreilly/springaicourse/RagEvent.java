@@ -0,0 +1,24 @@
+package com.oreilly.springaicourse;
+
+import org.springframework.ai.document.Document;
+
+import java.util.List;
+
+// One element of RAGService.stream: a single Sources event, then the answer
+// as Tokens. Sources carry only what a client shows, not the chunk text.
+public sealed interface RagEvent {
+
+    record Source(String id, String source, Double score) {}
+
+    record Sources(List<Source> sources) implements RagEvent {}
+
+    record Token(String text) implements RagEvent {}
+
+    static Sources sources(List<Document> documents) {
+        return new Sources(documents.stream()
+                .map(document -> new Source(document.getId(),
+                        String.valueOf(document.getMetadata().getOrDefault("source", "")),
+                        document.getScore()))
+                .toList());
+    }
+}
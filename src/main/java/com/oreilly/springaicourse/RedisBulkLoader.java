@@ -0,0 +1,261 @@
+package com.oreilly.springaicourse;
+
+import java.io.Flushable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.embedding.BatchingStrategy;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.TokenCountBatchingStrategy;
+import org.springframework.ai.vectorstore.redis.RedisVectorStore;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.json.Path2;
+
+// Bulk ingestion path for the Redis vector store. RedisVectorStore.add
+// pipelines one JSON.SET per chunk but syncs after every embedding batch,
+// a few dozen chunks at a time. This writer embeds each batch as it comes
+// and buffers the JSON documents, sending pipelineSize of them per round
+// trip on a pooled connection. The documents have the same layout as
+// RedisVectorStore writes, so the store searches them as usual. When the
+// search index does not exist yet, it is created after the load: RediSearch
+// then indexes the existing keys in one background scan instead of on every
+// write. Call flush() before relying on the writes and finish() at the end.
+class RedisBulkLoader implements DocumentWriter, Flushable {
+    private static final Logger logger = LoggerFactory.getLogger(RedisBulkLoader.class);
+
+    // Keys checked by containsAll, in one EXISTS
+    private static final int EXISTS_SAMPLE = 16;
+
+    record Settings(int pipelineSize, boolean createIndex) {
+        Settings {
+            if (pipelineSize < 1) {
+                throw new IllegalArgumentException("Invalid pipeline size: " + pipelineSize);
+            }
+        }
+
+        static Settings defaults() {
+            return new Settings(256, true);
+        }
+    }
+
+    record Stats(long documents, long roundTrips, Duration elapsed) {
+        double docsPerSecond() {
+            return elapsed.isZero() ? 0 : documents * 1e9 / elapsed.toNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d chunks in %d round trips, %d ms (%.0f docs/sec)",
+                    documents, roundTrips, elapsed.toMillis(), docsPerSecond());
+        }
+    }
+
+    // The Redis commands the loader needs, so that tests can use a fake
+    interface Client {
+        // JSON.SET of every document at its key, pipelined in one round trip;
+        // one response per document
+        List<Object> jsonSet(Map<String, Map<String, Object>> documents);
+
+        // How many of the keys exist
+        long exists(List<String> keys);
+
+        boolean indexExists();
+
+        void createIndex();
+    }
+
+    private final Client client;
+    private final EmbeddingModel embeddingModel;
+    private final BatchingStrategy batchingStrategy = new TokenCountBatchingStrategy();
+    private final String prefix;
+    private final String contentField;
+    private final String embeddingField;
+    private final Settings settings;
+    private final boolean indexDeferred;
+
+    private final Object lock = new Object();
+    private Map<String, Map<String, Object>> buffer = new LinkedHashMap<>();
+    private long started;
+    private long lastWrite;
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+
+    RedisBulkLoader(Client client, EmbeddingModel embeddingModel, String prefix, Settings settings) {
+        this(client, embeddingModel, prefix, RedisVectorStore.DEFAULT_CONTENT_FIELD_NAME,
+                RedisVectorStore.DEFAULT_EMBEDDING_FIELD_NAME, settings);
+    }
+
+    RedisBulkLoader(Client client, EmbeddingModel embeddingModel, String prefix, String contentField,
+                    String embeddingField, Settings settings) {
+        this.client = client;
+        this.embeddingModel = embeddingModel;
+        this.prefix = prefix;
+        this.contentField = contentField;
+        this.embeddingField = embeddingField;
+        this.settings = settings;
+        // An existing index keeps indexing each write; it is not dropped
+        this.indexDeferred = settings.createIndex() && !client.indexExists();
+        if (indexDeferred) {
+            logger.info("Creating the Redis search index after the bulk load");
+        }
+    }
+
+    // Jedis client over the store's connection pool; the index is created
+    // with the same schema RedisVectorStore uses
+    static Client jedis(JedisPooled jedis, EmbeddingModel embeddingModel, String indexName, String prefix) {
+        return new Client() {
+            @Override
+            public List<Object> jsonSet(Map<String, Map<String, Object>> documents) {
+                try (Pipeline pipeline = jedis.pipelined()) {
+                    documents.forEach((key, fields) -> pipeline.jsonSetWithEscape(key, Path2.ROOT_PATH, fields));
+                    return pipeline.syncAndReturnAll();
+                }
+            }
+
+            @Override
+            public long exists(List<String> keys) {
+                return jedis.exists(keys.toArray(String[]::new));
+            }
+
+            @Override
+            public boolean indexExists() {
+                return jedis.ftList().contains(indexName);
+            }
+
+            @Override
+            public void createIndex() {
+                RedisVectorStore.builder(jedis, embeddingModel)
+                        .indexName(indexName)
+                        .prefix(prefix)
+                        .initializeSchema(true)
+                        .build()
+                        .afterPropertiesSet();
+            }
+        };
+    }
+
+    // Whether the chunks are still in Redis, judged by one EXISTS on a sample
+    // spread over the ids: a flushed or cleared Redis has lost all of them
+    boolean containsAll(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+        List<String> all = List.copyOf(ids);
+        int samples = Math.min(all.size(), EXISTS_SAMPLE);
+        List<String> keys = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            keys.add(prefix + all.get((int) ((long) i * all.size() / samples)));
+        }
+        return client.exists(keys) == samples;
+    }
+
+    // Safe to call from several threads, as EmbeddingBatcher does
+    @Override
+    public void accept(List<Document> docs) {
+        if (docs.isEmpty()) {
+            return;
+        }
+        List<float[]> embeddings = embeddingModel.embed(docs, EmbeddingOptionsBuilder.builder().build(),
+                batchingStrategy);
+        Map<String, Map<String, Object>> full = null;
+        synchronized (lock) {
+            if (started == 0) {
+                started = System.nanoTime();
+            }
+            for (int i = 0; i < docs.size(); i++) {
+                Document document = docs.get(i);
+                Map<String, Object> fields = new HashMap<>(document.getMetadata());
+                fields.put(embeddingField, embeddings.get(i));
+                fields.put(contentField, document.getText());
+                buffer.put(prefix + document.getId(), fields);
+            }
+            if (buffer.size() >= settings.pipelineSize()) {
+                full = buffer;
+                buffer = new LinkedHashMap<>();
+            }
+        }
+        // Written outside the lock so other batches keep embedding meanwhile
+        if (full != null) {
+            write(full);
+        }
+    }
+
+    // Writes whatever is buffered
+    @Override
+    public void flush() {
+        Map<String, Map<String, Object>> pending;
+        synchronized (lock) {
+            pending = buffer;
+            buffer = new LinkedHashMap<>();
+        }
+        if (!pending.isEmpty()) {
+            write(pending);
+        }
+    }
+
+    // Flushes, creates a deferred index and reports the load
+    Stats finish() {
+        flush();
+        if (indexDeferred && !client.indexExists()) {
+            client.createIndex();
+        }
+        Stats stats = stats();
+        logger.info("Redis bulk load: {}", stats);
+        return stats;
+    }
+
+    Stats stats() {
+        synchronized (lock) {
+            Duration elapsed = started == 0 ? Duration.ZERO : Duration.ofNanos(lastWrite - started);
+            return new Stats(documents.sum(), roundTrips.sum(), elapsed);
+        }
+    }
+
+    private void write(Map<String, Map<String, Object>> batch) {
+        for (Map<String, Map<String, Object>> part : split(batch)) {
+            List<Object> responses = client.jsonSet(part);
+            roundTrips.increment();
+            for (Object response : responses) {
+                if (!"OK".equals(response)) {
+                    throw new IllegalStateException("Could not write chunk to Redis: " + response);
+                }
+            }
+            documents.add(part.size());
+        }
+        synchronized (lock) {
+            lastWrite = Math.max(lastWrite, System.nanoTime());
+        }
+    }
+
+    // A large embedding batch can overfill the buffer; keep round trips to pipelineSize
+    private List<Map<String, Map<String, Object>>> split(Map<String, Map<String, Object>> batch) {
+        if (batch.size() <= settings.pipelineSize()) {
+            return List.of(batch);
+        }
+        List<Map<String, Map<String, Object>>> parts = new ArrayList<>();
+        Map<String, Map<String, Object>> part = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : batch.entrySet()) {
+            part.put(entry.getKey(), entry.getValue());
+            if (part.size() == settings.pipelineSize()) {
+                parts.add(part);
+                part = new LinkedHashMap<>();
+            }
+        }
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+}
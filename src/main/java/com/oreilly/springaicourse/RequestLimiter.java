@@ -0,0 +1,107 @@
+package com.oreilly.springaicourse;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+// Caps the number of RAG requests in flight and how long a query may take.
+// Requests are reactive, so an in-flight request holds a permit but no
+// thread. A request over the cap is rejected straight away instead of
+// queued: behind thousands of multi-second model calls it would only time
+// out later.
+class RequestLimiter implements MeterBinder {
+
+    record Settings(int maxInFlight, Duration timeout) {
+        static Settings defaults() {
+            return new Settings(2_000, Duration.ofSeconds(60));
+        }
+    }
+
+    private final Settings settings;
+    private final Semaphore permits;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    RequestLimiter(Settings settings) {
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxInFlight());
+    }
+
+    // Acquires the permit now, so a rejection surfaces before the response
+    // starts; throws RejectedExecutionException when the cap is reached.
+    // A request over the timeout fails with TimeoutException and is cancelled.
+    <T> Mono<T> limit(Supplier<Mono<T>> request) {
+        Runnable release = acquire();
+        try {
+            return request.get()
+                    .timeout(settings.timeout())
+                    .doOnError(TimeoutException.class, e -> timedOut.increment())
+                    .doOnTerminate(release)
+                    .doOnCancel(release);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    // Streams are not timed out here; they end with the async request timeout
+    <T> Flux<T> limitStream(Supplier<Flux<T>> request) {
+        Runnable release = acquire();
+        try {
+            return request.get().doOnTerminate(release).doOnCancel(release);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    int inFlight() {
+        return settings.maxInFlight() - permits.availablePermits();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long timedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("rag.http.in.flight", this, RequestLimiter::inFlight)
+                .description("RAG requests being answered").register(registry);
+        FunctionCounter.builder("rag.http.rejected", rejected, LongAdder::sum)
+                .description("RAG requests rejected at the concurrency limit").register(registry);
+        FunctionCounter.builder("rag.http.timed.out", timedOut, LongAdder::sum)
+                .description("RAG queries cancelled at the request timeout").register(registry);
+    }
+
+    // The returned action releases the permit once, however often it runs.
+    // It runs before completion reaches the subscriber, so a caller that sees
+    // a request finish also sees its permit returned.
+    private Runnable acquire() {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException(
+                    "Too many RAG requests in flight (limit " + settings.maxInFlight() + ")");
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+    }
+}
@@ -0,0 +1,325 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.ai.document.Document;
+
+// Re-ranks an over-fetched candidate list and keeps the best topK, without a
+// cross-encoder or any model call. A candidate's relevance mixes its
+// retrieval score, normalized across the candidates, with the share of the
+// question's terms it contains, plus a configured boost for its source.
+// Selection is maximal marginal relevance: each pick trades relevance against
+// term overlap with the chunks already picked, so near-identical chunks do
+// not crowd out the rest. Terms are hashed as the text is scanned, without
+// strings, and each candidate keeps only a bottom-k sketch of its terms, so
+// comparing two candidates costs at most 2 * SKETCH_SIZE steps.
+class Reranker {
+
+    // Hashes of LexicalIndex's stop words, sorted for binary search
+    private static final int[] STOP_WORDS = LexicalIndex.STOP_WORDS.stream()
+            .mapToInt(String::hashCode).sorted().toArray();
+    static final int SKETCH_SIZE = 64;
+    // Lowercase form of ASCII letters and digits, 0 for everything else
+    private static final char[] ASCII_TERM_CHARS = new char[128];
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            ASCII_TERM_CHARS[c] = c;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            ASCII_TERM_CHARS[c] = c;
+            ASCII_TERM_CHARS[Character.toUpperCase(c)] = c;
+        }
+    }
+
+    // diversity is MMR's lambda: 1 ranks by relevance alone
+    record Settings(int candidateFactor, double lexicalWeight, double diversity, Map<String, Double> sourceBoosts) {
+        Settings {
+            if (candidateFactor < 1 || lexicalWeight < 0 || lexicalWeight > 1 || diversity < 0 || diversity > 1) {
+                throw new IllegalArgumentException("Invalid re-ranking settings: " + candidateFactor + ", "
+                        + lexicalWeight + ", " + diversity);
+            }
+            sourceBoosts = Map.copyOf(sourceBoosts);
+        }
+
+        static Settings defaults() {
+            return new Settings(3, 0.3, 0.7, Map.of());
+        }
+    }
+
+    private final Settings settings;
+
+    Reranker(Settings settings) {
+        this.settings = settings;
+    }
+
+    Settings settings() {
+        return settings;
+    }
+
+    // How many candidates to fetch for topK results
+    int candidates(int topK) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) topK * settings.candidateFactor());
+    }
+
+    // The best topK of the candidates, each with its re-ranked relevance as score
+    List<Document> rerank(String query, List<Document> candidates, int topK) {
+        int n = candidates.size();
+        if (n == 0 || topK <= 0) {
+            return List.of();
+        }
+        int[] queryTerms = terms(query);
+        int[][] sketches = new int[n][];
+        double[] relevance = new double[n];
+        double minScore = Double.POSITIVE_INFINITY, maxScore = Double.NEGATIVE_INFINITY;
+        boolean scored = true;
+        for (int i = 0; i < n && scored; i++) {
+            Double score = candidates.get(i).getScore();
+            scored = score != null;
+            if (scored) {
+                minScore = Math.min(minScore, score);
+                maxScore = Math.max(maxScore, score);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            Document candidate = candidates.get(i);
+            var profile = new Profile(queryTerms);
+            scan(candidate.getText(), profile);
+            sketches[i] = profile.sketch();
+            double lexical = queryTerms.length == 0 ? 0 : (double) profile.queryMatches() / profile.queryTerms();
+            relevance[i] = (1 - settings.lexicalWeight()) * retrieval(candidate.getScore(), i, n, scored, minScore, maxScore)
+                    + settings.lexicalWeight() * lexical + boost(candidate);
+        }
+
+        int k = Math.min(topK, n);
+        boolean[] picked = new boolean[n];
+        // Highest similarity of each candidate to any picked one
+        double[] redundancy = new double[n];
+        List<Document> results = new ArrayList<>(k);
+        double lambda = settings.diversity();
+        for (int round = 0; round < k; round++) {
+            int best = -1;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                double value = lambda * relevance[i] - (1 - lambda) * redundancy[i];
+                if (!picked[i] && value > bestValue) {
+                    best = i;
+                    bestValue = value;
+                }
+            }
+            picked[best] = true;
+            results.add(candidates.get(best).mutate().score(relevance[best]).build());
+            if (lambda < 1) {
+                for (int i = 0; i < n; i++) {
+                    if (!picked[i]) {
+                        redundancy[i] = Math.max(redundancy[i], similarity(sketches[i], sketches[best]));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    // Similarity and fusion scores are relative to the best candidate; other
+    // scores are scaled to [0, 1]. Without scores, retrieval order is the ranking.
+    private static double retrieval(Double score, int rank, int n, boolean scored, double min, double max) {
+        if (!scored) {
+            return 1.0 - (double) rank / n;
+        }
+        if (min >= 0 && max > 0) {
+            return score / max;
+        }
+        return max > min ? (score - min) / (max - min) : 1.0;
+    }
+
+    // "source=boost" pairs separated by commas, as in rag.rerank.source-boosts
+    static Map<String, Double> sourceBoosts(String spec) {
+        Map<String, Double> boosts = new HashMap<>();
+        if (spec == null || spec.isBlank()) {
+            return boosts;
+        }
+        for (String pair : spec.split(",")) {
+            int equals = pair.indexOf('=');
+            if (equals < 1) {
+                throw new IllegalArgumentException("Invalid source boost: " + pair.strip());
+            }
+            boosts.put(pair.substring(0, equals).strip(), Double.parseDouble(pair.substring(equals + 1).strip()));
+        }
+        return boosts;
+    }
+
+    private double boost(Document document) {
+        if (settings.sourceBoosts().isEmpty()) {
+            return 0;
+        }
+        Object source = document.getMetadata().get("source");
+        return source != null ? settings.sourceBoosts().getOrDefault(source.toString(), 0.0) : 0;
+    }
+
+    // Distinct term hashes of the text, sorted
+    static int[] terms(String text) {
+        var collector = new TermCollector(Math.max(8, text.length() / 6));
+        scan(text, collector);
+        return collector.distinct();
+    }
+
+    // The text's bottom-k sketch, as rerank() builds it
+    static int[] sketch(String text) {
+        var profile = new Profile(new int[0]);
+        scan(text, profile);
+        return profile.sketch();
+    }
+
+    // Estimated Jaccard similarity of two texts from their sketches: the
+    // share of the smallest hashes of the union that are in both. Exact for
+    // texts with fewer than SKETCH_SIZE distinct terms.
+    static double similarity(int[] a, int[] b) {
+        // A full sketch says nothing about hashes above its largest
+        long limit = Math.min(a.length == SKETCH_SIZE ? a[SKETCH_SIZE - 1] : Long.MAX_VALUE,
+                b.length == SKETCH_SIZE ? b[SKETCH_SIZE - 1] : Long.MAX_VALUE);
+        int union = 0, shared = 0;
+        for (int i = 0, j = 0; union < SKETCH_SIZE && (i < a.length || j < b.length); union++) {
+            long next = Math.min(i < a.length ? a[i] : Long.MAX_VALUE, j < b.length ? b[j] : Long.MAX_VALUE);
+            if (next > limit) {
+                break;
+            }
+            boolean inA = i < a.length && a[i] == next;
+            boolean inB = j < b.length && b[j] == next;
+            if (inA && inB) {
+                shared++;
+            }
+            i += inA ? 1 : 0;
+            j += inB ? 1 : 0;
+        }
+        return union == 0 ? 0 : (double) shared / union;
+    }
+
+    private interface TermSink {
+        void term(int hash);
+    }
+
+    // Calls the sink with the String.hashCode of each term, LexicalIndex's
+    // terms: lowercased runs of letters and digits, without stop words and
+    // single letters
+    private static void scan(String text, TermSink sink) {
+        int hash = 0;
+        int length = 0;
+        boolean digit = false;
+        for (int i = 0, end = text.length(); i <= end; ) {
+            int codePoint = i < end ? text.charAt(i) : ' ';
+            int lower;
+            // ASCII without the Unicode tables
+            if (codePoint < 128) {
+                lower = ASCII_TERM_CHARS[codePoint];
+                i++;
+            } else {
+                codePoint = text.codePointAt(i);
+                lower = Character.isLetterOrDigit(codePoint) ? Character.toLowerCase(codePoint) : 0;
+                i += Character.charCount(codePoint);
+            }
+            if (lower != 0) {
+                if (Character.isBmpCodePoint(lower)) {
+                    hash = 31 * hash + lower;
+                } else {
+                    hash = 31 * (31 * hash + Character.highSurrogate(lower)) + Character.lowSurrogate(lower);
+                }
+                if (length++ == 0) {
+                    digit = Character.isDigit(codePoint);
+                }
+            } else if (length > 0) {
+                if ((length > 1 || digit) && Arrays.binarySearch(STOP_WORDS, hash) < 0) {
+                    sink.term(hash);
+                }
+                hash = 0;
+                length = 0;
+            }
+        }
+    }
+
+    private static final class TermCollector implements TermSink {
+        private int[] hashes;
+        private int count;
+
+        TermCollector(int capacity) {
+            this.hashes = new int[capacity];
+        }
+
+        @Override
+        public void term(int hash) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = hash;
+        }
+
+        int[] distinct() {
+            Arrays.sort(hashes, 0, count);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct == 0 || hashes[i] != hashes[distinct - 1]) {
+                    hashes[distinct++] = hashes[i];
+                }
+            }
+            return Arrays.copyOf(hashes, distinct);
+        }
+    }
+
+    // Which of the question's terms a candidate contains, and the
+    // SKETCH_SIZE smallest of its mixed term hashes
+    private static final class Profile implements TermSink {
+        private final int[] queryTerms;
+        private final int[] sketch = new int[SKETCH_SIZE];
+        private int size;
+        private long matched;
+
+        Profile(int[] queryTerms) {
+            this.queryTerms = queryTerms;
+        }
+
+        @Override
+        public void term(int hash) {
+            int query = queryTerms.length == 0 ? -1 : Arrays.binarySearch(queryTerms, hash);
+            if (query >= 0 && query < Long.SIZE) {
+                matched |= 1L << query;
+            }
+            // String hashes of similar words are close; a sketch needs them spread
+            int mixed = mix(hash);
+            if (size == SKETCH_SIZE && mixed >= sketch[SKETCH_SIZE - 1]) {
+                return;
+            }
+            int at = Arrays.binarySearch(sketch, 0, size, mixed);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            System.arraycopy(sketch, at, sketch, at + 1, (size < SKETCH_SIZE ? size : SKETCH_SIZE - 1) - at);
+            sketch[at] = mixed;
+            size = Math.min(size + 1, SKETCH_SIZE);
+        }
+
+        int queryMatches() {
+            return Long.bitCount(matched);
+        }
+
+        int queryTerms() {
+            return Math.min(queryTerms.length, Long.SIZE);
+        }
+
+        int[] sketch() {
+            return size == SKETCH_SIZE ? sketch : Arrays.copyOf(sketch, size);
+        }
+
+        // MurmurHash3's finalizer, a bijection, so distinct terms stay distinct
+        private static int mix(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.oreilly.springaicourse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.filter.FilterExpressionTextParser;
+
+// QuestionAnswerAdvisor with per-request search settings. QuestionAnswerAdvisor
+// fixes top-k and the similarity threshold when it is built, so RAGService had
+// to build one per query; this advisor is built once and registered as a
+// default advisor, and reads the settings from advisor params instead. It
+// uses the same context keys and prompt text as QuestionAnswerAdvisor.
+// Documents already passed in as RETRIEVED_DOCUMENTS are used as they are, so
+// a caller can search first and report the sources before the model answers.
+// Given a lexical index, it retrieves with HybridRetriever instead of the
+// vector store alone. Given a Reranker, it fetches more candidates than
+// top-k and keeps the re-ranked best. Given a ContextBudget, it trims the documents and the
+// conversation history, which the memory advisor has added by then, to fit.
+class RetrievalAdvisor implements BaseAdvisor {
+    static final String TOP_K = "rag_top_k";
+    static final String SIMILARITY_THRESHOLD = "rag_similarity_threshold";
+    static final String FILTER_EXPRESSION = QuestionAnswerAdvisor.FILTER_EXPRESSION;
+    static final String RETRIEVED_DOCUMENTS = QuestionAnswerAdvisor.RETRIEVED_DOCUMENTS;
+
+    // QuestionAnswerAdvisor's default prompt, assembled directly: rendering a
+    // PromptTemplate parses and evaluates a StringTemplate on every query
+    private static final String CONTEXT_HEADER = """
+
+
+            Context information is below, surrounded by ---------------------
+
+            ---------------------
+            """;
+    private static final String CONTEXT_FOOTER = """
+
+            ---------------------
+
+            Given the context and provided history information and not prior knowledge,
+            reply to the user comment. If the answer is not in the context, inform
+            the user that you can't answer the question.
+            """;
+
+    private static final int MAX_CACHED_FILTERS = 256;
+
+    private final VectorStore vectorStore;
+    private final HybridRetriever hybridRetriever;
+    private final Reranker reranker;
+    private final ContextBudget contextBudget;
+    private final int defaultTopK;
+    private final double defaultSimilarityThreshold;
+    private final int order;
+    private final FilterExpressionTextParser filterParser = new FilterExpressionTextParser();
+    // Callers reuse a handful of filters, and parsing one builds an ANTLR parser
+    private final Map<String, Filter.Expression> parsedFilters = new ConcurrentHashMap<>();
+
+    RetrievalAdvisor(VectorStore vectorStore, LexicalIndex lexicalIndex, Reranker reranker,
+                     ContextBudget contextBudget, int defaultTopK, double defaultSimilarityThreshold, int order) {
+        this.vectorStore = vectorStore;
+        this.hybridRetriever = lexicalIndex != null ? new HybridRetriever(vectorStore, lexicalIndex) : null;
+        this.reranker = reranker;
+        this.contextBudget = contextBudget;
+        this.defaultTopK = defaultTopK;
+        this.defaultSimilarityThreshold = defaultSimilarityThreshold;
+        this.order = order;
+    }
+
+    RetrievalAdvisor(VectorStore vectorStore, LexicalIndex lexicalIndex, Reranker reranker,
+                     ContextBudget contextBudget) {
+        this(vectorStore, lexicalIndex, reranker, contextBudget,
+                SearchRequest.DEFAULT_TOP_K, SearchRequest.SIMILARITY_THRESHOLD_ACCEPT_ALL, 0);
+    }
+
+    RetrievalAdvisor(VectorStore vectorStore, LexicalIndex lexicalIndex) {
+        this(vectorStore, lexicalIndex, null, null);
+    }
+
+    RetrievalAdvisor(VectorStore vectorStore) {
+        this(vectorStore, null);
+    }
+
+    @Override
+    public ChatClientRequest before(ChatClientRequest request, AdvisorChain chain) {
+        Map<String, Object> params = request.context();
+        String query = request.prompt().getUserMessage().getText();
+        List<Document> documents = retrievedDocuments(params);
+        if (documents == null) {
+            documents = retrieve(query, params);
+        }
+
+        Prompt prompt = request.prompt();
+        if (contextBudget != null) {
+            var assembly = contextBudget.assemble(prompt.getInstructions(), documents, augment(query, List.of()));
+            prompt = prompt.mutate().messages(assembly.messages()).build();
+            documents = assembly.documents();
+        }
+
+        // The documents reported are the ones the model saw
+        Map<String, Object> context = new HashMap<>(params);
+        context.put(RETRIEVED_DOCUMENTS, documents);
+        return request.mutate()
+                .prompt(prompt.augmentUserMessage(augment(query, documents)))
+                .context(context)
+                .build();
+    }
+
+    @Override
+    public ChatClientResponse after(ChatClientResponse response, AdvisorChain chain) {
+        ChatResponse.Builder chatResponse = response.chatResponse() == null
+                ? ChatResponse.builder() : ChatResponse.builder().from(response.chatResponse());
+        chatResponse.metadata(RETRIEVED_DOCUMENTS, response.context().get(RETRIEVED_DOCUMENTS));
+        return ChatClientResponse.builder().chatResponse(chatResponse.build()).context(response.context()).build();
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+
+    List<Document> retrieve(String query, Map<String, Object> params) {
+        int topK = params.get(TOP_K) instanceof Number value ? value.intValue() : defaultTopK;
+        SearchRequest.Builder search = SearchRequest.builder()
+                .query(query)
+                .topK(reranker != null ? reranker.candidates(topK) : topK)
+                .similarityThreshold(params.get(SIMILARITY_THRESHOLD) instanceof Number threshold
+                        ? threshold.doubleValue() : defaultSimilarityThreshold);
+        Filter.Expression filter = filterExpression(params.get(FILTER_EXPRESSION));
+        if (filter != null) {
+            search.filterExpression(filter);
+        }
+        List<Document> documents = hybridRetriever != null
+                ? hybridRetriever.search(search.build())
+                : vectorStore.similaritySearch(search.build());
+        return reranker != null ? reranker.rerank(query, documents, topK) : documents;
+    }
+
+    // retrieve(), trimmed to the context budget as before() trims it for a
+    // prompt of the history and the question: the documents the model sees.
+    // Passed back as RETRIEVED_DOCUMENTS, the list already fits and is kept.
+    List<Document> retrieveWithinBudget(String query, Map<String, Object> params, List<Message> history) {
+        List<Document> documents = retrieve(query, params);
+        if (contextBudget == null) {
+            return documents;
+        }
+        List<Message> messages = new ArrayList<>(history);
+        messages.add(new UserMessage(query));
+        return contextBudget.assemble(messages, documents, augment(query, List.of())).documents();
+    }
+
+    @SuppressWarnings("unchecked")
+    static List<Document> retrievedDocuments(Map<String, Object> context) {
+        return context.get(RETRIEVED_DOCUMENTS) instanceof List<?> documents ? (List<Document>) documents : null;
+    }
+
+    static String augment(String query, List<Document> documents) {
+        int length = query.length() + CONTEXT_HEADER.length() + CONTEXT_FOOTER.length();
+        if (documents != null) {
+            for (Document document : documents) {
+                length += document.getText().length() + 1;
+            }
+        }
+        StringBuilder prompt = new StringBuilder(length).append(query).append(CONTEXT_HEADER);
+        if (documents != null) {
+            for (int i = 0; i < documents.size(); i++) {
+                if (i > 0) {
+                    prompt.append(System.lineSeparator());
+                }
+                prompt.append(documents.get(i).getText());
+            }
+        }
+        return prompt.append(CONTEXT_FOOTER).toString();
+    }
+
+    private Filter.Expression filterExpression(Object value) {
+        if (value instanceof Filter.Expression expression) {
+            return expression;
+        }
+        if (value == null || value.toString().isBlank()) {
+            return null;
+        }
+        if (parsedFilters.size() >= MAX_CACHED_FILTERS) {
+            parsedFilters.clear();
+        }
+        return parsedFilters.computeIfAbsent(value.toString(), text -> {
+            // The parser shares one error listener between calls
+            synchronized (filterParser) {
+                return filterParser.parse(text);
+            }
+        });
+    }
+}
@@ -0,0 +1,457 @@
+package com.oreilly.springaicourse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+// ChatModel that sends each request to one of several providers, picked by
+// what it has observed of them: recent median latency, scaled up by the
+// requests already in flight there and by the provider's recent error rate.
+// Providers that have not completed minSamples requests yet, answered or
+// failed, are tried first, so each gets measured; every exploreEvery-th
+// request goes to the runner-up so a provider that was slow for a while gets
+// the chance to show it is not any more. A provider failing more than
+// maxErrorRate of recent requests is only used when all are.
+//
+// A call that has not answered by the provider's p95 latency is hedged: the
+// same request goes to the next provider and the first answer wins, the
+// other call being cancelled. Hedges are capped at hedgeBudget of requests so
+// a slow provider cannot double the load. A call that fails is retried on the
+// next provider. Streams are hedged the same way on time to first token, and
+// fail over as long as nothing has been emitted. The default options are
+// ChatModel's empty ones, so each provider applies its own model name and
+// settings.
+class RoutingChatModel implements ChatModel, MeterBinder, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RoutingChatModel.class);
+
+    record Settings(int window, int minSamples, double errorDecay, double maxErrorRate, int exploreEvery,
+                    double hedgePercentile, Duration minHedgeDelay, double hedgeBudget) {
+        Settings {
+            if (window < 1 || minSamples < 1 || minSamples > window || errorDecay <= 0 || errorDecay > 1
+                    || maxErrorRate <= 0 || maxErrorRate > 1 || exploreEvery < 0
+                    || hedgePercentile <= 0 || hedgePercentile > 1 || hedgeBudget < 0) {
+                throw new IllegalArgumentException("Invalid routing settings: " + this);
+            }
+        }
+
+        // Latency over the last 200 answers, errors with a half-life of
+        // about 7 requests, hedges for at most 1 request in 10
+        static Settings defaults() {
+            return new Settings(200, 20, 0.1, 0.5, 50, 0.95, Duration.ofMillis(200), 0.1);
+        }
+    }
+
+    // What the router currently knows about a provider
+    record RouteStats(String name, long requests, int inFlight, double errorRate,
+                      Duration p50, Duration p95, Duration p99) {}
+
+    // The last window latencies, in nanoseconds
+    private static final class LatencyWindow {
+        private final long[] latencies;
+        private int samples;
+        private int next;
+        // Sorted copy of the window, replaced on every sample
+        private volatile long[] sorted = new long[0];
+
+        LatencyWindow(int window) {
+            this.latencies = new long[window];
+        }
+
+        synchronized void add(long nanos) {
+            latencies[next] = nanos;
+            next = (next + 1) % latencies.length;
+            samples = Math.min(samples + 1, latencies.length);
+            long[] copy = Arrays.copyOf(latencies, samples);
+            Arrays.sort(copy);
+            sorted = copy;
+        }
+
+        int samples() {
+            return sorted.length;
+        }
+
+        long percentile(double p) {
+            long[] snapshot = sorted;
+            if (snapshot.length == 0) {
+                return 0;
+            }
+            return snapshot[(int) Math.min(snapshot.length - 1, Math.ceil(p * snapshot.length) - 1)];
+        }
+    }
+
+    private static final class Route {
+        final String name;
+        final ChatModel model;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final LongAdder requests = new LongAdder();
+        // Whole answers, called or streamed
+        final LatencyWindow answers;
+        // Time to the first chunk of a stream
+        final LatencyWindow firstChunks;
+        // Completed calls, failed ones included
+        private long attempts;
+        private double errorRate;
+
+        Route(String name, ChatModel model, int window) {
+            this.name = name;
+            this.model = model;
+            this.answers = new LatencyWindow(window);
+            this.firstChunks = new LatencyWindow(window);
+        }
+
+        synchronized void success(long nanos, double decay) {
+            answers.add(nanos);
+            errorRate *= 1 - decay;
+            attempts++;
+        }
+
+        synchronized void failure(double decay) {
+            errorRate = errorRate * (1 - decay) + decay;
+            attempts++;
+        }
+
+        synchronized long attempts() {
+            return attempts;
+        }
+
+        synchronized double errorRate() {
+            return errorRate;
+        }
+
+        // Answers in the latency window
+        int samples() {
+            return answers.samples();
+        }
+
+        long percentile(double p) {
+            return answers.percentile(p);
+        }
+
+        RouteStats stats() {
+            return new RouteStats(name, requests.sum(), inFlight.get(), errorRate(),
+                    Duration.ofNanos(percentile(0.5)), Duration.ofNanos(percentile(0.95)),
+                    Duration.ofNanos(percentile(0.99)));
+        }
+    }
+
+    private final List<Route> routes;
+    private final Settings settings;
+    private final ExecutorService executor;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    // Providers by name, in order of preference when nothing is known yet
+    RoutingChatModel(Map<String, ChatModel> models, Settings settings) {
+        if (models.isEmpty()) {
+            throw new IllegalArgumentException("No chat models to route between");
+        }
+        this.settings = settings;
+        this.routes = models.entrySet().stream()
+                .map(entry -> new Route(entry.getKey(), entry.getValue(), settings.window()))
+                .toList();
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "chat-route-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    RoutingChatModel(Map<String, ChatModel> models) {
+        this(models, Settings.defaults());
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        List<Route> order = order();
+        Set<Route> failed = new HashSet<>();
+        RuntimeException failure = null;
+        for (int i = 0; i < order.size(); i++) {
+            Route route = order.get(i);
+            if (failed.contains(route)) {
+                continue;
+            }
+            if (failure != null) {
+                failovers.increment();
+                log.debug("Failing over to {}: {}", route.name, failure.getMessage());
+            }
+            try {
+                Route backup = i + 1 < order.size() ? order.get(i + 1) : null;
+                return hedgeable(route.answers, backup)
+                        ? hedged(route, backup, prompt, failed) : attempt(route, prompt);
+            } catch (RuntimeException e) {
+                failed.add(route);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        return Flux.defer(() -> stream(order(), 0, prompt));
+    }
+
+    List<RouteStats> stats() {
+        return routes.stream().map(Route::stats).toList();
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    long failovers() {
+        return failovers.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.chat.route.hedges", hedges, LongAdder::sum)
+                .description("Requests also sent to a second provider").register(registry);
+        FunctionCounter.builder("rag.chat.route.failovers", failovers, LongAdder::sum)
+                .description("Requests retried on another provider after an error").register(registry);
+        for (Route route : routes) {
+            FunctionCounter.builder("rag.chat.route.requests", route.requests, LongAdder::sum)
+                    .tag("provider", route.name).description("Requests sent to the provider").register(registry);
+            Gauge.builder("rag.chat.route.in-flight", route.inFlight, AtomicInteger::get)
+                    .tag("provider", route.name).register(registry);
+            Gauge.builder("rag.chat.route.error-rate", route, Route::errorRate)
+                    .tag("provider", route.name).register(registry);
+            Gauge.builder("rag.chat.route.latency.p95", route, r -> r.percentile(0.95) / 1e9)
+                    .tag("provider", route.name).baseUnit("seconds").register(registry);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Providers from best to worst for the next request
+    private List<Route> order() {
+        long request = requests.sum();
+        requests.increment();
+        List<Route> order = new ArrayList<>(routes);
+        // Failures count towards minSamples, or a provider failing from the
+        // start would never be measured and would stay first
+        order.sort(Comparator.comparing((Route route) -> route.attempts() >= settings.minSamples()
+                        && route.errorRate() > settings.maxErrorRate())
+                .thenComparingDouble(this::cost));
+        if (settings.exploreEvery() > 0 && order.size() > 1 && request % settings.exploreEvery() == 0 && request > 0) {
+            order.add(0, order.remove(1));
+        }
+        return order;
+    }
+
+    // Expected wait in nanoseconds; zero until the provider has been
+    // measured, unbounded if it has never answered since
+    private double cost(Route route) {
+        if (route.attempts() < settings.minSamples()) {
+            return 0;
+        }
+        if (route.samples() == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return route.percentile(0.5) * (1.0 + route.inFlight.get())
+                / Math.max(0.01, 1 - route.errorRate());
+    }
+
+    private boolean hedgeable(LatencyWindow latencies, Route backup) {
+        return backup != null && latencies.samples() >= settings.minSamples() && hedgeBudgetLeft();
+    }
+
+    private boolean hedgeBudgetLeft() {
+        return hedges.sum() < settings.hedgeBudget() * requests.sum();
+    }
+
+    private long hedgeDelay(LatencyWindow latencies) {
+        return Math.max(settings.minHedgeDelay().toNanos(), latencies.percentile(settings.hedgePercentile()));
+    }
+
+    private ChatResponse attempt(Route route, Prompt prompt) {
+        return attempt(route, prompt, new AtomicBoolean());
+    }
+
+    // A call cancelled because the other one answered first is not an error,
+    // and its time so far is not a latency: it is not recorded at all
+    private ChatResponse attempt(Route route, Prompt prompt, AtomicBoolean cancelled) {
+        route.requests.increment();
+        route.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            ChatResponse response = route.model.call(prompt);
+            route.success(System.nanoTime() - start, settings.errorDecay());
+            return response;
+        } catch (RuntimeException e) {
+            if (!cancelled.get()) {
+                route.failure(settings.errorDecay());
+            }
+            throw e;
+        } finally {
+            route.inFlight.decrementAndGet();
+        }
+    }
+
+    // A backup that fails is added to failed, so it is not tried again
+    private ChatResponse hedged(Route primary, Route backup, Prompt prompt, Set<Route> failed) {
+        CompletionService<ChatResponse> calls = new ExecutorCompletionService<>(executor);
+        Map<Future<ChatResponse>, AtomicBoolean> started = new LinkedHashMap<>();
+        AtomicBoolean primaryCancelled = new AtomicBoolean();
+        Future<ChatResponse> primaryCall = calls.submit(() -> attempt(primary, prompt, primaryCancelled));
+        started.put(primaryCall, primaryCancelled);
+        try {
+            Future<ChatResponse> done = calls.poll(hedgeDelay(primary.answers), TimeUnit.NANOSECONDS);
+            // The budget may have been spent while this call waited
+            if (done == null && hedgeBudgetLeft()) {
+                hedges.increment();
+                AtomicBoolean backupCancelled = new AtomicBoolean();
+                started.put(calls.submit(() -> attempt(backup, prompt, backupCancelled)), backupCancelled);
+            }
+            RuntimeException failure = null;
+            for (int pending = started.size(); pending > 0; pending--) {
+                if (done == null) {
+                    done = calls.take();
+                }
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (done != primaryCall) {
+                        failed.add(backup);
+                    }
+                    if (failure == null) {
+                        failure = unwrap(e);
+                    }
+                    done = null;
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } finally {
+            started.forEach((call, cancelled) -> {
+                if (!call.isDone()) {
+                    cancelled.set(true);
+                    call.cancel(true);
+                }
+            });
+        }
+    }
+
+    private Flux<ChatResponse> stream(List<Route> order, int index, Prompt prompt) {
+        Route route = order.get(index);
+        Route backup = index + 1 < order.size() ? order.get(index + 1) : null;
+        boolean hedged = hedgeable(route.firstChunks, backup);
+        AtomicBoolean emitted = new AtomicBoolean();
+        Flux<ChatResponse> stream = (hedged ? hedgedStream(route, backup, prompt) : attemptStream(route, prompt))
+                .doOnNext(response -> emitted.set(true));
+        // A hedged stream has tried the backup already
+        int next = hedged ? index + 2 : index + 1;
+        if (next >= order.size()) {
+            return stream;
+        }
+        return stream.onErrorResume(e -> !emitted.get(), e -> {
+            failovers.increment();
+            log.debug("Failing over from {} to {}: {}", route.name, order.get(next).name, e.getMessage());
+            return stream(order, next, prompt);
+        });
+    }
+
+    // A stream cancelled because the other one emitted first records nothing
+    private Flux<ChatResponse> attemptStream(Route route, Prompt prompt) {
+        AtomicBoolean emitted = new AtomicBoolean();
+        long[] start = new long[1];
+        return route.model.stream(prompt)
+                .doOnSubscribe(subscription -> {
+                    route.requests.increment();
+                    route.inFlight.incrementAndGet();
+                    start[0] = System.nanoTime();
+                })
+                .doOnNext(response -> {
+                    if (emitted.compareAndSet(false, true)) {
+                        route.firstChunks.add(System.nanoTime() - start[0]);
+                    }
+                })
+                .doOnComplete(() -> route.success(System.nanoTime() - start[0], settings.errorDecay()))
+                .doOnError(e -> route.failure(settings.errorDecay()))
+                .doFinally(signal -> route.inFlight.decrementAndGet());
+    }
+
+    // The backup stream starts when the primary has emitted nothing by its
+    // p95 time to first chunk, budget permitting, or at once when the primary
+    // ends without emitting. The first to emit is kept and the other cancelled.
+    private Flux<ChatResponse> hedgedStream(Route primary, Route backup, Prompt prompt) {
+        return Flux.defer(() -> {
+            AtomicBoolean emitted = new AtomicBoolean();
+            Sinks.Empty<Void> ended = Sinks.empty();
+            Flux<ChatResponse> first = attemptStream(primary, prompt)
+                    .doOnNext(response -> emitted.set(true))
+                    .doOnTerminate(() -> {
+                        if (!emitted.get()) {
+                            ended.tryEmitEmpty();
+                        }
+                    });
+            // The budget may have been spent while the primary waited
+            Mono<Boolean> hedge = Mono.delay(Duration.ofNanos(hedgeDelay(primary.firstChunks)))
+                    .filter(tick -> hedgeBudgetLeft())
+                    .map(tick -> true);
+            Mono<Boolean> failover = ended.asMono().then(Mono.just(false));
+            Flux<ChatResponse> second = Mono.firstWithValue(hedge, failover).flatMapMany(hedging -> {
+                if (hedging) {
+                    hedges.increment();
+                } else {
+                    failovers.increment();
+                    log.debug("Failing over from {} to {}", primary.name, backup.name);
+                }
+                return attemptStream(backup, prompt);
+            });
+            // Both failing is reported as the primary's error, as call() does
+            return Flux.firstWithValue(first, second).onErrorMap(
+                    e -> e instanceof NoSuchElementException && e.getCause() != null
+                            && Exceptions.isMultiple(e.getCause()),
+                    e -> Exceptions.unwrapMultiple(e.getCause()).get(0));
+        });
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException cause) {
+            return cause;
+        }
+        if (e.getCause() instanceof Error error) {
+            throw error;
+        }
+        return new IllegalStateException(e.getCause());
+    }
+}
@@ -0,0 +1,61 @@
+package com.oreilly.springaicourse;
+
+import java.util.Arrays;
+
+// One signed byte per dimension plus a per-vector scale (max |x| / 127):
+// roughly 4x smaller than float32. Queries stay in full precision, so only
+// the stored side carries rounding error.
+class ScalarQuantizedVectors implements QuantizedVectors {
+    private final int dimensions;
+    private byte[] codes;
+    private float[] scales;
+    private int count;
+
+    ScalarQuantizedVectors(int dimensions) {
+        this.dimensions = dimensions;
+        this.codes = new byte[dimensions * 256];
+        this.scales = new float[256];
+    }
+
+    @Override
+    public String name() {
+        return "int8";
+    }
+
+    @Override
+    public void add(int slot, float[] vector) {
+        if (slot >= scales.length) {
+            int capacity = Math.max(slot + 1, scales.length * 2);
+            scales = Arrays.copyOf(scales, capacity);
+            codes = Arrays.copyOf(codes, Math.multiplyExact(capacity, dimensions));
+        }
+        float max = 0;
+        for (float value : vector) {
+            max = Math.max(max, Math.abs(value));
+        }
+        float scale = max == 0 ? 1 : max / 127;
+        int offset = slot * dimensions;
+        for (int i = 0; i < dimensions; i++) {
+            codes[offset + i] = (byte) Math.round(vector[i] / scale);
+        }
+        scales[slot] = scale;
+        count = Math.max(count, slot + 1);
+    }
+
+    @Override
+    public Scorer scorer(float[] query) {
+        return slot -> {
+            int offset = slot * dimensions;
+            float sum = 0;
+            for (int i = 0; i < dimensions; i++) {
+                sum += query[i] * codes[offset + i];
+            }
+            return sum * scales[slot];
+        };
+    }
+
+    @Override
+    public long memoryBytes() {
+        return (long) count * (dimensions + Float.BYTES);
+    }
+}
@@ -0,0 +1,169 @@
+package com.oreilly.springaicourse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.ai.embedding.EmbeddingModel;
+
+// Answers questions that are near-duplicates of recently answered ones.
+// Questions are embedded and compared by cosine similarity; a match above the
+// threshold, asked with the same retrieval options, returns the stored answer
+// and the ids of the documents it was based on. Entries expire after a TTL and
+// are invalidated when any of their sources is re-ingested.
+class SemanticResponseCache implements MeterBinder {
+
+    record Settings(double similarityThreshold, Duration ttl, int maxEntries) {
+        static Settings defaults() {
+            return new Settings(0.95, Duration.ofHours(1), 1_000);
+        }
+    }
+
+    // What a cached answer cost to produce, credited as saved on every hit
+    record Answer(String text, List<String> documentIds, Set<String> sources, long latencyMillis, long tokens) {}
+
+    record Stats(long hits, long misses, long savedLatencyMillis, long savedTokens, int entries) {
+        double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private record Entry(float[] embedding, float norm, QueryOptions options, Answer answer, long expiresAt) {}
+
+    private final EmbeddingModel embeddingModel;
+    private final Settings settings;
+    private final Clock clock;
+    private final SimilarityKernel kernel = SimilarityKernel.best();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder savedLatencyMillis = new LongAdder();
+    private final LongAdder savedTokens = new LongAdder();
+
+    SemanticResponseCache(EmbeddingModel embeddingModel, Settings settings, Clock clock) {
+        this.embeddingModel = embeddingModel;
+        this.settings = settings;
+        this.clock = clock;
+    }
+
+    SemanticResponseCache(EmbeddingModel embeddingModel, Settings settings) {
+        this(embeddingModel, settings, Clock.systemUTC());
+    }
+
+    // Embeds a question once, for get() and put()
+    float[] embed(String question) {
+        return embeddingModel.embed(question);
+    }
+
+    Answer get(float[] embedding, QueryOptions options) {
+        float norm = kernel.norm(embedding);
+        long now = clock.millis();
+        Entry best = null;
+        float bestScore = (float) settings.similarityThreshold();
+        lock.readLock().lock();
+        try {
+            for (Entry entry : entries) {
+                if (entry.expiresAt() <= now || !sameRetrieval(entry.options(), options)) {
+                    continue;
+                }
+                float score = kernel.cosine(embedding, norm, entry.embedding(), entry.norm());
+                if (score >= bestScore) {
+                    best = entry;
+                    bestScore = score;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (best == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        savedLatencyMillis.add(best.answer().latencyMillis());
+        savedTokens.add(best.answer().tokens());
+        return best.answer();
+    }
+
+    void put(float[] embedding, QueryOptions options, Answer answer) {
+        long now = clock.millis();
+        lock.writeLock().lock();
+        try {
+            entries.removeIf(entry -> entry.expiresAt() <= now);
+            if (entries.size() >= settings.maxEntries()) {
+                // Entries are appended, so the first one is the oldest
+                entries.remove(0);
+            }
+            entries.add(new Entry(embedding, kernel.norm(embedding), options, answer,
+                    now + settings.ttl().toMillis()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Drops answers built from documents of any of these sources
+    void invalidate(Collection<String> sources) {
+        lock.writeLock().lock();
+        try {
+            entries.removeIf(entry -> entry.answer().sources().stream().anyMatch(sources::contains));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    Stats stats() {
+        lock.readLock().lock();
+        try {
+            return new Stats(hits.sum(), misses.sum(), savedLatencyMillis.sum(), savedTokens.sum(), entries.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("rag.cache.requests", hits, LongAdder::sum).tag("result", "hit")
+                .description("Semantic cache lookups").register(registry);
+        FunctionCounter.builder("rag.cache.requests", misses, LongAdder::sum).tag("result", "miss")
+                .description("Semantic cache lookups").register(registry);
+        Gauge.builder("rag.cache.hit.rate", this, cache -> cache.stats().hitRate())
+                .description("Fraction of lookups answered from the cache").register(registry);
+        FunctionCounter.builder("rag.cache.saved.latency", savedLatencyMillis, adder -> adder.sum() / 1000.0)
+                .baseUnit("seconds").description("Model latency avoided by cache hits").register(registry);
+        FunctionCounter.builder("rag.cache.saved.tokens", savedTokens, LongAdder::sum)
+                .baseUnit("tokens").description("Model tokens avoided by cache hits").register(registry);
+        Gauge.builder("rag.cache.entries", this, cache -> cache.stats().entries())
+                .description("Cached answers").register(registry);
+    }
+
+    // The conversation id does not change what is retrieved
+    private static boolean sameRetrieval(QueryOptions a, QueryOptions b) {
+        return a.topK() == b.topK()
+                && a.similarityThreshold() == b.similarityThreshold()
+                && Objects.equals(a.filterExpression(), b.filterExpression());
+    }
+}
@@ -0,0 +1,328 @@
+package com.oreilly.springaicourse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.observation.conventions.VectorStoreProvider;
+import org.springframework.ai.observation.conventions.VectorStoreSimilarityMetric;
+import org.springframework.ai.vectorstore.AbstractVectorStoreBuilder;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.observation.AbstractObservationVectorStore;
+import org.springframework.ai.vectorstore.observation.VectorStoreObservationContext;
+
+// A local vector store split into N MappedVectorStore shards, each in its
+// own subdirectory. Chunks go to a shard by a hash of their id, or of a
+// metadata value such as "source" when a partition key is set. A query is
+// embedded once, searched on every shard in parallel, and the per-shard
+// top-k lists are merged with a bounded heap. Each shard has its own lock,
+// graph and mapped file, so adds and searches on different shards do not
+// contend. The shard count is part of the on-disk layout and cannot change
+// without re-ingesting. The partition key can: a chunk written again is
+// dropped from every shard but the one it is routed to now, and deletes go
+// to every shard, so chunks still where the old key put them are found.
+public class ShardedVectorStore extends AbstractObservationVectorStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedVectorStore.class);
+
+    private static final Comparator<Document> BY_SCORE = Comparator.comparingDouble(Document::getScore);
+
+    private final Path directory;
+    private final EmbeddingModel queryEmbeddingModel;
+    private final String partitionKey;
+    private final List<MappedVectorStore> shards;
+    private final ForkJoinPool pool;
+
+    protected ShardedVectorStore(Builder builder) {
+        super(builder);
+        this.directory = builder.directory;
+        this.queryEmbeddingModel = builder.queryEmbeddingModel != null
+                ? builder.queryEmbeddingModel : builder.getEmbeddingModel();
+        this.partitionKey = builder.partitionKey;
+        checkLayout(builder.shards);
+        this.pool = new ForkJoinPool(builder.parallelism);
+        List<MappedVectorStore> opened = new ArrayList<>(builder.shards);
+        for (int i = 0; i < builder.shards; i++) {
+            var shard = MappedVectorStore.builder(builder.getEmbeddingModel()).directory(directory.resolve("shard-" + i));
+            builder.shardOptions.accept(shard);
+            opened.add(shard.build());
+        }
+        this.shards = List.copyOf(opened);
+        logger.info("Opened sharded vector store at {} with {} shards and {} documents",
+                directory, shards.size(), size());
+    }
+
+    public static Builder builder(EmbeddingModel embeddingModel) {
+        return new Builder(embeddingModel);
+    }
+
+    public int size() {
+        return shards.stream().mapToInt(MappedVectorStore::size).sum();
+    }
+
+    public boolean containsAll(Collection<String> ids) {
+        if (partitionKey != null) {
+            // The id does not say which shard holds the chunk
+            return ids.stream().allMatch(id -> shards.stream().anyMatch(shard -> shard.containsAll(List.of(id))));
+        }
+        return ids.stream().allMatch(id -> shards.get(Math.floorMod(id.hashCode(), shards.size()))
+                .containsAll(List.of(id)));
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    // Documents per shard, to see how evenly the partitioning spreads them
+    public List<Integer> shardSizes() {
+        return shards.stream().map(MappedVectorStore::size).toList();
+    }
+
+    @Override
+    public void doAdd(List<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        // Embedded in one call, as the caller batched them, then split by shard
+        List<float[]> embeddings = embeddingModel.embed(documents, EmbeddingOptionsBuilder.builder().build(),
+                batchingStrategy);
+        List<List<Document>> routed = new ArrayList<>(shards.size());
+        List<List<float[]>> routedEmbeddings = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            routed.add(new ArrayList<>());
+            routedEmbeddings.add(new ArrayList<>());
+        }
+        for (int i = 0; i < documents.size(); i++) {
+            int shard = shardOf(documents.get(i));
+            routed.get(shard).add(documents.get(i));
+            routedEmbeddings.get(shard).add(embeddings.get(i));
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            MappedVectorStore shard = shards.get(i);
+            List<Document> batch = routed.get(i);
+            List<float[]> batchEmbeddings = routedEmbeddings.get(i);
+            tasks.add(() -> {
+                // A chunk routed elsewhere than before (its partition value
+                // or the partition key changed) moves shards; drop the old copy
+                if (batch.size() < documents.size()) {
+                    Set<String> here = batch.stream().map(Document::getId).collect(Collectors.toSet());
+                    shard.delete(documents.stream()
+                            .map(Document::getId)
+                            .filter(id -> !here.contains(id))
+                            .toList());
+                }
+                if (!batch.isEmpty()) {
+                    shard.add(batch, batchEmbeddings);
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    @Override
+    public void doDelete(List<String> idList) {
+        // The id does not say which shard holds the chunk: it may have been
+        // written under another partition key
+        forEachShard(shard -> shard.delete(idList));
+    }
+
+    @Override
+    protected void doDelete(Filter.Expression filterExpression) {
+        forEachShard(shard -> shard.delete(filterExpression));
+    }
+
+    @Override
+    public List<Document> doSimilaritySearch(SearchRequest request) {
+        float[] query = queryEmbeddingModel.embed(request.getQuery());
+        List<Callable<List<Document>>> tasks = shards.stream()
+                .<Callable<List<Document>>>map(shard -> () -> shard.search(request, query))
+                .toList();
+
+        // Min-heap of the best top-k so far
+        PriorityQueue<Document> top = new PriorityQueue<>(request.getTopK() + 1, BY_SCORE);
+        for (List<Document> results : invokeAll(tasks)) {
+            for (Document document : results) {
+                if (top.size() < request.getTopK()) {
+                    top.add(document);
+                } else if (document.getScore() > top.peek().getScore()) {
+                    top.poll();
+                    top.add(document);
+                }
+            }
+        }
+        List<Document> documents = new ArrayList<>(top);
+        documents.sort(BY_SCORE.reversed());
+        return documents;
+    }
+
+    // Total vectors compared against queries across the shards
+    long vectorsScored() {
+        return shards.stream().mapToLong(shard -> shard.vectorsScored.sum()).sum();
+    }
+
+    @Override
+    public VectorStoreObservationContext.Builder createObservationContextBuilder(String operationName) {
+        return VectorStoreObservationContext.builder(VectorStoreProvider.SIMPLE.value(), operationName)
+                .collectionName(directory.toString())
+                .similarityMetric(VectorStoreSimilarityMetric.COSINE.value());
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        IOException failure = null;
+        for (MappedVectorStore shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private int shardOf(Document document) {
+        Object value = partitionKey != null ? document.getMetadata().get(partitionKey) : null;
+        String key = value != null ? value.toString() : document.getId();
+        return Math.floorMod(key.hashCode(), shards.size());
+    }
+
+    private void forEachShard(Consumer<MappedVectorStore> action) {
+        invokeAll(shards.stream().<Callable<Void>>map(shard -> () -> {
+            action.accept(shard);
+            return null;
+        }).toList());
+    }
+
+    // Runs one task per shard on the pool and returns their results in shard order
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                return List.of(tasks.get(0).call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for a shard", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                throw new IllegalStateException("Shard operation failed", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    // Chunks are routed by shard count, so reopening with another count
+    // would look for them in the wrong shards
+    private void checkLayout(int shards) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        // A single store's files would sit beside the shards, never searched
+        if (Files.exists(directory.resolve(MappedVectorStore.VECTORS_FILE))
+                || Files.exists(directory.resolve(MappedVectorStore.DOCUMENTS_FILE))) {
+            throw new IllegalStateException("Vector store at " + directory + " is a single store but " + shards
+                    + " shards are configured; re-ingest into an empty directory");
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            long existing = children
+                    .filter(child -> Files.isDirectory(child) && child.getFileName().toString().startsWith("shard-"))
+                    .count();
+            if (existing != 0 && existing != shards) {
+                throw new IllegalStateException("Vector store at " + directory + " has " + existing
+                        + " shards but " + shards + " are configured; re-ingest into an empty directory");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static final class Builder extends AbstractVectorStoreBuilder<Builder> {
+        private Path directory = Path.of("data", "vectorstore");
+        private EmbeddingModel queryEmbeddingModel;
+        private int shards = Runtime.getRuntime().availableProcessors();
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private String partitionKey;
+        private Consumer<MappedVectorStore.Builder> shardOptions = shard -> {};
+
+        private Builder(EmbeddingModel embeddingModel) {
+            super(embeddingModel);
+        }
+
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        // Embeds search queries; defaults to the model that embeds documents
+        public Builder queryEmbeddingModel(EmbeddingModel queryEmbeddingModel) {
+            this.queryEmbeddingModel = queryEmbeddingModel;
+            return this;
+        }
+
+        public Builder shards(int shards) {
+            if (shards < 1) {
+                throw new IllegalArgumentException("At least one shard is required: " + shards);
+            }
+            this.shards = shards;
+            return this;
+        }
+
+        // Threads searching shards at once
+        public Builder parallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+            return this;
+        }
+
+        // Null routes by document id; a key such as "source" keeps each
+        // value's chunks together on one shard
+        public Builder partitionKey(String partitionKey) {
+            this.partitionKey = partitionKey;
+            return this;
+        }
+
+        // Kernel, quantization and HNSW settings applied to every shard
+        public Builder shardOptions(Consumer<MappedVectorStore.Builder> shardOptions) {
+            this.shardOptions = shardOptions;
+            return this;
+        }
+
+        @Override
+        public ShardedVectorStore build() {
+            return new ShardedVectorStore(this);
+        }
+    }
+}
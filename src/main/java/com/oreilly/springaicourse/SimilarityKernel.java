@@ -0,0 +1,98 @@
+package com.oreilly.springaicourse;
+
+import java.nio.ByteBuffer;
+
+// Dot product / cosine over float arrays, and of a query against a vector
+// read in place from a (memory-mapped) buffer: the inner loop of every
+// vector search. The Vector API implementation is used when the incubator module is
+// on the module path (--add-modules jdk.incubator.vector, see
+// build.gradle.kts); otherwise the scalar loop is the fallback.
+interface SimilarityKernel {
+
+    String name();
+
+    float dot(float[] a, float[] b);
+
+    // a against the a.length floats at byte offset in b, in b's byte order
+    float dot(float[] a, ByteBuffer b, int offset);
+
+    default float norm(float[] vector) {
+        return (float) Math.sqrt(dot(vector, vector));
+    }
+
+    default float cosine(float[] a, float aNorm, float[] b, float bNorm) {
+        float denominator = aNorm * bNorm;
+        return denominator == 0 ? 0 : dot(a, b) / denominator;
+    }
+
+    static SimilarityKernel scalar() {
+        return ScalarKernel.INSTANCE;
+    }
+
+    static boolean vectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    static SimilarityKernel best() {
+        return vectorApiAvailable() ? new VectorApiKernel() : scalar();
+    }
+
+    // "auto", "vector" or "scalar"
+    static SimilarityKernel named(String name) {
+        return switch (name) {
+            case "auto" -> best();
+            case "scalar" -> scalar();
+            case "vector" -> {
+                if (!vectorApiAvailable()) {
+                    throw new IllegalStateException(
+                            "The vector kernel needs the JVM option --add-modules jdk.incubator.vector");
+                }
+                yield new VectorApiKernel();
+            }
+            default -> throw new IllegalArgumentException("Unknown similarity kernel: " + name);
+        };
+    }
+
+    final class ScalarKernel implements SimilarityKernel {
+        static final ScalarKernel INSTANCE = new ScalarKernel();
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+
+        @Override
+        public float dot(float[] a, float[] b) {
+            // Four independent accumulators let the JIT overlap the multiply-adds
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < a.length; i += 4) {
+                s0 += a[i] * b[i];
+                s1 += a[i + 1] * b[i + 1];
+                s2 += a[i + 2] * b[i + 2];
+                s3 += a[i + 3] * b[i + 3];
+            }
+            for (; i < a.length; i++) {
+                s0 += a[i] * b[i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public float dot(float[] a, ByteBuffer b, int offset) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < a.length; i += 4) {
+                int at = offset + i * Float.BYTES;
+                s0 += a[i] * b.getFloat(at);
+                s1 += a[i + 1] * b.getFloat(at + 4);
+                s2 += a[i + 2] * b.getFloat(at + 8);
+                s3 += a[i + 3] * b.getFloat(at + 12);
+            }
+            for (; i < a.length; i++) {
+                s0 += a[i] * b.getFloat(offset + i * Float.BYTES);
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+    }
+}
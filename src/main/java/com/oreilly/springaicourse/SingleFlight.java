@@ -0,0 +1,69 @@
+package com.oreilly.springaicourse;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+
+// Collapses concurrent calls with the same key into one execution. The first
+// caller starts the call; callers arriving while it is in flight subscribe
+// to the same result, or the same error. The key is forgotten as soon as the
+// call ends, so this is not a cache: a later caller starts a new call. A
+// caller that cancels only leaves the flight; the call itself is cancelled
+// when every caller has gone.
+class SingleFlight<K, V> {
+
+    // A result, and whether this caller shared another caller's execution
+    record Outcome<V>(V value, boolean shared) {}
+
+    private final ConcurrentMap<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder sharedCalls = new LongAdder();
+
+    Mono<Outcome<V>> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            AtomicReference<Mono<V>> started = new AtomicReference<>();
+            Mono<V> flight = inFlight.computeIfAbsent(key, k -> {
+                started.set(start(k, call));
+                return started.get();
+            });
+            boolean shared = started.get() == null;
+            (shared ? sharedCalls : executions).increment();
+            return flight.map(value -> new Outcome<>(value, shared));
+        });
+    }
+
+    // Blocks until the shared result is in
+    Outcome<V> call(K key, Supplier<V> call) {
+        return execute(key, () -> Mono.fromSupplier(call)).block();
+    }
+
+    long executions() {
+        return executions.sum();
+    }
+
+    long sharedCalls() {
+        return sharedCalls.sum();
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    private Mono<V> start(K key, Supplier<Mono<V>> call) {
+        AtomicReference<Mono<V>> self = new AtomicReference<>();
+        Runnable land = () -> inFlight.remove(key, self.get());
+        // share() subscribes once for every caller and cancels the call when
+        // the last caller cancels. The flight ends before the result reaches
+        // the callers, so none that comes after it is handed a stale error.
+        Mono<V> flight = Mono.defer(call)
+                .doOnTerminate(land)
+                .doOnCancel(land)
+                .share();
+        self.set(flight);
+        return flight;
+    }
+}
@@ -0,0 +1,377 @@
+package com.oreilly.springaicourse;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentReader;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.reader.pdf.config.PdfDocumentReaderConfig;
+import org.springframework.ai.reader.pdf.layout.PDFLayoutTextStripperByArea;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+
+// PagePdfDocumentReader, one page at a time. PagePdfDocumentReader buffers
+// the whole file, parses it and returns every page in a list; this reader
+// opens the PDF from disk and extracts a page only when the consumer asks
+// for the next one, so splitting and embedding start on page 1 and the
+// heap holds a window of pages rather than the document. With parallelism
+// above 1, that many workers each open the file and extract pages ahead of
+// the consumer, at most "window" pages ahead, and pages are still returned
+// in order. Page text and metadata are the same as PagePdfDocumentReader's
+// with one page per document.
+class StreamingPdfReader implements DocumentReader, Iterable<Document> {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingPdfReader.class);
+
+    private static final String PAGE_REGION = "pdfPageRegion";
+
+    // Marks an extracted page without text; compared by identity
+    private static final Document NO_TEXT = new Document("no-text");
+
+    // Pages are 1-based and inclusive; lastPage past the end means "to the end"
+    record Settings(int firstPage, int lastPage, int parallelism, int window) {
+        Settings {
+            if (firstPage < 1 || lastPage < firstPage || parallelism < 1 || window < parallelism) {
+                throw new IllegalArgumentException("Invalid PDF reader settings: " + this);
+            }
+        }
+
+        static Settings defaults() {
+            return new Settings(1, Integer.MAX_VALUE, 1, 16);
+        }
+
+        Settings pages(int firstPage, int lastPage) {
+            return new Settings(firstPage, lastPage, parallelism, window);
+        }
+
+        Settings parallel(int parallelism, int window) {
+            return new Settings(firstPage, lastPage, parallelism, window);
+        }
+    }
+
+    private final Resource resource;
+    private final PdfDocumentReaderConfig config;
+    private final Settings settings;
+    final LongAdder pagesExtracted = new LongAdder();
+
+    StreamingPdfReader(Resource resource, PdfDocumentReaderConfig config, Settings settings) {
+        this.resource = resource;
+        this.config = config;
+        this.settings = settings;
+    }
+
+    StreamingPdfReader(Resource resource, Settings settings) {
+        this(resource, PdfDocumentReaderConfig.defaultConfig(), settings);
+    }
+
+    StreamingPdfReader(Resource resource) {
+        this(resource, Settings.defaults());
+    }
+
+    // Reads everything, for DocumentReader callers that want a list
+    @Override
+    public List<Document> get() {
+        List<Document> documents = new ArrayList<>();
+        forEach(documents::add);
+        return documents;
+    }
+
+    // Each iterator reads the file afresh. The file is closed when the
+    // iterator is exhausted or fails; close it explicitly (it is Closeable)
+    // when abandoning it early.
+    @Override
+    public Iterator<Document> iterator() {
+        return settings.parallelism() == 1 ? new SequentialPages() : new ParallelPages();
+    }
+
+    // Cancelling the Flux closes the file and stops the workers
+    Flux<Document> flux() {
+        return Flux.using(this::iterator, pages -> Flux.fromIterable(() -> pages), pages -> close(pages));
+    }
+
+    // An open PDF, which PDFBox reads from disk as pages are extracted. The
+    // temporary path is the local copy of a resource that is not a file.
+    private final class Source implements Closeable {
+        final PDDocument document;
+        final PDFLayoutTextStripperByArea stripper;
+        final int first;
+        final int last;
+
+        Source(Path temporary) {
+            try {
+                File file = temporary != null ? temporary.toFile() : resource.getFile();
+                this.document = Loader.loadPDF(file);
+                this.stripper = new PDFLayoutTextStripperByArea();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open " + resource.getDescription(), e);
+            }
+            this.first = settings.firstPage() - 1;
+            this.last = Math.min(settings.lastPage(), document.getNumberOfPages()) - 1;
+        }
+
+        // Null when the page has no text, as PagePdfDocumentReader skips those
+        Document extract(int index) throws IOException {
+            PDPage page = document.getPage(index);
+            int x0 = (int) page.getMediaBox().getLowerLeftX();
+            int xW = (int) page.getMediaBox().getWidth();
+            int y0 = (int) page.getMediaBox().getLowerLeftY() + config.pageTopMargin;
+            int yW = (int) page.getMediaBox().getHeight() - (config.pageTopMargin + config.pageBottomMargin);
+            stripper.addRegion(PAGE_REGION, new Rectangle(x0, y0, xW, yW));
+            try {
+                stripper.extractRegions(page);
+                String text = stripper.getTextForRegion(PAGE_REGION);
+                pagesExtracted.increment();
+                if (!StringUtils.hasText(text)) {
+                    return null;
+                }
+                Document document = new Document(config.pageExtractedTextFormatter.format(text, index));
+                document.getMetadata().put(PagePdfDocumentReader.METADATA_START_PAGE_NUMBER, index + 1);
+                document.getMetadata().put(PagePdfDocumentReader.METADATA_FILE_NAME, resource.getFilename());
+                return document;
+            } finally {
+                stripper.removeRegion(PAGE_REGION);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                document.close();
+            } catch (IOException e) {
+                logger.warn("Could not close {}: {}", resource.getFilename(), e.getMessage());
+            }
+        }
+    }
+
+    private static void close(Iterator<Document> pages) {
+        try {
+            ((Closeable) pages).close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // A resource inside a jar, say, is copied to a temporary file first
+    private Path localCopy() {
+        if (resource.isFile()) {
+            return null;
+        }
+        try (InputStream in = resource.getInputStream()) {
+            Path temporary = Files.createTempFile("streaming-pdf-", ".pdf");
+            Files.copy(in, temporary, StandardCopyOption.REPLACE_EXISTING);
+            return temporary;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot copy " + resource.getDescription(), e);
+        }
+    }
+
+    private static void delete(Path temporary) {
+        if (temporary != null) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                logger.warn("Could not delete {}: {}", temporary, e.getMessage());
+            }
+        }
+    }
+
+    private final class SequentialPages implements Iterator<Document>, Closeable {
+        private final Path temporary = localCopy();
+        private Source source = new Source(temporary);
+        private int index = source.first;
+        private Document next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && source != null) {
+                if (index > source.last) {
+                    close();
+                    break;
+                }
+                try {
+                    next = source.extract(index++);
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException("Cannot read page " + index + " of " + resource.getFilename(), e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Document document = next;
+            next = null;
+            return document;
+        }
+
+        @Override
+        public void close() {
+            if (source != null) {
+                source.close();
+                source = null;
+                delete(temporary);
+            }
+        }
+    }
+
+    // Workers take the next page number from a shared counter; a permit of
+    // the window is held from the start of a page's extraction until the
+    // consumer takes it, so no more than "window" pages are held at once
+    private final class ParallelPages implements Iterator<Document>, Closeable {
+        private final Path temporary = localCopy();
+        private final Semaphore window = new Semaphore(settings.window());
+        private final AtomicInteger nextPage = new AtomicInteger();
+        private final Map<Integer, Document> extracted = new HashMap<>();
+        private final ExecutorService workers;
+        private int first;
+        private int last;
+        private int nextToReturn;
+        private Throwable failure;
+        private Document next;
+        private volatile boolean closed;
+
+        ParallelPages() {
+            // The range is known only once the file is open
+            try (Source probe = new Source(temporary)) {
+                first = probe.first;
+                last = probe.last;
+            }
+            nextPage.set(first);
+            nextToReturn = first;
+            AtomicInteger counter = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(settings.parallelism(), r -> {
+                Thread thread = new Thread(r, "pdf-page-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < settings.parallelism(); i++) {
+                workers.execute(this::extractPages);
+            }
+            workers.shutdown();
+        }
+
+        private void extractPages() {
+            try (Source source = new Source(temporary)) {
+                while (true) {
+                    window.acquire();
+                    int index = nextPage.getAndIncrement();
+                    if (index > last) {
+                        window.release();
+                        return;
+                    }
+                    Document document = source.extract(index);
+                    synchronized (this) {
+                        extracted.put(index, document != null ? document : NO_TEXT);
+                        notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = t;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && nextToReturn <= last && !closed) {
+                Document document = take(nextToReturn);
+                nextToReturn++;
+                window.release();
+                if (document != NO_TEXT) {
+                    next = document;
+                }
+            }
+            if (next == null) {
+                close();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Document document = next;
+            next = null;
+            return document;
+        }
+
+        // Waits for the page; closes the iterator if a worker failed
+        private Document take(int index) {
+            Document document;
+            Throwable error;
+            synchronized (this) {
+                while (!extracted.containsKey(index) && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                document = extracted.remove(index);
+                error = failure;
+            }
+            if (document == null) {
+                close();
+                throw new IllegalStateException("Cannot read " + resource.getFilename(), error);
+            }
+            return document;
+        }
+
+        // Not synchronized: workers need the monitor to finish their page
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                extracted.clear();
+            }
+            delete(temporary);
+        }
+    }
+}
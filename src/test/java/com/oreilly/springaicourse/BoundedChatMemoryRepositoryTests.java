@@ -0,0 +1,111 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedChatMemoryRepositoryTests {
+
+    // Clock the tests can move forward
+    private static class ManualClock extends Clock {
+        Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    private static List<Message> exchange(int n) {
+        return List.of(new UserMessage("question " + n), new AssistantMessage("answer " + n));
+    }
+
+    @Test
+    void leastRecentlyUsedConversationIsEvictedFirst() {
+        var repository = new BoundedChatMemoryRepository(
+                new BoundedChatMemoryRepository.Settings(2, 100, Duration.ofHours(1)), clock);
+        repository.saveAll("a", exchange(1));
+        repository.saveAll("b", exchange(2));
+        repository.findByConversationId("a");
+        repository.saveAll("c", exchange(3));
+
+        assertEquals(List.of("a", "c"), repository.findConversationIds());
+        assertEquals(1, repository.stats().evicted());
+    }
+
+    @Test
+    void totalMessageCapEvictsOtherConversations() {
+        var repository = new BoundedChatMemoryRepository(
+                new BoundedChatMemoryRepository.Settings(100, 5, Duration.ofHours(1)), clock);
+        repository.saveAll("a", exchange(1));
+        repository.saveAll("b", exchange(2));
+        repository.saveAll("c", exchange(3));
+
+        assertEquals(List.of("b", "c"), repository.findConversationIds());
+        assertEquals(4, repository.stats().messages());
+        // Replacing a conversation's messages is not double counted
+        repository.saveAll("c", exchange(4));
+        assertEquals(4, repository.stats().messages());
+    }
+
+    @Test
+    void idleConversationsExpire() {
+        var repository = new BoundedChatMemoryRepository(
+                new BoundedChatMemoryRepository.Settings(100, 100, Duration.ofMinutes(30)), clock);
+        repository.saveAll("old", exchange(1));
+        clock.now = clock.now.plus(Duration.ofMinutes(20));
+        repository.saveAll("recent", exchange(2));
+        clock.now = clock.now.plus(Duration.ofMinutes(15));
+
+        assertTrue(repository.findByConversationId("old").isEmpty());
+        assertEquals(2, repository.findByConversationId("recent").size());
+        assertEquals(new BoundedChatMemoryRepository.Stats(1, 2, 1, 0), repository.stats());
+    }
+
+    @Test
+    void memoryStaysFlatWithThousandsOfUsers() {
+        var repository = new BoundedChatMemoryRepository(
+                new BoundedChatMemoryRepository.Settings(1_000, 10_000, Duration.ofMinutes(30)), clock);
+        ChatMemory memory = MessageWindowChatMemory.builder()
+                .chatMemoryRepository(repository)
+                .maxMessages(10)
+                .build();
+
+        for (int round = 0; round < 20; round++) {
+            for (int user = 0; user < 5_000; user++) {
+                memory.add("user-" + user, exchange(round));
+            }
+            clock.now = clock.now.plusSeconds(1);
+        }
+
+        var stats = repository.stats();
+        System.out.println(stats);
+        assertTrue(stats.conversations() <= 1_000);
+        assertTrue(stats.messages() <= 10_000);
+        assertTrue(memory.get("user-4999").size() <= 10);
+    }
+}
@@ -0,0 +1,138 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContextBudgetTests {
+
+    private static final String QUESTION = "Who released Not Like Us?";
+
+    private final JTokkitTokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+
+    private static Document chunk(String id, String topic, double score) {
+        String text = IntStream.range(0, 40)
+                .mapToObj(i -> topic + " fact " + i + " from " + id + ".")
+                .reduce((a, b) -> a + " " + b).orElseThrow();
+        return Document.builder().id(id).text(text).score(score).metadata(Map.of("source", id)).build();
+    }
+
+    private static List<Message> history(int exchanges) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < exchanges; i++) {
+            messages.add(new UserMessage("Earlier question number " + i + " about the feud?"));
+            messages.add(new AssistantMessage("Earlier answer number " + i + ", which took a few sentences to say."));
+        }
+        return messages;
+    }
+
+    private static List<Message> prompt(List<Message> history) {
+        List<Message> messages = new ArrayList<>(history);
+        messages.add(new UserMessage(QUESTION));
+        return messages;
+    }
+
+    private String questionPrompt() {
+        return RetrievalAdvisor.augment(QUESTION, List.of());
+    }
+
+    // Tokens of the prompt the model would receive; the budget's estimate
+    // counts a separator per document, so it may be slightly higher
+    private int promptTokens(ContextBudget.Assembly assembly) {
+        int tokens = 0;
+        for (Message message : assembly.messages()) {
+            String text = message.getMessageType() == MessageType.USER && message.getText().equals(QUESTION)
+                    ? RetrievalAdvisor.augment(QUESTION, assembly.documents()) : message.getText();
+            tokens += estimator.estimate(text) + ContextBudget.TOKENS_PER_MESSAGE;
+        }
+        return tokens;
+    }
+
+    @Test
+    void documentsAreTakenByRelevanceWithinTheBudget() {
+        int chunkTokens = estimator.estimate(chunk("a", "Drake", 0).getText()) + 1;
+        int fixed = estimator.estimate(questionPrompt()) + ContextBudget.TOKENS_PER_MESSAGE;
+        var budget = new ContextBudget(new ContextBudget.Settings(fixed + 2 * chunkTokens + 10, 0, 0.8));
+
+        var assembly = budget.assemble(prompt(List.of()), List.of(
+                chunk("low", "Grammy", 0.2), chunk("best", "Kendrick", 0.9),
+                chunk("mid", "Drake", 0.5), chunk("worst", "Toronto", 0.1)), questionPrompt());
+
+        assertEquals(List.of("best", "mid"), assembly.documents().stream().map(Document::getId).toList());
+        assertEquals(2, assembly.droppedDocuments());
+        assertTrue(promptTokens(assembly) <= assembly.tokens());
+        assertTrue(assembly.tokens() <= budget.settings().maxTokens());
+    }
+
+    @Test
+    void overlappingChunksAreSentOnce() {
+        var budget = new ContextBudget(ContextBudget.Settings.defaults());
+        Document full = chunk("full", "Kendrick", 0.9);
+        String text = full.getText();
+        // Overlaps the first chunk by most of its text, as adjacent chunks with overlap would
+        Document overlapping = new Document("overlap", text.substring(text.length() / 10) + " And one more fact.",
+                Map.of());
+        Document contained = new Document("contained", text.substring(0, text.length() / 3), Map.of());
+        Document distinct = chunk("distinct", "Drake", 0.5);
+
+        var assembly = budget.assemble(prompt(List.of()),
+                List.of(full, overlapping, contained, distinct), questionPrompt());
+
+        assertEquals(List.of("full", "distinct"), assembly.documents().stream().map(Document::getId).toList());
+    }
+
+    @Test
+    void historyIsTruncatedOldestFirst() {
+        var budget = new ContextBudget(new ContextBudget.Settings(1500, 200, 0.8));
+        List<Message> history = history(30);
+        List<Document> documents = IntStream.range(0, 10).mapToObj(i -> chunk("doc-" + i, "Topic " + i, 1.0 - i / 10.0))
+                .toList();
+
+        var assembly = budget.assemble(prompt(history), documents, questionPrompt());
+        System.out.println("Assembled " + assembly.tokens() + " tokens: " + assembly.documents().size()
+                + " documents, " + (assembly.messages().size() - 1) + " history messages");
+
+        List<Message> kept = assembly.messages().subList(0, assembly.messages().size() - 1);
+        assertFalse(kept.isEmpty());
+        assertTrue(kept.size() < history.size());
+        // The newest messages, starting with a question
+        assertEquals(history.subList(history.size() - kept.size(), history.size()), kept);
+        assertEquals(MessageType.USER, kept.get(0).getMessageType());
+        assertEquals(QUESTION, assembly.messages().get(assembly.messages().size() - 1).getText());
+        assertTrue(promptTokens(assembly) <= assembly.tokens());
+        assertTrue(assembly.tokens() <= 1500);
+
+        // History beyond its share is kept when the documents leave room
+        var fewDocuments = budget.assemble(prompt(history), documents.subList(0, 1), questionPrompt());
+        assertTrue(fewDocuments.messages().size() > assembly.messages().size());
+        assertTrue(fewDocuments.tokens() <= 1500);
+    }
+
+    @Test
+    void systemMessagesAndTheQuestionAreAlwaysSent() {
+        var budget = new ContextBudget(new ContextBudget.Settings(10, 0, 0.8));
+        List<Message> messages = new ArrayList<>();
+        messages.add(new SystemMessage("Answer briefly."));
+        messages.addAll(prompt(history(3)));
+
+        var assembly = budget.assemble(messages, List.of(chunk("a", "Kendrick", 0.9)), questionPrompt());
+
+        assertEquals(2, assembly.messages().size());
+        assertEquals(MessageType.SYSTEM, assembly.messages().get(0).getMessageType());
+        assertEquals(QUESTION, assembly.messages().get(1).getText());
+        assertTrue(assembly.documents().isEmpty());
+        assertEquals(6, assembly.droppedMessages());
+    }
+}
@@ -0,0 +1,102 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.retry.NonTransientAiException;
+import org.springframework.ai.retry.TransientAiException;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddingBatcherTests {
+
+    private static List<Document> documents(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Document("chunk " + i + " " + "lorem ipsum dolor sit amet ".repeat(20)))
+                .toList();
+    }
+
+    // Embeds each batch in a single request, like the Redis store does
+    private static DocumentWriter embedAll(StubEmbeddingModel model) {
+        return docs -> model.embed(docs.stream().map(Document::getText).toList());
+    }
+
+    @Test
+    void packsDocumentsByTokenBudget() {
+        try (var batcher = new EmbeddingBatcher(docs -> {}, EmbeddingBatcher.Settings.defaults())) {
+            var batches = batcher.pack(documents(50), 1000);
+            assertEquals(50, batches.stream().mapToInt(List::size).sum());
+            assertTrue(batches.size() > 1);
+            assertTrue(batches.get(0).size() < 50);
+        }
+    }
+
+    @Test
+    void batchSizeGrowsWhileLatencyStaysFlat() {
+        // Latency is dominated by a fixed per-request cost, so bigger batches are free
+        var model = new StubEmbeddingModel(64, Duration.ofMillis(20), Duration.ZERO, Integer.MAX_VALUE);
+        var settings = new EmbeddingBatcher.Settings(500, 250, 4000, 500, 0.25, 2, 3, Duration.ofMillis(10));
+
+        try (var batcher = new EmbeddingBatcher(embedAll(model), settings)) {
+            for (int i = 0; i < 10; i++) {
+                batcher.accept(documents(40));
+            }
+            var stats = batcher.stats();
+            System.out.println(stats + ", largest request " + model.largestRequest.get() + " inputs");
+
+            assertEquals(400, stats.documents());
+            assertEquals(400, model.inputs.sum());
+            assertTrue(stats.batchTokens() > settings.initialBatchTokens());
+        }
+    }
+
+    @Test
+    void backsOffAndShrinksOnRateLimits() {
+        // Only one request at a time is allowed; the others get a 429
+        var model = new StubEmbeddingModel(64, Duration.ofMillis(5), Duration.ZERO, 1);
+        // No growth step, so the batch size can only shrink
+        var settings = new EmbeddingBatcher.Settings(2000, 250, 4000, 0, 0.25, 4, 50, Duration.ofMillis(2));
+
+        try (var batcher = new EmbeddingBatcher(embedAll(model), settings)) {
+            batcher.accept(documents(200));
+            var stats = batcher.stats();
+            System.out.println(stats);
+
+            assertEquals(200, stats.documents());
+            assertTrue(stats.rateLimited() > 0);
+            assertTrue(stats.batchTokens() < settings.initialBatchTokens());
+        }
+    }
+
+    @Test
+    void otherFailuresPropagate() {
+        try (var batcher = new EmbeddingBatcher(docs -> {
+            throw new IllegalArgumentException("bad input");
+        }, EmbeddingBatcher.Settings.defaults())) {
+            assertThrows(IllegalArgumentException.class, () -> batcher.accept(documents(5)));
+            assertEquals(0, batcher.stats().retries());
+        }
+    }
+
+    @Test
+    void serverErrorsAndTimeoutsAreNotRateLimits() {
+        assertTrue(EmbeddingBatcher.isRateLimit(new NonTransientAiException("429 - Rate limit reached for requests")));
+        assertTrue(EmbeddingBatcher.isRateLimit(new TransientAiException("Rate limit exceeded, retry later")));
+        assertFalse(EmbeddingBatcher.isRateLimit(new TransientAiException("503 - Service Unavailable")));
+        assertFalse(EmbeddingBatcher.isRateLimit(
+                new TransientAiException("I/O error", new SocketTimeoutException("Read timed out"))));
+
+        try (var batcher = new EmbeddingBatcher(docs -> {
+            throw new TransientAiException("500 - Internal Server Error");
+        }, EmbeddingBatcher.Settings.defaults())) {
+            assertThrows(TransientAiException.class, () -> batcher.accept(documents(5)));
+            assertEquals(0, batcher.stats().rateLimited());
+            assertEquals(EmbeddingBatcher.Settings.defaults().initialBatchTokens(), batcher.stats().batchTokens());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.EmbeddingRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddingCacheTests {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void unchangedTextsAreNotReEmbeddedAfterRestart() throws IOException {
+        Path file = dir.resolve("cache.bin");
+        var texts = List.of("Spring Framework", "Kendrick Lamar", "Future of Jobs");
+
+        var model = new StubEmbeddingModel();
+        try (var cache = new EmbeddingCache(file)) {
+            var first = new CachingEmbeddingModel(model, "text-embedding-3-small", cache).embed(texts);
+            assertEquals(3, first.size());
+        }
+        assertEquals(3, model.inputs.sum());
+
+        // Reopen: only the new text reaches the model
+        var restarted = new StubEmbeddingModel();
+        try (var cache = new EmbeddingCache(file)) {
+            var caching = new CachingEmbeddingModel(restarted, "text-embedding-3-small", cache);
+            var second = caching.embed(List.of("Spring Framework", "Drake", "Future of Jobs"));
+
+            assertEquals(1, restarted.inputs.sum());
+            assertArrayEquals(model.vector("Spring Framework"), second.get(0));
+            assertArrayEquals(restarted.vector("Drake"), second.get(1));
+            assertEquals(4, cache.stats().entries());
+        }
+    }
+
+    @Test
+    void modelNameIsPartOfTheKey() throws IOException {
+        try (var cache = new EmbeddingCache(dir.resolve("cache.bin"))) {
+            var model = new StubEmbeddingModel();
+            new CachingEmbeddingModel(model, "model-a", cache).embed("same text");
+            new CachingEmbeddingModel(model, "model-b", cache).embed("same text");
+            assertEquals(2, model.calls.sum());
+        }
+    }
+
+    @Test
+    void requestedDimensionsArePartOfTheKey() throws IOException {
+        try (var cache = new EmbeddingCache(dir.resolve("cache.bin"))) {
+            var model = new StubEmbeddingModel();
+            var caching = new CachingEmbeddingModel(model, "text-embedding-3-small", cache);
+            caching.embed("same text");
+            caching.call(new EmbeddingRequest(List.of("same text"),
+                    EmbeddingOptionsBuilder.builder().withDimensions(256).build()));
+            caching.call(new EmbeddingRequest(List.of("same text"),
+                    EmbeddingOptionsBuilder.builder().withDimensions(256).build()));
+            assertEquals(2, model.calls.sum());
+            assertEquals(2, cache.stats().entries());
+        }
+    }
+
+    @Test
+    void incompleteTrailingRecordIsDropped() throws IOException {
+        Path file = dir.resolve("cache.bin");
+        try (var cache = new EmbeddingCache(file)) {
+            new CachingEmbeddingModel(new StubEmbeddingModel(), "m", cache).embed(List.of("a", "b"));
+        }
+        Files.write(file, new byte[]{1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        try (var cache = new EmbeddingCache(file)) {
+            assertEquals(2, cache.stats().entries());
+        }
+        try (var cache = new EmbeddingCache(file)) {
+            assertEquals(2, cache.stats().entries());
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreEvictedPastMaxEntries() throws IOException {
+        Path file = dir.resolve("cache.bin");
+        var model = new StubEmbeddingModel();
+        try (var cache = new EmbeddingCache(file, 8)) {
+            var caching = new CachingEmbeddingModel(model, "m", cache);
+            for (int i = 0; i < 8; i++) {
+                caching.embed("text " + i);
+            }
+            // Keep "text 0" recent, then overflow: the file is rewritten with the newest six
+            caching.embed("text 0");
+            caching.embed("text 8");
+
+            assertEquals(6, cache.stats().entries());
+            assertEquals(3, cache.stats().evictions());
+            assertArrayEquals(model.vector("text 0"), caching.embed("text 0"));
+        }
+        long calls = model.calls.sum();
+        try (var cache = new EmbeddingCache(file, 8)) {
+            assertEquals(6, cache.stats().entries());
+            var caching = new CachingEmbeddingModel(model, "m", cache);
+            assertArrayEquals(model.vector("text 8"), caching.embed("text 8"));
+            caching.embed("text 1");
+        }
+        // Only the evicted text was embedded again
+        assertEquals(calls + 1, model.calls.sum());
+    }
+}
@@ -0,0 +1,103 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.core.io.ClassPathResource;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FastTokenTextSplitterTests {
+
+    private static List<Document> pages;
+
+    @BeforeAll
+    static void readPdf() {
+        // Same pages as PagePdfDocumentReader, read in parallel to save time
+        pages = new StreamingPdfReader(new ClassPathResource("pdfs/WEF_Future_of_Jobs_Report_2025.pdf"),
+                StreamingPdfReader.Settings.defaults().parallel(4, 16)).get();
+    }
+
+    private static void assertSameChunks(List<Document> expected, List<Document> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getText(), actual.get(i).getText(), "chunk " + i);
+            assertEquals(expected.get(i).getMetadata(), actual.get(i).getMetadata(), "chunk " + i);
+        }
+    }
+
+    @Test
+    void sameChunksAsTokenTextSplitterOverTheReport() {
+        // Warm both up so the timings compare splitting, not class loading
+        new TokenTextSplitter().apply(pages.subList(0, 5));
+        new FastTokenTextSplitter().apply(pages.subList(0, 5));
+
+        long start = System.nanoTime();
+        List<Document> expected = new TokenTextSplitter().apply(pages);
+        long tokenTextSplitter = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<Document> actual = new FastTokenTextSplitter().apply(pages);
+        long fast = System.nanoTime() - start;
+
+        System.out.printf("%d pages, %d chunks: TokenTextSplitter %d ms, FastTokenTextSplitter %d ms%n",
+                pages.size(), actual.size(), tokenTextSplitter / 1_000_000, fast / 1_000_000);
+        assertSameChunks(expected, actual);
+    }
+
+    @Test
+    void multiByteTextAndSmallChunksMatchTokenTextSplitter() {
+        String paragraph = "Zürich's café served crème brûlée. 東京の天気は晴れです! Emoji 🚀🔥 split mid-token? "
+                + "Numbers 1234567 and punctuation... Naïve résumé\nnew line\r\n\tindented  double  spaces. ";
+        String text = paragraph.repeat(40);
+        var settings = new FastTokenTextSplitter.Settings(37, 20, 5, 10_000, true, 0, 1);
+        var reference = new TokenTextSplitter(37, 20, 5, 10_000, true);
+        var document = new Document(text, Map.of("source", "test"));
+
+        assertSameChunks(reference.apply(List.of(document)),
+                new FastTokenTextSplitter(settings).apply(List.of(document)));
+
+        // Without separators, and stopping early so the remainder is one chunk
+        var noSeparator = new FastTokenTextSplitter.Settings(50, 10, 5, 7, false, 0, 1);
+        assertSameChunks(new TokenTextSplitter(50, 10, 5, 7, false).apply(List.of(document)),
+                new FastTokenTextSplitter(noSeparator).apply(List.of(document)));
+    }
+
+    @Test
+    void overlappingChunksShareText() {
+        var settings = FastTokenTextSplitter.Settings.defaults().withOverlap(100);
+        List<Document> plain = new FastTokenTextSplitter().apply(pages.subList(0, 40));
+        List<Document> overlapping = new FastTokenTextSplitter(settings).apply(pages.subList(0, 40));
+
+        assertTrue(overlapping.size() > plain.size());
+        int shared = 0;
+        for (int i = 1; i < overlapping.size(); i++) {
+            String previous = overlapping.get(i - 1).getText();
+            String next = overlapping.get(i).getText();
+            if (next.length() > 20 && previous.contains(next.substring(0, 20))) {
+                shared++;
+            }
+        }
+        System.out.printf("%d chunks without overlap, %d with; %d start inside the previous chunk%n",
+                plain.size(), overlapping.size(), shared);
+        assertTrue(shared > 0);
+    }
+
+    @Test
+    void parallelSplittingKeepsDocumentOrder() {
+        var parallel = new FastTokenTextSplitter(FastTokenTextSplitter.Settings.defaults().withParallelism(4));
+        assertSameChunks(new FastTokenTextSplitter().apply(pages), parallel.apply(pages));
+    }
+
+    @Test
+    void blankTextHasNoChunks() {
+        var splitter = new FastTokenTextSplitter();
+        assertTrue(splitter.splitText(" \n\t ").isEmpty());
+        assertEquals(List.of("Short text here"),
+                splitter.split(new Document("Short text here")).stream().map(Document::getText).toList());
+    }
+}
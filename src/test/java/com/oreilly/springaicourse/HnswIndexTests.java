@@ -0,0 +1,224 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HnswIndexTests {
+
+    private static final int DIMENSIONS = 64;
+    private static final int K = 10;
+
+    // In-memory vectors in clusters, roughly like embeddings of related chunks
+    private static class ClusteredVectors implements HnswIndex.Vectors {
+        final List<float[]> data = new ArrayList<>();
+        final float[][] centres;
+        final Random random = new Random(7);
+
+        ClusteredVectors(int clusters) {
+            centres = new float[clusters][];
+            for (int i = 0; i < clusters; i++) {
+                centres[i] = gaussian(1.0f);
+            }
+        }
+
+        float[] next() {
+            float[] centre = centres[random.nextInt(centres.length)];
+            float[] noise = gaussian(0.5f);
+            for (int i = 0; i < DIMENSIONS; i++) {
+                noise[i] += centre[i];
+            }
+            return noise;
+        }
+
+        float[] gaussian(float sigma) {
+            float[] vector = new float[DIMENSIONS];
+            for (int i = 0; i < DIMENSIONS; i++) {
+                vector[i] = (float) random.nextGaussian() * sigma;
+            }
+            return vector;
+        }
+
+        @Override
+        public int dimensions() {
+            return DIMENSIONS;
+        }
+
+        @Override
+        public void read(int id, float[] target) {
+            System.arraycopy(data.get(id), 0, target, 0, DIMENSIONS);
+        }
+
+        @Override
+        public float dot(float[] query, int id) {
+            return dot(query, data.get(id));
+        }
+
+        @Override
+        public float norm(int id) {
+            return norm(data.get(id));
+        }
+
+        static float norm(float[] vector) {
+            return (float) Math.sqrt(dot(vector, vector));
+        }
+
+        static float dot(float[] a, float[] b) {
+            float sum = 0;
+            for (int i = 0; i < a.length; i++) {
+                sum += a[i] * b[i];
+            }
+            return sum;
+        }
+    }
+
+    private static Set<Integer> exact(ClusteredVectors vectors, float[] query) {
+        TopK top = new TopK(K);
+        float queryNorm = ClusteredVectors.norm(query);
+        for (int id = 0; id < vectors.data.size(); id++) {
+            float[] vector = vectors.data.get(id);
+            top.offer(id, ClusteredVectors.dot(query, vector) / (queryNorm * ClusteredVectors.norm(vector)));
+        }
+        return ids(top);
+    }
+
+    private static Set<Integer> ids(TopK top) {
+        int[] ids = new int[top.size()];
+        int count = top.drainDescending(ids, new float[top.size()]);
+        Set<Integer> result = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            result.add(ids[i]);
+        }
+        return result;
+    }
+
+    @Test
+    void recallVersusLatencyReport() {
+        int size = 5_000;
+        var vectors = new ClusteredVectors(50);
+        var index = new HnswIndex(new HnswIndex.Settings(16, 100, 10), vectors, SimilarityKernel.best());
+        long buildStart = System.nanoTime();
+        for (int id = 0; id < size; id++) {
+            vectors.data.add(vectors.next());
+            index.insert(id);
+        }
+        System.out.printf("Built HNSW over %d x %d vectors in %d ms%n",
+                size, DIMENSIONS, (System.nanoTime() - buildStart) / 1_000_000);
+
+        List<float[]> queries = new ArrayList<>();
+        List<Set<Integer>> truth = new ArrayList<>();
+        long exactStart = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            float[] query = vectors.next();
+            queries.add(query);
+            truth.add(exact(vectors, query));
+        }
+        double exactMicros = (System.nanoTime() - exactStart) / 1_000.0 / queries.size();
+        System.out.printf("%-10s %8s %12s%n", "efSearch", "recall", "us/query");
+        System.out.printf("%-10s %8.3f %12.1f%n", "exact", 1.0, exactMicros);
+
+        double previousRecall = 0;
+        for (int ef : new int[]{10, 20, 40, 80, 160}) {
+            int found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < queries.size(); i++) {
+                Set<Integer> result = ids(index.search(queries.get(i), K, ef, id -> true));
+                result.retainAll(truth.get(i));
+                found += result.size();
+            }
+            double micros = (System.nanoTime() - start) / 1_000.0 / queries.size();
+            double recall = (double) found / (queries.size() * K);
+            System.out.printf("%-10d %8.3f %12.1f%n", ef, recall, micros);
+
+            assertTrue(recall >= previousRecall - 0.02, "recall should not drop as efSearch grows");
+            previousRecall = recall;
+        }
+        assertTrue(previousRecall >= 0.95, "recall at efSearch=160 was " + previousRecall);
+    }
+
+    @Test
+    void rejectedIdsAreSkippedButStillTraversed() {
+        var vectors = new ClusteredVectors(5);
+        var index = new HnswIndex(HnswIndex.Settings.defaults(), vectors, SimilarityKernel.best());
+        for (int id = 0; id < 500; id++) {
+            vectors.data.add(vectors.next());
+            index.insert(id);
+        }
+        Set<Integer> even = ids(index.search(vectors.next(), K, 64, id -> id % 2 == 0));
+        assertEquals(K, even.size());
+        assertTrue(even.stream().allMatch(id -> id % 2 == 0));
+    }
+
+    @Test
+    void storeWithIndexMatchesExactScan(@TempDir Path dir) throws IOException {
+        var model = new StubEmbeddingModel();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            documents.add(new Document("doc-" + i, "chunk " + i + " about topic " + (i % 10), Map.of()));
+        }
+        try (var exact = MappedVectorStore.builder(model).directory(dir.resolve("exact")).build();
+             var indexed = MappedVectorStore.builder(model).directory(dir.resolve("hnsw"))
+                     .hnsw(HnswIndex.Settings.defaults()).build()) {
+            exact.add(documents);
+            indexed.add(documents);
+
+            // Many chunks tie on score, so compare scores rather than ids
+            var request = SearchRequest.builder().query("chunk 42 about topic 2").topK(5).build();
+            assertEquals(exact.similaritySearch(request).stream().map(Document::getScore).toList(),
+                    indexed.similaritySearch(request).stream().map(Document::getScore).toList());
+        }
+
+        // Reopening loads the graph saved on close
+        try (var reopened = MappedVectorStore.builder(model).directory(dir.resolve("hnsw"))
+                .hnsw(HnswIndex.Settings.defaults()).build()) {
+            assertTrue(reopened.indexReady());
+            var results = reopened.similaritySearch(SearchRequest.builder().query("chunk 7 about topic 7").topK(1).build());
+            assertEquals("doc-7", results.get(0).getId());
+        }
+    }
+
+    @Test
+    void missingGraphIsBuiltInTheBackgroundWhileSearchesScanExactly(@TempDir Path dir) throws Exception {
+        var model = new StubEmbeddingModel();
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            documents.add(new Document("doc-" + i, "chunk " + i + " about topic " + (i % 10), Map.of()));
+        }
+        try (var store = MappedVectorStore.builder(model).directory(dir).hnsw(HnswIndex.Settings.defaults()).build()) {
+            store.add(documents);
+        }
+        Files.delete(dir.resolve(MappedVectorStore.GRAPH_FILE));
+
+        var request = SearchRequest.builder().query("chunk 7 about topic 7").topK(1).build();
+        long start = System.nanoTime();
+        try (var store = MappedVectorStore.builder(model).directory(dir).hnsw(HnswIndex.Settings.defaults()).build()) {
+            System.out.printf("Opened in %d ms, graph ready: %s%n", (System.nanoTime() - start) / 1_000_000,
+                    store.indexReady());
+            // Answered by the exact scan until the graph is ready
+            assertEquals("doc-7", store.similaritySearch(request).get(0).getId());
+            while (!store.indexReady() && System.nanoTime() - start < 60_000_000_000L) {
+                Thread.sleep(10);
+            }
+            System.out.printf("Graph built after %d ms%n", (System.nanoTime() - start) / 1_000_000);
+            assertTrue(store.indexReady());
+
+            long before = store.vectorsScored.sum();
+            assertEquals("doc-7", store.similaritySearch(request).get(0).getId());
+            assertTrue(store.vectorsScored.sum() - before < documents.size());
+        }
+        assertTrue(Files.exists(dir.resolve(MappedVectorStore.GRAPH_FILE)));
+    }
+}
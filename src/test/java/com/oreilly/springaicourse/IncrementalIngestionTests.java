@@ -0,0 +1,201 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.document.DocumentWriter;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalIngestionTests {
+
+    @TempDir
+    Path dir;
+
+    private final StubEmbeddingModel embeddingModel = new StubEmbeddingModel();
+    private MappedVectorStore vectorStore;
+
+    @BeforeEach
+    void setUp() {
+        vectorStore = MappedVectorStore.builder(embeddingModel).directory(dir.resolve("store")).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        vectorStore.close();
+    }
+
+    private static List<Document> pages(String prefix, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Document((prefix + " page " + i + ". ").repeat(200)))
+                .toList();
+    }
+
+    private IncrementalIngestion.Result ingest(String settings, DocumentWriter writer, IngestionSource... sources) {
+        var ingestion = new IncrementalIngestion(IngestionManifest.load(dir.resolve("manifest.json")),
+                vectorStore, writer, new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), settings);
+        return ingestion.run(List.of(sources));
+    }
+
+    private IncrementalIngestion.Result ingest(IngestionSource... sources) {
+        return ingest("v1", vectorStore, sources);
+    }
+
+    private static IngestionSource source(String name, String prefix, int pages) {
+        return new IngestionSource(name, Map.of("source", name), () -> pages(prefix, pages));
+    }
+
+    @Test
+    void unchangedSourcesAreSkipped() {
+        var reads = new AtomicInteger();
+        var pdf = new IngestionSource("pdf", Map.of("source", "pdf"), () -> {
+            reads.incrementAndGet();
+            return pages("pdf", 5);
+        }, () -> "fingerprint-1");
+
+        var first = ingest(source("a", "alpha", 3), pdf);
+        int stored = vectorStore.size();
+        long embedCalls = embeddingModel.calls.sum();
+        var second = ingest(source("a", "alpha", 3), pdf);
+
+        assertEquals(List.of("a", "pdf"), first.ingested());
+        assertEquals(List.of("a", "pdf"), second.unchanged());
+        assertEquals(0, second.chunksWritten());
+        assertEquals(stored, vectorStore.size());
+        assertEquals(embedCalls, embeddingModel.calls.sum());
+        // The fingerprint spared reading the unchanged source
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    void changedSourceIsReplacedAndItsStaleChunksDeleted() {
+        ingest(source("a", "alpha", 3), source("b", "beta", 4));
+        int before = vectorStore.size();
+
+        var result = ingest(source("a", "alpha", 3), source("b", "gamma", 2));
+
+        assertEquals(List.of("a"), result.unchanged());
+        assertEquals(List.of("b"), result.ingested());
+        assertTrue(result.chunksDeleted() > 0);
+        var manifest = IngestionManifest.load(dir.resolve("manifest.json"));
+        assertEquals(manifest.get("a").chunkIds().size() + manifest.get("b").chunkIds().size(), vectorStore.size());
+        assertTrue(vectorStore.size() < before);
+        assertTrue(vectorStore.similaritySearch("beta page").stream()
+                .noneMatch(document -> document.getText().contains("beta")));
+    }
+
+    @Test
+    void changedSettingsReingestEverythingWithoutDuplicates() {
+        ingest(source("a", "alpha", 3));
+        int stored = vectorStore.size();
+
+        var result = ingest("v2", vectorStore, source("a", "alpha", 3));
+
+        assertEquals(List.of("a"), result.ingested());
+        assertEquals(stored, vectorStore.size());
+    }
+
+    @Test
+    void sourcesNoLongerListedAreRemoved() {
+        ingest(source("a", "alpha", 3), source("b", "beta", 4));
+        int a = IngestionManifest.load(dir.resolve("manifest.json")).get("a").chunkIds().size();
+
+        var result = ingest(source("a", "alpha", 3));
+
+        assertEquals(List.of("b"), result.removed());
+        assertEquals(a, vectorStore.size());
+        assertNull(IngestionManifest.load(dir.resolve("manifest.json")).get("b"));
+    }
+
+    @Test
+    void interruptedLoadIsCompletedOnTheNextRun() {
+        var failing = new DocumentWriter() {
+            int batches;
+
+            @Override
+            public void accept(List<Document> documents) {
+                if (++batches > 1) {
+                    throw new IllegalStateException("embedding failed");
+                }
+                vectorStore.accept(documents);
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> ingest("v1", failing, source("a", "alpha", 50)));
+        assertTrue(vectorStore.size() > 0);
+
+        var result = ingest(source("a", "alpha", 50));
+
+        // Chunk ids are derived from the content, so the retry overwrites what was written
+        assertEquals(List.of("a"), result.ingested());
+        assertEquals(IngestionManifest.load(dir.resolve("manifest.json")).get("a").chunkIds().size(),
+                vectorStore.size());
+    }
+
+    @Test
+    void sourceWhoseChunksLeftTheStoreIsIngestedAgain() {
+        ingest(source("a", "alpha", 3), source("b", "beta", 4));
+        int stored = vectorStore.size();
+        // The store lost b's chunks, as when its directory is deleted and the manifest kept
+        vectorStore.delete(IngestionManifest.load(dir.resolve("manifest.json")).get("b").chunkIds());
+
+        var result = ingest(source("a", "alpha", 3), source("b", "beta", 4));
+
+        assertEquals(List.of("a"), result.unchanged());
+        assertEquals(List.of("b"), result.ingested());
+        assertEquals(stored, vectorStore.size());
+    }
+
+    @Test
+    void chunksStoredBeforeTheManifestAreCleared() {
+        var legacy = new ArrayList<Document>();
+        for (Document chunk : new TokenTextSplitter().apply(pages("alpha", 3))) {
+            chunk.getMetadata().put("source", "a");
+            legacy.add(chunk);
+        }
+        vectorStore.add(legacy);
+        vectorStore.add(List.of(new Document("other", Map.of("source", "elsewhere"))));
+
+        ingest(source("a", "alpha", 3));
+
+        assertEquals(IngestionManifest.load(dir.resolve("manifest.json")).get("a").chunkIds().size() + 1,
+                vectorStore.size());
+    }
+
+    @Test
+    void lexicalIndexFollowsTheVectorStore() {
+        Path indexFile = dir.resolve("lexical-index.bin");
+        var manifest = dir.resolve("manifest.json");
+        var first = new IncrementalIngestion(IngestionManifest.load(manifest), vectorStore, vectorStore,
+                LexicalIndex.load(indexFile), new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), "v1");
+        first.run(List.of(source("a", "alpha", 3), source("b", "beta", 4)));
+        var index = LexicalIndex.load(indexFile);
+        assertEquals(vectorStore.size(), index.size());
+
+        // Replacing b and dropping a reach the index too
+        new IncrementalIngestion(IngestionManifest.load(manifest), vectorStore, vectorStore, index,
+                new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), "v1")
+                .run(List.of(source("b", "gamma", 2)));
+        assertEquals(vectorStore.size(), index.size());
+        assertTrue(index.search("alpha beta", 5, metadata -> true).isEmpty());
+        assertFalse(index.search("gamma", 5, metadata -> true).isEmpty());
+
+        // A lost index makes the source count as changed
+        var rebuilt = LexicalIndex.load(dir.resolve("missing.bin"));
+        var result = new IncrementalIngestion(IngestionManifest.load(manifest), vectorStore, vectorStore, rebuilt,
+                new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), "v1")
+                .run(List.of(source("b", "gamma", 2)));
+        assertEquals(List.of("b"), result.ingested());
+        assertEquals(vectorStore.size(), rebuilt.size());
+    }
+}
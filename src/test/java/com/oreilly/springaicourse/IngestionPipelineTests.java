@@ -0,0 +1,51 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IngestionPipelineTests {
+
+    private static List<Document> pages(String prefix, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new Document((prefix + " page " + i + ". ").repeat(200)))
+                .toList();
+    }
+
+    @Test
+    void allSourcesAreSplitAndWritten() {
+        Set<Document> written = ConcurrentHashMap.newKeySet();
+        var settings = new IngestionPipeline.Settings(2, 4, 3, 8, 5);
+        var pipeline = new IngestionPipeline(new TokenTextSplitter(), written::addAll, settings);
+
+        var report = pipeline.run(List.of(
+                new IngestionSource("a", Map.of("source", "a"), () -> pages("alpha", 10)),
+                new IngestionSource("b", Map.of("source", "b", "type", "pdf"), () -> pages("beta", 20))));
+
+        report.stages().forEach(System.out::println);
+        assertEquals(30, report.stages().get(0).itemsOut());
+        assertEquals(report.stages().get(1).itemsOut(), written.size());
+        assertEquals(written.size(), report.documentsWritten());
+        assertTrue(written.stream().anyMatch(doc -> "pdf".equals(doc.getMetadata().get("type"))));
+        assertTrue(written.stream().allMatch(doc -> doc.getMetadata().containsKey("source")));
+    }
+
+    @Test
+    void writerFailureAbortsThePipeline() {
+        var pipeline = new IngestionPipeline(new TokenTextSplitter(), docs -> {
+            throw new IllegalStateException("embedding failed");
+        }, IngestionPipeline.Settings.defaults());
+
+        var e = assertThrows(IllegalStateException.class, () -> pipeline.run(List.of(
+                new IngestionSource("a", Map.of(), () -> pages("alpha", 500)))));
+        assertTrue(e.getMessage().contains("embedding failed"));
+    }
+}
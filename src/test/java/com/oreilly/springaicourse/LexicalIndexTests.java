@@ -0,0 +1,156 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LexicalIndexTests {
+
+    @TempDir
+    Path dir;
+
+    private MappedVectorStore vectorStore;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (vectorStore != null) {
+            vectorStore.close();
+        }
+    }
+
+    private static final List<Document> FEUD_AND_FRIENDS = List.of(
+            new Document("feud-1", "Kendrick Lamar released Not Like Us, a diss track aimed at Drake",
+                    Map.of("source", "drake_feud")),
+            new Document("feud-2", "Drake answered with Family Matters", Map.of("source", "drake_feud")),
+            new Document("spring-1", "Spring Framework 6.2 is the latest version of the framework",
+                    Map.of("source", "spring_framework")),
+            new Document("game-1", "Who won the game? The home team won the final and the fans won the day",
+                    Map.of("source", "sports")),
+            new Document("game-2", "Who won the match was decided in the last minute of the final",
+                    Map.of("source", "sports")));
+
+    private static List<String> ids(List<Document> documents) {
+        return documents.stream().map(Document::getId).toList();
+    }
+
+    @Test
+    void rareTermsOutrankCommonOnes() {
+        var index = new LexicalIndex();
+        index.add(FEUD_AND_FRIENDS);
+
+        List<Document> hits = index.search("Who won the Kendrick Lamar / Drake feud?", 3, metadata -> true);
+
+        assertEquals("feud-1", hits.get(0).getId());
+        assertTrue(hits.get(0).getScore() > hits.get(1).getScore());
+        // Stop words alone match nothing
+        assertTrue(index.search("who was the", 3, metadata -> true).isEmpty());
+    }
+
+    @Test
+    void filterReplaceAndDelete() {
+        var index = new LexicalIndex();
+        index.add(FEUD_AND_FRIENDS);
+
+        assertEquals(List.of("spring-1"), ids(index.search("framework final", 5,
+                metadata -> "spring_framework".equals(metadata.get("source")))));
+
+        index.add(List.of(new Document("spring-1", "Spring Boot 3.4 is current", Map.of("source", "spring_framework"))));
+        assertTrue(index.search("framework", 5, metadata -> true).isEmpty());
+        assertEquals(List.of("spring-1"), ids(index.search("boot", 5, metadata -> true)));
+
+        assertEquals(2, index.delete(metadata -> "drake_feud".equals(metadata.get("source"))));
+        assertEquals(1, index.delete(List.of("game-1", "missing")));
+        assertEquals(2, index.size());
+        assertTrue(index.search("Drake", 5, metadata -> true).isEmpty());
+        assertFalse(index.containsAll(List.of("game-1")));
+        assertTrue(index.containsAll(List.of("game-2", "spring-1")));
+    }
+
+    @Test
+    void deletedChunksAreCompactedAway() {
+        var index = new LexicalIndex();
+        List<Document> documents = IntStream.range(0, 3000)
+                .mapToObj(i -> new Document("doc-" + i, "common words plus unique" + i, Map.of()))
+                .toList();
+        index.add(documents);
+        index.delete(documents.subList(0, 2500).stream().map(Document::getId).toList());
+
+        assertEquals(500, index.size());
+        assertEquals(List.of("doc-2999"), ids(index.search("unique2999", 5, metadata -> true)));
+        // Text and metadata are read back from the rewritten segment
+        assertEquals("common words plus unique2600", index.search("unique2600", 1, metadata -> true).get(0).getText());
+        assertTrue(index.search("unique10", 5, metadata -> true).isEmpty());
+        assertEquals(5, index.search("common", 5, metadata -> true).size());
+    }
+
+    @Test
+    void filteredSearchReadsPastRejectedChunks() {
+        var index = new LexicalIndex();
+        List<Document> documents = IntStream.range(0, 50)
+                .mapToObj(i -> new Document("doc-" + i, "release notes " + "release ".repeat(50 - i),
+                        Map.of("source", i < 45 ? "other" : "wanted")))
+                .toList();
+        index.add(documents);
+
+        // The 45 best chunks are filtered out, so the search reads on to the wanted ones
+        assertEquals(List.of("doc-45", "doc-46"), ids(index.search("release", 2,
+                metadata -> "wanted".equals(metadata.get("source")))));
+        index.close();
+    }
+
+    @Test
+    void savedIndexLoadsWithTheSameResults() throws IOException {
+        Path file = dir.resolve("lexical-index.bin");
+        var index = LexicalIndex.load(file);
+        index.add(FEUD_AND_FRIENDS);
+        index.delete(List.of("game-2"));
+        index.save();
+
+        var loaded = LexicalIndex.load(file);
+        assertEquals(4, loaded.size());
+        for (String query : List.of("Kendrick Lamar", "who won the final", "Spring Framework")) {
+            assertEquals(ids(index.search(query, 5, metadata -> true)), ids(loaded.search(query, 5, metadata -> true)));
+        }
+        assertEquals("drake_feud", loaded.search("Drake", 1, metadata -> true).get(0).getMetadata().get("source"));
+
+        // A damaged file loads as an empty index
+        Files.write(file, new byte[]{1, 2, 3});
+        assertEquals(0, LexicalIndex.load(file).size());
+    }
+
+    @Test
+    void hybridRetrievalFindsProperNounsTheEmbeddingsMiss() {
+        vectorStore = MappedVectorStore.builder(new StubEmbeddingModel()).directory(dir.resolve("store")).build();
+        vectorStore.add(FEUD_AND_FRIENDS);
+        var index = new LexicalIndex();
+        index.add(FEUD_AND_FRIENDS);
+        var request = SearchRequest.builder().query("Who won the Kendrick Lamar / Drake feud?").topK(2).build();
+
+        List<String> vectorOnly = ids(vectorStore.similaritySearch(request));
+        List<Document> hybrid = new HybridRetriever(vectorStore, index).search(request);
+
+        System.out.println("Vector: " + vectorOnly + ", hybrid: " + ids(hybrid));
+        assertFalse(vectorOnly.contains("feud-1"));
+        assertTrue(ids(hybrid).contains("feud-1"));
+        assertEquals(2, hybrid.size());
+        assertTrue(hybrid.get(0).getScore() >= hybrid.get(1).getScore());
+
+        // The filter narrows both rankings
+        var filtered = SearchRequest.from(request)
+                .filterExpression(new FilterExpressionBuilder().eq("source", "sports").build()).build();
+        assertTrue(new HybridRetriever(vectorStore, index).search(filtered).stream()
+                .allMatch(document -> "sports".equals(document.getMetadata().get("source"))));
+    }
+}
@@ -0,0 +1,256 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.filter.Filter;
+import org.springframework.ai.vectorstore.filter.FilterExpressionTextParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedVectorStoreTests {
+
+    @TempDir
+    Path dir;
+
+    private final StubEmbeddingModel model = new StubEmbeddingModel();
+
+    private final List<Document> documents = List.of(
+            new Document("spring-1", "Spring Framework dependency injection and beans", Map.of("source", "spring_framework")),
+            new Document("spring-2", "Spring Boot auto configuration", Map.of("source", "spring_framework")),
+            new Document("feud-1", "Kendrick Lamar and Drake diss tracks", Map.of("source", "drake_feud")),
+            new Document("jobs-1", "Future of Jobs report skills outlook", Map.of("source", "wef_jobs_report")));
+
+    private MappedVectorStore open() {
+        return MappedVectorStore.builder(model).directory(dir).build();
+    }
+
+    @Test
+    void documentsSurviveReopeningWithoutReEmbedding() throws IOException {
+        try (var store = open()) {
+            store.add(documents);
+        }
+        long embedded = model.inputs.sum();
+
+        try (var store = open()) {
+            assertEquals(4, store.size());
+            var results = store.similaritySearch(SearchRequest.builder()
+                    .query("Spring Framework dependency injection").topK(2).build());
+            results.forEach(doc -> System.out.println(doc.getId() + " " + doc.getScore()));
+
+            assertEquals(2, results.size());
+            assertEquals("spring-1", results.get(0).getId());
+            assertEquals("Spring Framework dependency injection and beans", results.get(0).getText());
+            assertEquals("spring_framework", results.get(0).getMetadata().get("source"));
+            assertTrue(results.get(0).getScore() >= results.get(1).getScore());
+        }
+        // Only the query was embedded after reopening
+        assertEquals(embedded + 1, model.inputs.sum());
+    }
+
+    @Test
+    void deletesAndReplacementsArePersisted() throws IOException {
+        try (var store = open()) {
+            store.add(documents);
+            store.delete(List.of("feud-1"));
+            store.add(List.of(new Document("jobs-1", "Replaced text", Map.of("source", "wef_jobs_report"))));
+        }
+
+        try (var store = open()) {
+            assertEquals(3, store.size());
+            var all = store.similaritySearch(SearchRequest.builder().query("anything").topK(10).build());
+            assertTrue(all.stream().noneMatch(doc -> doc.getId().equals("feud-1")));
+            assertEquals("Replaced text", all.stream()
+                    .filter(doc -> doc.getId().equals("jobs-1")).findFirst().orElseThrow().getText());
+        }
+    }
+
+    @Test
+    void filterExpressionsRestrictSearchAndDelete() throws IOException {
+        try (var store = open()) {
+            store.add(documents);
+
+            var results = store.similaritySearch(SearchRequest.builder()
+                    .query("Spring").topK(10).filterExpression("source == 'spring_framework'").build());
+            assertEquals(2, results.size());
+            assertTrue(results.stream().allMatch(doc -> doc.getMetadata().get("source").equals("spring_framework")));
+
+            store.delete("source == 'spring_framework'");
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    void idsOutsideModifiedUtf8SurviveReopening() throws IOException {
+        List<String> ids = List.of("nul\u0000id", "emoji-\uD83C\uDFA4", "plain-1");
+        try (var store = open()) {
+            store.add(ids.stream().map(id -> new Document(id, "Text of " + id, Map.of())).toList());
+            store.delete(List.of("nul\u0000id"));
+        }
+
+        try (var store = open()) {
+            var all = store.similaritySearch(SearchRequest.builder().query("Text").topK(10).build());
+            assertEquals(List.of("emoji-\uD83C\uDFA4", "plain-1"),
+                    all.stream().map(Document::getId).sorted().toList());
+        }
+    }
+
+    @Test
+    void snapshotCanBeOpenedAsAStore() throws IOException {
+        Path copy = dir.resolve("snapshot");
+        try (var store = MappedVectorStore.builder(model).directory(dir.resolve("live")).build()) {
+            store.add(documents);
+            store.snapshot(copy);
+            store.delete(List.of("spring-1"));
+        }
+
+        try (var snapshot = MappedVectorStore.builder(model).directory(copy).build()) {
+            assertEquals(4, snapshot.size());
+        }
+    }
+
+    @Test
+    void tornLogTailIsIgnored() throws IOException {
+        try (var store = open()) {
+            store.add(documents);
+        }
+        Files.write(dir.resolve(MappedVectorStore.DOCUMENTS_FILE), new byte[]{0, 0, 0, 42, 1, 2},
+                StandardOpenOption.APPEND);
+
+        try (var store = open()) {
+            assertEquals(4, store.size());
+            store.add(List.of(new Document("extra", "More text", Map.of())));
+        }
+        try (var store = open()) {
+            assertEquals(5, store.size());
+        }
+    }
+
+    @Test
+    void bitmapFiltersMatchTheSpelFilterAndScoreOnlyTheirSlots() throws IOException {
+        var sources = List.of("drake_feud", "spring_framework", "wef_jobs_report");
+        var corpus = IntStream.range(0, 600)
+                .mapToObj(i -> new Document("doc-" + i, "chunk " + i + " about topic " + (i % 7),
+                        i % 3 == 2 ? Map.of("source", sources.get(i % 3), "type", "pdf", "page", i)
+                                : Map.of("source", sources.get(i % 3), "page", i)))
+                .toList();
+        var parser = new FilterExpressionTextParser();
+        var filters = List.of(
+                "source == 'drake_feud'",
+                "source in ['spring_framework', 'wef_jobs_report'] && type == 'pdf'",
+                "source != 'drake_feud'",
+                "type nin ['pdf']",
+                "not (source == 'wef_jobs_report') || type == 'pdf'",
+                // Not bitmap-indexed, so left to SpEL after narrowing by source
+                "source == 'spring_framework' && page < 100");
+
+        try (var store = open()) {
+            store.add(corpus);
+            for (String text : filters) {
+                Filter.Expression filter = parser.parse(text);
+                var predicate = MetadataFilter.predicate(filter);
+                // Compared by score, since chunks with equal scores can come back in any order
+                List<Double> expected = store.similaritySearch(SearchRequest.builder()
+                                .query("topic 3").topK(corpus.size()).build()).stream()
+                        .filter(document -> predicate.test(document.getMetadata()))
+                        .limit(5)
+                        .map(Document::getScore)
+                        .toList();
+
+                long before = store.vectorsScored.sum();
+                List<Document> actual = store.similaritySearch(SearchRequest.builder()
+                        .query("topic 3").topK(5).filterExpression(filter).build());
+                long scored = store.vectorsScored.sum() - before;
+                System.out.printf("%s: scored %d of %d%n", text, scored, corpus.size());
+
+                assertTrue(actual.stream().allMatch(document -> predicate.test(document.getMetadata())), text);
+                assertEquals(expected, actual.stream().map(Document::getScore).toList(), text);
+                assertTrue(scored < corpus.size(), text);
+            }
+
+            // Scoped search only looks at a third of the store
+            long before = store.vectorsScored.sum();
+            store.similaritySearch(SearchRequest.builder().query("topic 3").topK(5)
+                    .filterExpression(parser.parse("source == 'drake_feud'")).build());
+            assertEquals(200, store.vectorsScored.sum() - before);
+
+            // Deletes by filter use the bitmaps too, and keep them current
+            store.delete(parser.parse("source == 'drake_feud'"));
+            assertEquals(400, store.size());
+            assertTrue(store.similaritySearch(SearchRequest.builder().query("topic 3").topK(5)
+                    .filterExpression(parser.parse("source == 'drake_feud'")).build()).isEmpty());
+        }
+    }
+
+    @Test
+    void deadSlotsAreCompactedAwayOnceTheyOutnumberLiveOnes() throws Exception {
+        int count = MappedVectorStore.MIN_DEAD_TO_COMPACT + 100;
+        Path vectorsFile = dir.resolve(MappedVectorStore.VECTORS_FILE);
+        Path logFile = dir.resolve(MappedVectorStore.DOCUMENTS_FILE);
+        try (var store = MappedVectorStore.builder(model).directory(dir).hnsw(HnswIndex.Settings.defaults()).build()) {
+            // Re-ingesting the same chunks twice leaves two dead slots per live one
+            for (int version = 0; version < 3; version++) {
+                int v = version;
+                store.add(IntStream.range(0, count)
+                        .mapToObj(i -> new Document("doc-" + i, "chunk " + i + " version " + v,
+                                Map.of("source", "spring_framework")))
+                        .toList());
+                System.out.printf("After version %d: %d dead slots, %d KB of vectors, %d KB of log%n", v,
+                        store.deadSlots(), Files.size(vectorsFile) / 1024, Files.size(logFile) / 1024);
+            }
+            assertEquals(0, store.deadSlots());
+            assertEquals(count, store.size());
+
+            long start = System.nanoTime();
+            while (!store.indexReady() && System.nanoTime() - start < 60_000_000_000L) {
+                Thread.sleep(10);
+            }
+            var results = store.similaritySearch(SearchRequest.builder().query("chunk 7 version 2").topK(1)
+                    .filterExpression("source == 'spring_framework'").build());
+            assertEquals("chunk 7 version 2", results.get(0).getText());
+        }
+        assertFalse(Files.exists(dir.resolve(MappedVectorStore.COMPACTING_DIRECTORY)));
+
+        try (var store = open()) {
+            assertEquals(count, store.size());
+            assertEquals(0, store.deadSlots());
+            var results = store.similaritySearch(SearchRequest.builder().query("chunk 9 version 2").topK(1).build());
+            assertEquals("doc-9", results.get(0).getId());
+            assertEquals("chunk 9 version 2", results.get(0).getText());
+        }
+    }
+
+    @Test
+    void interruptedCompactionIsFinishedOrDroppedOnOpen() throws IOException {
+        try (var store = open()) {
+            store.add(documents);
+        }
+        // An unfinished compaction is dropped
+        Path work = Files.createDirectories(dir.resolve(MappedVectorStore.COMPACTING_DIRECTORY));
+        Files.write(work.resolve(MappedVectorStore.VECTORS_FILE), new byte[]{1, 2, 3});
+        try (var store = open()) {
+            assertEquals(4, store.size());
+        }
+        assertFalse(Files.exists(work));
+
+        // A finished one replaces the files it was made from
+        try (var store = open()) {
+            store.snapshot(work);
+            store.delete(List.of("feud-1"));
+        }
+        Files.createFile(work.resolve("complete"));
+        try (var store = open()) {
+            assertEquals(4, store.size());
+        }
+        assertFalse(Files.exists(work));
+    }
+}
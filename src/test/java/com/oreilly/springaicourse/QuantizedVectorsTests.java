@@ -0,0 +1,199 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuantizedVectorsTests {
+
+    private static final Pattern QUESTION = Pattern.compile("^\\s*\\d+\\.\\s+(.+\\?)\\s*$");
+
+    @Test
+    void codesAreSmallerThanFloat32() throws InterruptedException {
+        int dimensions = 64;
+        int count = 40_000;
+        Random random = new Random(3);
+        var int8 = QuantizedVectors.create("int8", dimensions);
+        var pq = QuantizedVectors.create("pq", dimensions);
+        for (int slot = 0; slot < count; slot++) {
+            float[] vector = new float[dimensions];
+            for (int i = 0; i < dimensions; i++) {
+                vector[i] = (float) random.nextGaussian();
+            }
+            int8.add(slot, vector);
+            pq.add(slot, vector);
+        }
+        ((ProductQuantizedVectors) pq).awaitTraining();
+
+        long full = (long) count * dimensions * Float.BYTES;
+        for (var codes : List.of(int8, pq)) {
+            System.out.printf("%-6s %,12d bytes (%.1fx smaller than float32)%n",
+                    codes.name(), codes.memoryBytes(), (double) full / codes.memoryBytes());
+        }
+        // One byte per dimension plus a 4-byte scale per vector
+        assertTrue(full / (double) int8.memoryBytes() >= 3.7);
+        // The shared codebooks are the only overhead on top of one byte per 4 dimensions
+        assertTrue(full / (double) pq.memoryBytes() >= 14);
+    }
+
+    @Test
+    void vectorsAddedWhileTheCodebooksTrainAreEncodedWhenTheyAreSwappedIn() throws InterruptedException {
+        int dimensions = 64;
+        Random random = new Random(5);
+        var pq = new ProductQuantizedVectors(dimensions, 4, 512);
+        List<float[]> vectors = new ArrayList<>();
+        // Every other slot, as after deletes
+        for (int i = 0; i < 600; i++) {
+            float[] vector = new float[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            vectors.add(vector);
+            pq.add(2 * i, vector);
+        }
+        // Pending vectors are scored exactly until the codebooks are in
+        float[] query = vectors.get(599);
+        if (!pq.isTrained()) {
+            assertEquals(SimilarityKernel.scalar().dot(query, query), pq.scorer(query).dot(2 * 599), 1e-3f);
+        }
+
+        pq.awaitTraining();
+        assertTrue(pq.isTrained());
+        assertEquals(1199L * 16 + 256L * dimensions * Float.BYTES, pq.memoryBytes());
+        // Slots from the training sample and from after it both score close to exact
+        var scorer = pq.scorer(query);
+        for (int i : new int[]{0, 511, 512, 599}) {
+            float exact = SimilarityKernel.scalar().dot(query, vectors.get(i));
+            assertEquals(exact, scorer.dot(2 * i), 0.25f * Math.abs(SimilarityKernel.scalar().dot(query, query)),
+                    "slot " + 2 * i);
+        }
+    }
+
+    @Test
+    void productQuantizationIsSavedWithTheStoreAndNotRetrainedOnOpen(@TempDir Path dir) throws IOException {
+        var model = new StubEmbeddingModel(64, Duration.ZERO, Duration.ZERO, Integer.MAX_VALUE);
+        Random random = new Random(9);
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            documents.add(new Document("doc-" + i, "skills jobs spring drake " + random.nextInt(5000), Map.of()));
+        }
+        var request = SearchRequest.builder().query("skills drake").topK(1001).build();
+        // Codes for 1001 vectors of 16 subspaces, plus 256 centroids of 64 floats
+        long codesBytes = 1001L * 16 + 256L * 64 * Float.BYTES;
+
+        List<Document> before;
+        try (var store = MappedVectorStore.builder(model).directory(dir).quantization("pq", 8).build()) {
+            store.add(documents);
+            // A zero vector scores 0 rather than NaN
+            store.add(List.of(new Document("zero", "no embedding", Map.of())), List.of(new float[64]));
+            before = store.similaritySearch(request);
+        }
+        assertTrue(Files.exists(dir.resolve(MappedVectorStore.QUANTIZED_FILE)));
+        assertEquals(0.0, before.stream().filter(doc -> doc.getId().equals("zero")).findFirst().orElseThrow()
+                .getScore());
+        assertTrue(before.stream().noneMatch(doc -> Double.isNaN(doc.getScore())));
+
+        try (var store = MappedVectorStore.builder(model).directory(dir).quantization("pq", 8).build()) {
+            assertEquals(codesBytes, store.quantizedBytes());
+            // Scores, as documents with the same words tie
+            assertEquals(before.stream().map(Document::getScore).toList(),
+                    store.similaritySearch(request).stream().map(Document::getScore).toList());
+        }
+
+        // Without the saved codes the codebooks are trained as the store
+        // opens: no float32 copy of the vectors is left waiting on them
+        Files.delete(dir.resolve(MappedVectorStore.QUANTIZED_FILE));
+        try (var store = MappedVectorStore.builder(model).directory(dir).quantization("pq", 8).build()) {
+            assertEquals(codesBytes, store.quantizedBytes());
+        }
+    }
+
+    @Test
+    void savedCodesScoreTheSameWhenLoaded(@TempDir Path dir) throws InterruptedException {
+        int dimensions = 64;
+        Random random = new Random(13);
+        var pq = new ProductQuantizedVectors(dimensions, 4, 512);
+        for (int slot = 0; slot < 800; slot++) {
+            float[] vector = new float[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                vector[d] = (float) random.nextGaussian();
+            }
+            pq.add(slot, vector);
+        }
+        pq.awaitTraining();
+        Path file = dir.resolve("pq.codes");
+        pq.save(file);
+
+        assertNull(ProductQuantizedVectors.load(file, dimensions, 4, 512, 799));
+        assertNull(ProductQuantizedVectors.load(file, dimensions, 8, 512, 800));
+        var loaded = ProductQuantizedVectors.load(file, dimensions, 4, 512, 800);
+        assertNotNull(loaded);
+        assertEquals(800, loaded.loaded());
+        assertEquals(pq.memoryBytes(), loaded.memoryBytes());
+        float[] query = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            query[d] = (float) random.nextGaussian();
+        }
+        var expected = pq.scorer(query);
+        var actual = loaded.scorer(query);
+        for (int slot = 0; slot < 800; slot++) {
+            assertEquals(expected.dot(slot), actual.dot(slot), "slot " + slot);
+        }
+    }
+
+    @Test
+    void quantizedStoresReturnTheSameMatchesForTheRagQuestions(@TempDir Path dir) throws IOException {
+        List<String> questions = Files.readAllLines(Path.of("RAG_questions.txt")).stream()
+                .map(QUESTION::matcher)
+                .filter(Matcher::matches)
+                .map(matcher -> matcher.group(1))
+                .toList();
+        assertEquals(10, questions.size());
+
+        var pdf = new ClassPathResource("pdfs/WEF_Future_of_Jobs_Report_2025.pdf");
+        List<Document> chunks = new TokenTextSplitter().apply(new PagePdfDocumentReader(pdf).get());
+        System.out.println("Chunks: " + chunks.size());
+
+        var model = new StubEmbeddingModel();
+        try (var exact = MappedVectorStore.builder(model).directory(dir.resolve("exact")).build();
+             var int8 = MappedVectorStore.builder(model).directory(dir.resolve("int8"))
+                     .quantization("int8", 8).build();
+             var pq = MappedVectorStore.builder(model).directory(dir.resolve("pq"))
+                     .quantization("pq", 8).build();
+             var pqHnsw = MappedVectorStore.builder(model).directory(dir.resolve("pq-hnsw"))
+                     .quantization("pq", 8).hnsw(HnswIndex.Settings.defaults()).build()) {
+            for (var store : List.of(exact, int8, pq, pqHnsw)) {
+                store.add(chunks);
+            }
+            System.out.printf("int8 codes: %,d bytes, pq codes: %,d bytes, float32: %,d bytes%n",
+                    int8.quantizedBytes(), pq.quantizedBytes(), (long) chunks.size() * 1536 * Float.BYTES);
+
+            for (String question : questions) {
+                var request = SearchRequest.builder().query(question).topK(4).build();
+                // Compare scores: chunks with identical scores may come back in either order
+                var expected = exact.similaritySearch(request).stream().map(Document::getScore).toList();
+                for (var store : List.of(int8, pq, pqHnsw)) {
+                    assertEquals(expected, store.similaritySearch(request).stream().map(Document::getScore).toList(),
+                            question);
+                }
+            }
+        }
+    }
+}
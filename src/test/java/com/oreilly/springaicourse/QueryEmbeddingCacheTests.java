@@ -0,0 +1,199 @@
+package com.oreilly.springaicourse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingOptionsBuilder;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.vectorstore.SearchRequest;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryEmbeddingCacheTests {
+
+    private final StubEmbeddingModel embeddingModel = new StubEmbeddingModel();
+
+    private static String key(int i) {
+        return "question " + i;
+    }
+
+    private static float[] vector(int dimensions) {
+        return new float[dimensions];
+    }
+
+    @Test
+    void repeatedQuestionsAreEmbeddedOnce() {
+        var cache = new QueryEmbeddingCache(1 << 20);
+        var model = new QueryCachingEmbeddingModel(embeddingModel, cache);
+
+        float[] first = model.embed("Who released Not Like Us?");
+        float[] second = model.embed("Who released Not Like Us?");
+        assertArrayEquals(first, second);
+        assertNotSame(first, second);
+        assertEquals(1, embeddingModel.calls.sum());
+
+        // Changing a returned vector does not change the cached one
+        second[0] = 42;
+        assertArrayEquals(first, model.embed("Who released Not Like Us?"));
+
+        // A different model is a different key
+        model.call(new EmbeddingRequest(List.of("Who released Not Like Us?"),
+                EmbeddingOptionsBuilder.builder().withModel("text-embedding-3-large").build()));
+        assertEquals(2, embeddingModel.calls.sum());
+
+        // Batches are ingestion, not questions, and are not cached
+        model.embed(List.of("chunk one", "chunk two"));
+        model.embed(List.of("chunk one", "chunk two"));
+        assertEquals(4, embeddingModel.calls.sum());
+
+        var stats = cache.stats();
+        System.out.println("Query cache: " + stats);
+        assertEquals(2, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(2, stats.entries());
+    }
+
+    @Test
+    void sizeIsBoundedByBytes() {
+        int weight = QueryEmbeddingCache.weight(key(0), vector(1536));
+        var cache = new QueryEmbeddingCache(100L * weight);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key(i), vector(1536));
+            cache.get(key(i));
+        }
+        var stats = cache.stats();
+        System.out.println("Query cache: " + stats);
+        assertTrue(stats.bytes() <= 100L * weight);
+        assertTrue(stats.entries() >= 90);
+        assertEquals(1000 - stats.entries(), stats.evictions() + stats.rejections());
+
+        // An entry larger than the cache is refused
+        var small = new QueryEmbeddingCache(1000);
+        small.put("huge", vector(1536));
+        assertNull(small.get("huge"));
+    }
+
+    @Test
+    void frequentQuestionsSurviveAScanOfOneOffQuestions() {
+        int weight = QueryEmbeddingCache.weight(key(0), vector(1536));
+        var cache = new QueryEmbeddingCache(200L * weight);
+
+        // 50 popular questions, each asked several times
+        for (int round = 0; round < 5; round++) {
+            IntStream.range(0, 50).forEach(i -> ask(cache, i));
+        }
+        // Then 5000 questions nobody asks twice, as from a crawler, with a
+        // popular question every tenth request. Each popular question comes
+        // back after 500 one-offs, which would flush it from an LRU of 200.
+        int popularHits = 0;
+        for (int i = 0; i < 5000; i++) {
+            ask(cache, 1000 + i);
+            if (i % 10 == 0) {
+                popularHits += ask(cache, i / 10 % 50) ? 1 : 0;
+            }
+        }
+        System.out.println("Popular hits during the scan: " + popularHits + "/500, " + cache.stats());
+        assertTrue(popularHits >= 475);
+    }
+
+    // Whether the question was cached
+    private static boolean ask(QueryEmbeddingCache cache, int question) {
+        if (cache.get(key(question)) != null) {
+            return true;
+        }
+        cache.put(key(question), vector(1536));
+        return false;
+    }
+
+    @Test
+    void metricsReportHitsAndMisses() {
+        var cache = new QueryEmbeddingCache(1 << 20);
+        var registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+
+        cache.put(key(1), vector(8));
+        cache.get(key(1));
+        cache.get(key(2));
+        cache.get(key(1));
+
+        assertEquals(2, registry.get("rag.embedding.query-cache.requests").tag("result", "hit")
+                .functionCounter().count());
+        assertEquals(1, registry.get("rag.embedding.query-cache.requests").tag("result", "miss")
+                .functionCounter().count());
+        assertEquals(1, registry.get("rag.embedding.query-cache.entries").gauge().value());
+        assertEquals(QueryEmbeddingCache.weight(key(1), vector(8)),
+                registry.get("rag.embedding.query-cache.size").gauge().value());
+    }
+
+    @Test
+    void replacingAnEntryWithALargerOneKeepsTheBound() {
+        int weight = QueryEmbeddingCache.weight(key(0), vector(64));
+        var cache = new QueryEmbeddingCache(100L * weight);
+        var registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+        for (int i = 0; i < 100; i++) {
+            cache.put(key(i), vector(64));
+            cache.get(key(i));
+        }
+        for (int i = 0; i < 20; i++) {
+            cache.put(key(i), vector(640));
+        }
+        var stats = cache.stats();
+        System.out.println("Query cache after growing entries: " + stats);
+        assertTrue(stats.bytes() <= 100L * weight);
+        assertTrue(stats.evictions() > 0);
+
+        // An entry grown past the cache's size is dropped and counted as refused
+        cache.put(key(50), vector(100 * 64));
+        assertNull(cache.get(key(50)));
+        assertEquals(cache.stats().rejections(),
+                registry.get("rag.embedding.query-cache.rejections").functionCounter().count());
+        assertEquals(cache.stats().evictions(),
+                registry.get("rag.embedding.query-cache.evictions").functionCounter().count());
+        assertTrue(cache.stats().rejections() > 0);
+    }
+
+    @Test
+    void repeatedQuestionHitsTheCacheThroughTheLocalStoreWiring(@TempDir Path dir) throws Exception {
+        var config = new AppConfig();
+        var cache = config.queryEmbeddingCache(DataSize.ofMegabytes(16));
+        var registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+        var primary = config.queryCachingEmbeddingModel(embeddingModel, cache);
+        var documents = List.of(
+                new Document("feud-1", "Kendrick Lamar released Not Like Us", Map.of("source", "drake_feud")),
+                new Document("jobs-1", "Analytical thinking is the top core skill", Map.of("source", "wef_jobs_report")));
+
+        // The single store and the sharded one, as AppConfig builds them
+        for (int shards : new int[]{1, 2}) {
+            try (var embeddingCache = config.embeddingCache(dir.resolve(shards + "/embedding-cache.bin"), 1000);
+                 var vectorStore = (AutoCloseable & VectorStore) config.localVectorStore(embeddingModel, primary,
+                         embeddingCache, "text-embedding-3-small", dir.resolve(shards + "/store"), true, 16, 200,
+                         64, "auto", "none", 8, shards, 2, "")) {
+                vectorStore.add(documents);
+                long calls = embeddingModel.calls.sum();
+                double hits = registry.get("rag.embedding.query-cache.requests").tag("result", "hit")
+                        .functionCounter().count();
+
+                for (int i = 0; i < 3; i++) {
+                    vectorStore.similaritySearch(SearchRequest.builder()
+                            .query("Who released Not Like Us? (" + shards + " shards)").topK(1).build());
+                }
+
+                // Embedded once, served twice from the query cache, and kept off the disk cache
+                assertEquals(calls + 1, embeddingModel.calls.sum());
+                assertEquals(hits + 2, registry.get("rag.embedding.query-cache.requests")
+                        .tag("result", "hit").functionCounter().count());
+                assertEquals(documents.size(), embeddingCache.stats().entries());
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.advisor.vectorstore.QuestionAnswerAdvisor;
+import org.springframework.ai.chat.memory.ChatMemory;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.vectorstore.SearchRequest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// RAGService against stub models, so it runs without API keys
+class RAGServiceTests {
+
+    @TempDir
+    Path dir;
+
+    private final StubChatModel chatModel = new StubChatModel();
+    private final ChatMemory memory = MessageWindowChatMemory.builder().build();
+    private MappedVectorStore vectorStore;
+    private RAGService ragService;
+
+    @BeforeEach
+    void setUp() {
+        vectorStore = MappedVectorStore.builder(new StubEmbeddingModel()).directory(dir).build();
+        vectorStore.add(List.of(
+                new Document("spring-1", "Spring Framework 6.2 is the latest version", Map.of("source", "spring_framework")),
+                new Document("spring-2", "Spring Boot builds on the Spring Framework", Map.of("source", "spring_framework")),
+                new Document("feud-1", "Kendrick Lamar released Not Like Us", Map.of("source", "drake_feud")),
+                new Document("jobs-1", "Analytical thinking is the top core skill", Map.of("source", "wef_jobs_report"))));
+        ragService = new RAGService(chatModel, vectorStore, memory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        vectorStore.close();
+    }
+
+    private String lastUserText() {
+        return chatModel.lastPrompt.get().getUserMessage().getText();
+    }
+
+    @Test
+    void defaultOptionsRetrieveContextAndRecordHistory() {
+        String answer = ragService.query("What is the latest version of the Spring Framework?");
+
+        assertEquals("Stub answer", answer);
+        assertTrue(lastUserText().contains("Spring Framework 6.2 is the latest version"));
+        assertEquals(2, memory.get(ChatMemory.DEFAULT_CONVERSATION_ID).size());
+    }
+
+    @Test
+    void topKAndFilterArePerRequest() {
+        var options = QueryOptions.defaults().withTopK(1);
+        ragService.query("What is the latest version of the Spring Framework?", options);
+        assertTrue(lastUserText().contains("Spring Framework 6.2"));
+        assertFalse(lastUserText().contains("Spring Boot"));
+
+        ragService.query("Spring Framework", options.withTopK(4).withFilterExpression("source == 'drake_feud'"));
+        assertTrue(lastUserText().contains("Not Like Us"));
+        assertFalse(lastUserText().contains("Spring Framework 6.2"));
+
+        var scoped = options.withTopK(4).withSources("wef_jobs_report", "drake_feud");
+        assertEquals("source in ['wef_jobs_report', 'drake_feud']", scoped.filterExpression());
+        ragService.query("Spring Framework", scoped);
+        assertTrue(lastUserText().contains("Analytical thinking"));
+        assertFalse(lastUserText().contains("Spring Framework 6.2"));
+
+        // No chunk in the test store has a type
+        ragService.query("Spring Framework", scoped.withType("pdf"));
+        assertFalse(lastUserText().contains("Not Like Us"));
+        assertThrows(IllegalArgumentException.class, () -> options.withSources("drake' || 'a"));
+    }
+
+    @Test
+    void similarityThresholdCanExcludeEverything() {
+        ragService.query("Spring Framework", QueryOptions.defaults().withSimilarityThreshold(0.99));
+        assertFalse(lastUserText().contains("Spring Framework 6.2"));
+    }
+
+    @Test
+    void conversationsAreKeptApart() {
+        ragService.query("First question", QueryOptions.defaults().withConversationId("alice"));
+        ragService.query("Second question", QueryOptions.defaults().withConversationId("bob"));
+        ragService.query("Third question", QueryOptions.defaults().withConversationId("alice"));
+
+        assertEquals(4, memory.get("alice").size());
+        assertEquals(2, memory.get("bob").size());
+        // Alice's earlier exchange is part of her prompt, Bob's is not
+        String prompt = chatModel.lastPrompt.get().getContents();
+        assertTrue(prompt.contains("First question"));
+        assertFalse(prompt.contains("Second question"));
+    }
+
+    @Test
+    void repeatedOpeningQuestionIsAnsweredFromTheCache() {
+        var cache = new SemanticResponseCache(new StubEmbeddingModel(), SemanticResponseCache.Settings.defaults());
+        var cachedService = new RAGService(chatModel, vectorStore, memory, cache);
+        var options = QueryOptions.defaults().withTopK(1);
+
+        var first = cachedService.ask("What is the latest version of the Spring Framework?",
+                options.withConversationId("alice"));
+        var second = cachedService.ask("What is the latest version of the Spring Framework?",
+                options.withConversationId("bob"));
+        // Bob has history now, so his follow-up goes to the model
+        var followUp = cachedService.ask("What is the latest version of the Spring Framework?",
+                options.withConversationId("bob"));
+
+        assertFalse(first.cached());
+        assertTrue(second.cached());
+        assertFalse(followUp.cached());
+        assertEquals(first.answer(), second.answer());
+        assertEquals(List.of("spring-1"), second.documentIds());
+        assertEquals(2, chatModel.calls.sum());
+        assertEquals(4, memory.get("bob").size());
+        assertEquals(1, cache.stats().hits());
+    }
+
+    @Test
+    void concurrentIdenticalOpeningQuestionsShareOneModelCall() throws Exception {
+        var slowModel = new StubChatModel("Spring Framework 6.2", Duration.ofMillis(300));
+        var service = new RAGService(slowModel, vectorStore, memory);
+        var options = QueryOptions.defaults().withTopK(1);
+        List<String> questions = List.of("What is the latest Spring Framework?", "what is the latest  spring framework?",
+                "What is the latest Spring Framework? ", "WHAT IS THE LATEST SPRING FRAMEWORK?");
+
+        ExecutorService executor = Executors.newFixedThreadPool(questions.size());
+        try {
+            List<Future<RagAnswer>> answers = new ArrayList<>();
+            for (int i = 0; i < questions.size(); i++) {
+                String question = questions.get(i);
+                String user = "user-" + i;
+                answers.add(executor.submit(() -> service.ask(question, options.withConversationId(user))));
+            }
+            for (var answer : answers) {
+                assertEquals("Spring Framework 6.2", answer.get(5, TimeUnit.SECONDS).answer());
+                assertEquals(List.of("spring-1"), answer.get().documentIds());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, slowModel.calls.sum());
+        assertEquals(3, service.coalescedQuestions());
+        // Every conversation remembers its own question and the shared answer
+        for (int i = 0; i < questions.size(); i++) {
+            var messages = memory.get("user-" + i);
+            assertEquals(2, messages.size());
+            assertEquals(questions.get(i), messages.get(0).getText());
+        }
+
+        // Follow-ups depend on each conversation, so they are not shared
+        service.askAsync("What is the latest Spring Framework?", options.withConversationId("user-0")).block();
+        assertEquals(2, slowModel.calls.sum());
+    }
+
+    @Test
+    void streamEmitsSourcesBeforeTokens() {
+        var streaming = new RAGService(new StubChatModel("Spring Framework 6.2", Duration.ZERO), vectorStore, memory);
+        List<RagEvent> events = streaming.stream("What is the latest version of the Spring Framework?",
+                QueryOptions.defaults().withTopK(1)).collectList().block();
+
+        var sources = assertInstanceOf(RagEvent.Sources.class, events.get(0));
+        assertEquals("spring-1", sources.sources().get(0).id());
+        assertEquals("spring_framework", sources.sources().get(0).source());
+        assertEquals("Spring Framework 6.2", events.stream().skip(1)
+                .map(event -> ((RagEvent.Token) event).text())
+                .collect(Collectors.joining()));
+        // The streamed answer is remembered like a called one
+        assertEquals(2, memory.get(ChatMemory.DEFAULT_CONVERSATION_ID).size());
+    }
+
+    @Test
+    void cancellingTheStreamCancelsTheModelCall() {
+        var slowModel = new StubChatModel("one two three four five six", Duration.ofMillis(50));
+        var streaming = new RAGService(slowModel, vectorStore, memory);
+        List<RagEvent> events = streaming.stream("Who released Not Like Us?", QueryOptions.defaults())
+                .take(3)
+                .collectList().block();
+
+        assertEquals(3, events.size());
+        assertEquals(1, slowModel.streamsCancelled.sum());
+        // The prompt still carried the context retrieved for the sources event
+        assertTrue(slowModel.lastPrompt.get().getUserMessage().getText().contains("Not Like Us"));
+    }
+
+    @Test
+    void contextBudgetBoundsThePromptAsTheConversationGrows() {
+        var budget = new ContextBudget(new ContextBudget.Settings(250, 100, 0.8));
+        var service = new RAGService(chatModel, vectorStore, memory, null, null, null, budget);
+        var options = QueryOptions.defaults().withConversationId("long");
+        var estimator = new JTokkitTokenCountEstimator();
+
+        List<Integer> promptTokens = new ArrayList<>();
+        for (int i = 0; i < 15; i++) {
+            service.query("Tell me more about Spring, part " + i + "?", options);
+            promptTokens.add(chatModel.lastPrompt.get().getInstructions().stream()
+                    .mapToInt(message -> estimator.estimate(message.getText()) + ContextBudget.TOKENS_PER_MESSAGE)
+                    .sum());
+        }
+        System.out.println("Prompt tokens by turn: " + promptTokens);
+        assertTrue(promptTokens.stream().allMatch(tokens -> tokens <= 250));
+        // The memory holds the whole window; the prompt only the newest of it
+        assertTrue(chatModel.lastPrompt.get().getInstructions().size() < memory.get("long").size());
+        assertTrue(lastUserText().contains("Spring Framework 6.2"));
+    }
+
+    @Test
+    void reportedSourcesAreTheDocumentsLeftInTheBudgetedPrompt() {
+        // Room for the question and a document or two, not all four
+        var budget = new ContextBudget(new ContextBudget.Settings(100, 0, 0.8));
+        var streamingModel = new StubChatModel("Spring Framework 6.2", Duration.ZERO);
+        var service = new RAGService(streamingModel, vectorStore, memory, null, null, null, budget);
+        var options = QueryOptions.defaults().withTopK(4);
+        Map<String, String> texts = vectorStore.similaritySearch(SearchRequest.builder().query("Spring").topK(4).build())
+                .stream().collect(Collectors.toMap(Document::getId, Document::getText));
+
+        List<RagEvent> events = service.stream("What is the latest version of the Spring Framework?",
+                options.withConversationId("streamed")).collectList().block();
+        List<String> streamed = assertInstanceOf(RagEvent.Sources.class, events.get(0)).sources().stream()
+                .map(RagEvent.Source::id).toList();
+        System.out.println("Streamed sources within the budget: " + streamed);
+        assertFalse(streamed.isEmpty());
+        assertTrue(streamed.size() < 4);
+        assertEquals(inPrompt(streamingModel, texts), Set.copyOf(streamed));
+
+        RagAnswer answer = service.askAsync("What is the latest version of the Spring Framework?",
+                options.withConversationId("async")).block();
+        assertEquals(inPrompt(streamingModel, texts), Set.copyOf(answer.documentIds()));
+        assertEquals(streamed, answer.documentIds());
+    }
+
+    // Ids of the documents whose text the last prompt carried
+    private static Set<String> inPrompt(StubChatModel model, Map<String, String> texts) {
+        String prompt = model.lastPrompt.get().getUserMessage().getText();
+        return texts.entrySet().stream()
+                .filter(entry -> prompt.contains(entry.getValue()))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void retrievalAdvisorBuildsTheSamePromptAsQuestionAnswerAdvisor() {
+        var request = ChatClientRequest.builder()
+                .prompt(new Prompt("Who released Not Like Us?"))
+                .context(Map.of())
+                .build();
+        var expected = new QuestionAnswerAdvisor(vectorStore).before(request, null);
+        var actual = new RetrievalAdvisor(vectorStore).before(request, null);
+
+        assertEquals(expected.prompt().getUserMessage().getText(), actual.prompt().getUserMessage().getText());
+    }
+}
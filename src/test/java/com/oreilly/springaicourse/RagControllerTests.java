@@ -0,0 +1,132 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.document.Document;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class RagControllerTests {
+
+    @TempDir
+    Path dir;
+
+    private MappedVectorStore vectorStore;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        vectorStore = MappedVectorStore.builder(new StubEmbeddingModel()).directory(dir).build();
+        vectorStore.add(List.of(
+                new Document("feud-1", "Kendrick Lamar released Not Like Us", Map.of("source", "drake_feud")),
+                new Document("jobs-1", "Analytical thinking is the top core skill", Map.of("source", "wef_jobs_report"))));
+        mockMvc = mockMvc(new StubChatModel("Kendrick Lamar did", Duration.ofMillis(5)),
+                RequestLimiter.Settings.defaults());
+    }
+
+    private MockMvc mockMvc(StubChatModel chatModel, RequestLimiter.Settings limits) {
+        var ragService = new RAGService(chatModel, vectorStore, MessageWindowChatMemory.builder().build());
+        return MockMvcBuilders.standaloneSetup(new RagController(ragService, new RequestLimiter(limits))).build();
+    }
+
+    private MvcResult postQuery(MockMvc mockMvc) throws Exception {
+        MvcResult started = mockMvc.perform(post("/rag/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {"question": "Who released Not Like Us?", "topK": 1}"""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        started.getAsyncResult(5_000);
+        return mockMvc.perform(asyncDispatch(started)).andReturn();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        vectorStore.close();
+    }
+
+    @Test
+    void streamSendsSourcesThenTokensAsServerSentEvents() throws Exception {
+        MvcResult started = mockMvc.perform(get("/rag/stream")
+                        .param("question", "Who released Not Like Us?")
+                        .param("topK", "1")
+                        .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        started.getAsyncResult(5_000);
+        String body = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        assertTrue(body.startsWith("event:sources\ndata:{\"sources\":[{\"id\":\"feud-1\",\"source\":\"drake_feud\""));
+        assertTrue(body.contains("event:token\ndata:{\"text\":\"Kendrick \"}"));
+        assertTrue(body.indexOf("event:sources") < body.indexOf("event:token"));
+        assertEquals(4, body.split("\n\n").length);
+    }
+
+    @Test
+    void queryReturnsTheAnswerAndItsDocuments() throws Exception {
+        var response = postQuery(mockMvc).getResponse();
+
+        assertEquals(200, response.getStatus());
+        assertEquals("{\"answer\":\"Kendrick Lamar did\",\"documentIds\":[\"feud-1\"],\"cached\":false}",
+                response.getContentAsString());
+    }
+
+    @Test
+    void blankQuestionIsABadRequest() throws Exception {
+        mockMvc.perform(post("/rag/query").contentType(MediaType.APPLICATION_JSON).content("{}"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void slowAnswersTimeOut() throws Exception {
+        var slowModel = new StubChatModel("one two three", Duration.ofMillis(200));
+        var slowMvc = mockMvc(slowModel, new RequestLimiter.Settings(10, Duration.ofMillis(100)));
+        // Run the path once, so class loading does not use up the timeout before the model is called
+        assertEquals(200, postQuery(mockMvc).getResponse().getStatus());
+
+        assertEquals(504, postQuery(slowMvc).getResponse().getStatus());
+        // The cancel can reach the model after the 504 is written
+        long deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+        while (slowModel.streamsCancelled.sum() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, slowModel.streamsCancelled.sum());
+    }
+
+    @Test
+    void requestsOverTheLimitAreRejected() throws Exception {
+        var limited = mockMvc(new StubChatModel("one two three", Duration.ofMillis(200)),
+                new RequestLimiter.Settings(1, Duration.ofSeconds(5)));
+        MvcResult first = limited.perform(post("/rag/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {"question": "Who released Not Like Us?"}"""))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        limited.perform(get("/rag/stream").param("question", "Who released Not Like Us?"))
+                .andExpect(status().isTooManyRequests());
+        first.getAsyncResult(5_000);
+        limited.perform(asyncDispatch(first)).andExpect(status().isOk());
+    }
+}
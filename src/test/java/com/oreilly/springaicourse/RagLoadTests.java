@@ -0,0 +1,83 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.document.Document;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Thousands of concurrent queries against a model that takes seconds to
+// answer, through the same limiter and service path as /rag/query
+class RagLoadTests {
+
+    @Test
+    void thousandsOfSlowQueriesRunConcurrentlyOnAFewThreads(@TempDir Path dir) throws Exception {
+        int requests = 2_000;
+        // Three words, one per second
+        var chatModel = new StubChatModel("Kendrick Lamar did", Duration.ofSeconds(1));
+        try (var vectorStore = MappedVectorStore.builder(new StubEmbeddingModel()).directory(dir).build()) {
+            vectorStore.add(List.of(
+                    new Document("feud-1", "Kendrick Lamar released Not Like Us", Map.of("source", "drake_feud")),
+                    new Document("jobs-1", "Analytical thinking is the top core skill", Map.of("source", "wef_jobs_report"))));
+            var ragService = new RAGService(chatModel, vectorStore, MessageWindowChatMemory.builder().build());
+            var controller = new RagController(ragService, new RequestLimiter(RequestLimiter.Settings.defaults()));
+
+            var threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            int threadsBefore = threads.getThreadCount();
+            long start = System.nanoTime();
+
+            List<RagAnswer> answers = Flux.range(0, requests)
+                    // Distinct questions: identical ones would share a single model call
+                    .flatMap(i -> controller.query(new RagController.QueryRequest(
+                            "Who released Not Like Us? (" + i + ")", "user-" + i, 1, null, null)), requests)
+                    .collectList()
+                    .block(Duration.ofSeconds(60));
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            System.out.printf("%,d queries of ~3 s each in %,d ms; threads %d before, peak %d%n",
+                    requests, elapsed.toMillis(), threadsBefore, threads.getPeakThreadCount());
+            assertEquals(requests, answers.size());
+            assertTrue(answers.stream().allMatch(answer -> answer.answer().equals("Kendrick Lamar did")));
+            assertEquals(requests, chatModel.calls.sum());
+            // One request at a time would take 100 minutes
+            assertTrue(elapsed.compareTo(Duration.ofSeconds(20)) < 0, elapsed::toString);
+            // Waiting on the model holds no thread: far fewer than one per request
+            assertTrue(threads.getPeakThreadCount() - threadsBefore < 200,
+                    "peak threads " + threads.getPeakThreadCount());
+        }
+    }
+
+    @Test
+    void requestsOverTheLimitFailFast() {
+        var limiter = new RequestLimiter(new RequestLimiter.Settings(100, Duration.ofSeconds(10)));
+        var rejected = new AtomicInteger();
+        List<String> done = Flux.range(0, 150)
+                .flatMap(i -> {
+                    try {
+                        return limiter.limit(() -> Mono.delay(Duration.ofMillis(500)).thenReturn("ok"));
+                    } catch (RejectedExecutionException e) {
+                        rejected.incrementAndGet();
+                        return Mono.empty();
+                    }
+                }, 150)
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertEquals(100, done.size());
+        assertEquals(50, rejected.get());
+        assertEquals(50, limiter.rejected());
+        assertEquals(0, limiter.inFlight());
+    }
+}
@@ -0,0 +1,161 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RedisBulkLoaderTests {
+
+    @TempDir
+    Path dir;
+
+    private final StubEmbeddingModel embeddingModel = new StubEmbeddingModel();
+
+    // In-memory stand-in for Redis with RediSearch and RedisJSON
+    static class FakeRedis implements RedisBulkLoader.Client {
+        final Map<String, Map<String, Object>> keys = new ConcurrentHashMap<>();
+        final AtomicInteger roundTrips = new AtomicInteger();
+        final List<Integer> pipelineSizes = new ArrayList<>();
+        volatile boolean index;
+        // Keys present when the index was created
+        volatile int indexedOnCreate = -1;
+
+        @Override
+        public synchronized List<Object> jsonSet(Map<String, Map<String, Object>> documents) {
+            roundTrips.incrementAndGet();
+            pipelineSizes.add(documents.size());
+            keys.putAll(documents);
+            return documents.keySet().stream().<Object>map(key -> "OK").toList();
+        }
+
+        @Override
+        public long exists(List<String> keys) {
+            roundTrips.incrementAndGet();
+            return keys.stream().filter(this.keys::containsKey).count();
+        }
+
+        @Override
+        public boolean indexExists() {
+            return index;
+        }
+
+        @Override
+        public void createIndex() {
+            index = true;
+            indexedOnCreate = keys.size();
+        }
+    }
+
+    private static List<Document> chunks(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> new Document("chunk-" + i, "Chunk " + i + " of the jobs report",
+                        Map.of("source", "wef_jobs_report")))
+                .toList();
+    }
+
+    @Test
+    void writesArePipelinedInLargeBatches() {
+        var redis = new FakeRedis();
+        var loader = new RedisBulkLoader(redis, embeddingModel, "default:", new RedisBulkLoader.Settings(100, false));
+
+        for (int i = 0; i < 250; i += 10) {
+            loader.accept(chunks(i, i + 10));
+        }
+        // Two full pipelines went out as the batches arrived; the rest waits for flush
+        assertEquals(200, redis.keys.size());
+        loader.flush();
+        assertEquals(250, redis.keys.size());
+        assertEquals(List.of(100, 100, 50), redis.pipelineSizes);
+
+        Map<String, Object> stored = redis.keys.get("default:chunk-7");
+        assertEquals("Chunk 7 of the jobs report", stored.get("content"));
+        assertEquals("wef_jobs_report", stored.get("source"));
+        assertEquals(1536, ((float[]) stored.get("embedding")).length);
+
+        var stats = loader.finish();
+        System.out.println("Bulk load: " + stats);
+        assertEquals(250, stats.documents());
+        assertEquals(3, stats.roundTrips());
+        assertTrue(stats.docsPerSecond() > 0);
+        assertFalse(redis.index);
+    }
+
+    @Test
+    void missingIndexIsCreatedAfterTheLoad() {
+        var redis = new FakeRedis();
+        var loader = new RedisBulkLoader(redis, embeddingModel, "default:", RedisBulkLoader.Settings.defaults());
+        loader.accept(chunks(0, 300));
+        assertFalse(redis.index);
+
+        loader.finish();
+        assertTrue(redis.index);
+        assertEquals(300, redis.indexedOnCreate);
+        // A large batch is still sent in pipelines of the configured size
+        assertEquals(List.of(256, 44), redis.pipelineSizes);
+
+        // An index that already exists is left alone
+        redis.indexedOnCreate = -1;
+        var next = new RedisBulkLoader(redis, embeddingModel, "default:", RedisBulkLoader.Settings.defaults());
+        next.accept(chunks(300, 310));
+        next.finish();
+        assertEquals(-1, redis.indexedOnCreate);
+        assertEquals(310, redis.keys.size());
+    }
+
+    @Test
+    void ingestionFlushesTheLoaderBeforeRecordingTheManifest() throws IOException {
+        var redis = new FakeRedis();
+        var loader = new RedisBulkLoader(redis, embeddingModel, "default:", RedisBulkLoader.Settings.defaults());
+        try (var vectorStore = MappedVectorStore.builder(embeddingModel).directory(dir.resolve("store")).build();
+             var batcher = new EmbeddingBatcher(loader, EmbeddingBatcher.Settings.defaults())) {
+            var source = new IngestionSource("report", Map.of("source", "wef_jobs_report"),
+                    () -> IntStream.range(0, 4).mapToObj(i -> new Document(("Page " + i + ". ").repeat(300))).toList());
+            var result = new IncrementalIngestion(IngestionManifest.load(dir.resolve("manifest.json")), vectorStore,
+                    batcher, new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), "v1")
+                    .run(List.of(source));
+
+            assertTrue(result.chunksWritten() > 0);
+            assertEquals(result.chunksWritten(), redis.keys.size());
+        }
+    }
+
+    @Test
+    void sourcesWhoseChunksLeftRedisAreIngestedAgain() throws IOException {
+        var redis = new FakeRedis();
+        var loader = new RedisBulkLoader(redis, embeddingModel, "default:", RedisBulkLoader.Settings.defaults());
+        var source = new IngestionSource("report", Map.of("source", "wef_jobs_report"),
+                () -> IntStream.range(0, 40).mapToObj(i -> new Document(("Page " + i + ". ").repeat(300))).toList());
+        try (var vectorStore = MappedVectorStore.builder(embeddingModel).directory(dir.resolve("store")).build()) {
+            Supplier<IncrementalIngestion.Result> ingest = () -> new IncrementalIngestion(
+                    IngestionManifest.load(dir.resolve("manifest.json")), vectorStore, loader, null,
+                    loader::containsAll, new TokenTextSplitter(), IngestionPipeline.Settings.defaults(), "v1")
+                    .run(List.of(source));
+
+            assertEquals(List.of("report"), ingest.get().ingested());
+            int chunks = redis.keys.size();
+            assertTrue(chunks > 16);
+            int roundTrips = redis.roundTrips.get();
+            assertEquals(List.of("report"), ingest.get().unchanged());
+            // One EXISTS for the whole source
+            assertEquals(roundTrips + 1, redis.roundTrips.get());
+
+            // As after a FLUSHALL: the manifest alone no longer keeps the source out
+            redis.keys.clear();
+            assertEquals(List.of("report"), ingest.get().ingested());
+            assertEquals(chunks, redis.keys.size());
+        }
+    }
+}
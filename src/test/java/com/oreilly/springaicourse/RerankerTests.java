@@ -0,0 +1,137 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RerankerTests {
+
+    @TempDir
+    Path dir;
+
+    private static Document candidate(String id, String text, double score, String source) {
+        return Document.builder().id(id).text(text).score(score).metadata(Map.of("source", source)).build();
+    }
+
+    private static List<String> ids(List<Document> documents) {
+        return documents.stream().map(Document::getId).toList();
+    }
+
+    @Test
+    void questionTermsLiftChunksThatNameThem() {
+        var reranker = new Reranker(new Reranker.Settings(3, 0.5, 1.0, Map.of()));
+        var candidates = List.of(
+                candidate("vague", "The feud escalated over the summer with several diss tracks", 0.82, "drake_feud"),
+                candidate("exact", "Kendrick Lamar released Not Like Us in May 2024", 0.80, "drake_feud"),
+                candidate("other", "Spring Boot builds on the Spring Framework", 0.40, "spring_framework"));
+
+        var ranked = reranker.rerank("Who released Not Like Us?", candidates, 2);
+
+        assertEquals(List.of("exact", "vague"), ids(ranked));
+        // Scores are the re-ranked relevance, highest first
+        assertTrue(ranked.get(0).getScore() > ranked.get(1).getScore());
+        // Relevance alone keeps the store's order
+        var byScore = new Reranker(new Reranker.Settings(3, 0, 1.0, Map.of()))
+                .rerank("Who released Not Like Us?", candidates, 2);
+        assertEquals(List.of("vague", "exact"), ids(byScore));
+    }
+
+    @Test
+    void diversityPassesOverNearDuplicates() {
+        var reranker = new Reranker(Reranker.Settings.defaults());
+        String text = "Analytical thinking remains the top core skill for employers in 2025";
+        var candidates = List.of(
+                candidate("skills-1", text, 0.90, "wef_jobs_report"),
+                candidate("skills-2", text + " and beyond", 0.89, "wef_jobs_report"),
+                candidate("skills-3", "Employers say " + text, 0.88, "wef_jobs_report"),
+                candidate("ai", "AI and big data are the top growing skills", 0.70, "wef_jobs_report"));
+
+        assertEquals(List.of("skills-1", "ai"), ids(reranker.rerank("What is the top skill?", candidates, 2)));
+        // Without diversity the duplicates win
+        var relevanceOnly = new Reranker(new Reranker.Settings(3, 0.3, 1.0, Map.of()));
+        assertEquals(List.of("skills-1", "skills-2"), ids(relevanceOnly.rerank("What is the top skill?", candidates, 2)));
+    }
+
+    @Test
+    void sourcesCanBeBoosted() {
+        var boosts = Reranker.sourceBoosts(" wef_jobs_report = 0.5, drake_feud=0.1 ");
+        assertEquals(Map.of("wef_jobs_report", 0.5, "drake_feud", 0.1), boosts);
+        assertTrue(Reranker.sourceBoosts("").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> Reranker.sourceBoosts("wef_jobs_report"));
+
+        var reranker = new Reranker(new Reranker.Settings(3, 0.3, 1.0, boosts));
+        var candidates = List.of(
+                candidate("spring", "Spring Framework 6.2 is the latest version", 0.9, "spring_framework"),
+                candidate("jobs", "Jobs in technology grow fastest", 0.8, "wef_jobs_report"));
+        assertEquals(List.of("jobs", "spring"), ids(reranker.rerank("Which jobs grow?", candidates, 2)));
+    }
+
+    @Test
+    void termsAreLexicalIndexTerms() {
+        int[] expected = List.of("spring", "framework", "6", "2", "größe").stream()
+                .mapToInt(String::hashCode).distinct().sorted().toArray();
+        assertArrayEquals(expected, Reranker.terms("The Spring framework, 6.2: a SPRING Größe!"));
+        assertEquals(0, Reranker.terms("a the of").length);
+        assertEquals(1.0, Reranker.similarity(Reranker.sketch("Spring Boot"), Reranker.sketch("boot, spring")), 1e-9);
+        assertEquals(2.0 / 3, Reranker.similarity(Reranker.sketch("Spring Boot"), Reranker.sketch("Spring Framework, Boot!")),
+                1e-9);
+
+        // Longer texts are compared by sketch: 400 and 600 distinct terms sharing 200
+        String a = IntStream.range(0, 400).mapToObj(i -> "term" + i).collect(Collectors.joining(" "));
+        String b = IntStream.range(200, 800).mapToObj(i -> "term" + i).collect(Collectors.joining(" "));
+        assertEquals(Reranker.SKETCH_SIZE, Reranker.sketch(a).length);
+        assertEquals(0.25, Reranker.similarity(Reranker.sketch(a), Reranker.sketch(b)), 0.1);
+    }
+
+    @Test
+    void retrievalFetchesMoreCandidatesAndKeepsTopK() throws IOException {
+        var embeddingModel = new StubEmbeddingModel();
+        try (var store = MappedVectorStore.builder(embeddingModel).directory(dir).build()) {
+            store.add(IntStream.range(0, 20)
+                    .mapToObj(i -> new Document("filler-" + i, "Drake and the feud, part " + i, Map.of("source", "drake_feud")))
+                    .toList());
+            store.add(List.of(new Document("answer", "Kendrick Lamar released Not Like Us", Map.of("source", "drake_feud"))));
+            var advisor = new RetrievalAdvisor(store, null, new Reranker(Reranker.Settings.defaults()), null);
+
+            var documents = advisor.retrieve("Who released Not Like Us?", Map.of(RetrievalAdvisor.TOP_K, 3));
+
+            assertEquals(3, documents.size());
+            assertEquals("answer", documents.get(0).getId());
+        }
+    }
+
+    @Test
+    void rerankingIsCheap() {
+        var reranker = new Reranker(Reranker.Settings.defaults());
+        // 24 candidates of about 600 words each, for top-k 8
+        var random = new Random(42);
+        List<Document> candidates = IntStream.range(0, 24)
+                .mapToObj(i -> candidate("chunk-" + i, IntStream.range(0, 600)
+                        .mapToObj(w -> "word" + random.nextInt(3000))
+                        .collect(Collectors.joining(" ", "Skills grow in importance by 2030. ", ".")),
+                        1.0 - i / 100.0, "wef_jobs_report"))
+                .toList();
+        String question = "Which skills grow in importance by 2030?";
+        for (int i = 0; i < 500; i++) {
+            reranker.rerank(question, candidates, 8);
+        }
+        // Timing is informational here; AdvisorBenchmark.rerank measures it properly
+        int runs = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            assertEquals(8, reranker.rerank(question, candidates, 8).size());
+        }
+        System.out.printf("Re-ranking 24 candidates of 600 words: %.1f us%n",
+                (System.nanoTime() - start) / 1000.0 / runs);
+    }
+}
@@ -0,0 +1,247 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.retry.TransientAiException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Two stub providers with injected latency distributions stand in for OpenAI and Anthropic
+class RoutingChatModelTests {
+
+    private static final Prompt PROMPT = new Prompt("Who released Not Like Us?");
+
+    private static final RoutingChatModel.Settings SETTINGS = new RoutingChatModel.Settings(
+            50, 5, 0.2, 0.5, 20, 0.9, Duration.ofMillis(30), 0.2);
+
+    private RoutingChatModel router;
+
+    @AfterEach
+    void tearDown() {
+        if (router != null) {
+            router.close();
+        }
+    }
+
+    private RoutingChatModel router(ChatModel openAi, ChatModel anthropic) {
+        Map<String, ChatModel> models = new LinkedHashMap<>();
+        models.put("openai", openAi);
+        models.put("anthropic", anthropic);
+        router = new RoutingChatModel(models, SETTINGS);
+        return router;
+    }
+
+    // Mostly fast, with a slow tail
+    private static Supplier<Duration> latency(long fastMillis, double slowShare, long slowMillis, long seed) {
+        var random = new Random(seed);
+        return () -> Duration.ofMillis(random.nextDouble() < slowShare ? slowMillis : fastMillis);
+    }
+
+    private static String text(ChatResponse response) {
+        return response.getResult().getOutput().getText();
+    }
+
+    @Test
+    void mostRequestsGoToTheFasterProvider() {
+        var openAi = new StubChatModel("openai", Duration.ofMillis(40));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(5));
+        var router = router(openAi, anthropic);
+
+        for (int i = 0; i < 100; i++) {
+            router.call(PROMPT);
+        }
+        System.out.println("Routes: " + router.stats());
+        // Five each to measure them, then the faster one but for exploration
+        assertTrue(anthropic.calls.sum() >= 85, "anthropic calls: " + anthropic.calls.sum());
+        assertTrue(openAi.calls.sum() >= 5);
+        assertEquals(0, router.failovers());
+    }
+
+    @Test
+    void requestsInFlightSpreadTheLoad() throws Exception {
+        var openAi = new StubChatModel("openai", Duration.ofMillis(20));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(20));
+        var router = router(openAi, anthropic);
+        for (int i = 0; i < 10; i++) {
+            router.call(PROMPT);
+        }
+
+        // With equal latency, in-flight requests decide
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ChatResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 80; i++) {
+                responses.add(callers.submit(() -> router.call(PROMPT)));
+            }
+            for (var response : responses) {
+                response.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        System.out.println("Routes: " + router.stats());
+        assertTrue(openAi.calls.sum() >= 20, "openai calls: " + openAi.calls.sum());
+        assertTrue(anthropic.calls.sum() >= 20, "anthropic calls: " + anthropic.calls.sum());
+    }
+
+    @Test
+    void errorsFailOverAndSteerTrafficAway() {
+        var openAi = new StubChatModel("openai", Duration.ofMillis(2));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(10));
+        var router = router(openAi, anthropic);
+        for (int i = 0; i < 20; i++) {
+            router.call(PROMPT);
+        }
+
+        openAi.failing = true;
+        long openAiCalls = openAi.calls.sum();
+        for (int i = 0; i < 40; i++) {
+            // Every request still gets an answer
+            assertEquals("anthropic", text(router.call(PROMPT)));
+        }
+        System.out.println("Routes: " + router.stats());
+        // Once its error rate is high, openai only sees the occasional probe
+        assertTrue(openAi.calls.sum() - openAiCalls <= 8, "openai calls: " + (openAi.calls.sum() - openAiCalls));
+        assertTrue(router.failovers() >= 3);
+
+        // Both failing is the caller's error
+        anthropic.failing = true;
+        assertThrows(TransientAiException.class, () -> router.call(PROMPT));
+
+        // Recovery shows on the probes
+        openAi.failing = false;
+        anthropic.failing = false;
+        for (int i = 0; i < 200; i++) {
+            router.call(PROMPT);
+        }
+        var openAiStats = router.stats().get(0);
+        assertTrue(openAiStats.errorRate() < SETTINGS.maxErrorRate(), "openai: " + openAiStats);
+    }
+
+    @Test
+    void providerFailingFromTheStartIsSteeredAway() {
+        var openAi = new StubChatModel("openai", Duration.ofMillis(1));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(1));
+        openAi.failing = true;
+        var router = router(openAi, anthropic);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("anthropic", text(router.call(PROMPT)));
+        }
+        System.out.println("Routes: " + router.stats());
+        // openai never answers, so never has a latency sample; its failures
+        // still measure it, after which it only sees the probes
+        assertTrue(openAi.calls.sum() <= SETTINGS.minSamples() + 100 / SETTINGS.exploreEvery() + 1,
+                "openai calls: " + openAi.calls.sum());
+    }
+
+    @Test
+    void hedgingCutsTheTail() {
+        // openai is usually faster, but one call in twenty takes 400 ms
+        var openAi = new StubChatModel("openai", latency(5, 0.05, 400, 42));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(15));
+        var router = router(openAi, anthropic);
+
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            long start = System.nanoTime();
+            router.call(PROMPT);
+            latencies.add((System.nanoTime() - start) / 1_000_000);
+        }
+        latencies.sort(null);
+        long slow = latencies.stream().filter(millis -> millis >= 300).count();
+        System.out.println("Routes: " + router.stats() + ", hedges: " + router.hedges()
+                + ", p99 " + latencies.get(197) + " ms, " + slow + " calls over 300 ms");
+        // About ten calls draw the slow tail; hedged, they finish on anthropic
+        assertTrue(slow <= 2, slow + " slow calls");
+        assertTrue(router.hedges() > 0);
+        assertTrue(router.hedges() <= SETTINGS.hedgeBudget() * 200 + 1);
+    }
+
+    @Test
+    void cancelledCallsAreNotLatencySamples() {
+        // openai answers its first five calls in 10 ms, then hangs
+        var openAiCalls = new AtomicInteger();
+        var openAi = new StubChatModel("openai",
+                () -> Duration.ofMillis(openAiCalls.incrementAndGet() <= 5 ? 10 : 500));
+        var anthropic = new StubChatModel("anthropic", Duration.ofMillis(50));
+        var router = router(openAi, anthropic);
+        for (int i = 0; i < 10; i++) {
+            router.call(PROMPT);
+        }
+
+        // Hedged after 30 ms, answered by anthropic; the openai call is cancelled
+        assertEquals("anthropic", text(router.call(PROMPT)));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (router.stats().get(0).inFlight() > 0 && System.nanoTime() < deadline) {
+            StubChatModel.sleep(Duration.ofMillis(1));
+        }
+        System.out.println("Routes: " + router.stats());
+        assertEquals(1, router.hedges());
+        // Its window holds only the answers it gave
+        assertTrue(router.stats().get(0).p99().toMillis() < 30, "openai: " + router.stats().get(0));
+    }
+
+    @Test
+    void streamsAreHedgedOnTimeToFirstChunk() {
+        // As in hedgingCutsTheTail, but each word of a streamed reply comes after the delay
+        var openAi = new StubChatModel("openai answer", latency(5, 0.05, 400, 42));
+        var anthropic = new StubChatModel("anthropic answer", Duration.ofMillis(15));
+        var router = router(openAi, anthropic);
+
+        List<Long> firstChunks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            long start = System.nanoTime();
+            long[] first = new long[1];
+            String answer = router.stream(PROMPT)
+                    .doOnNext(response -> {
+                        if (first[0] == 0) {
+                            first[0] = System.nanoTime();
+                        }
+                    })
+                    .map(RoutingChatModelTests::text).collectList().map(words -> String.join("", words)).block();
+            // One provider's whole reply, never a mix
+            assertTrue(answer.equals("openai answer") || answer.equals("anthropic answer"), answer);
+            firstChunks.add((first[0] - start) / 1_000_000);
+        }
+        long slow = firstChunks.stream().filter(millis -> millis >= 300).count();
+        System.out.println("Routes: " + router.stats() + ", hedges: " + router.hedges()
+                + ", " + slow + " first chunks over 300 ms");
+        assertTrue(slow <= 2, slow + " slow first chunks");
+        assertTrue(router.hedges() > 0);
+        assertTrue(router.hedges() <= SETTINGS.hedgeBudget() * 200 + 1);
+        assertTrue(openAi.streamsCancelled.sum() > 0);
+        assertEquals(0, router.stats().get(0).inFlight());
+        assertEquals(0, router.stats().get(1).inFlight());
+    }
+
+    @Test
+    void streamsFailOverBeforeTheFirstChunk() {
+        var openAi = new StubChatModel("openai answer", Duration.ofMillis(1));
+        var anthropic = new StubChatModel("anthropic answer", Duration.ofMillis(1));
+        var router = router(openAi, anthropic);
+        openAi.failing = true;
+
+        String answer = router.stream(PROMPT).map(RoutingChatModelTests::text).collectList()
+                .map(words -> String.join("", words)).block();
+
+        assertEquals("anthropic answer", answer);
+        assertEquals(1, router.failovers());
+        assertEquals(0, router.stats().get(0).inFlight());
+    }
+}
@@ -0,0 +1,113 @@
+package com.oreilly.springaicourse;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SemanticResponseCacheTests {
+
+    // Clock the tests can move forward
+    private static class ManualClock extends Clock {
+        Instant now = Instant.parse("2025-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+    private final SemanticResponseCache cache = new SemanticResponseCache(new StubEmbeddingModel(),
+            new SemanticResponseCache.Settings(0.9, Duration.ofMinutes(10), 100), clock);
+
+    private static SemanticResponseCache.Answer answer(String text, String source) {
+        return new SemanticResponseCache.Answer(text, List.of(source + "-1"), Set.of(source), 1200, 350);
+    }
+
+    @Test
+    void nearDuplicateQuestionsHit() {
+        var options = QueryOptions.defaults();
+        cache.put(cache.embed("What is the latest version of the Spring Framework?"), options,
+                answer("6.2", "spring_framework"));
+
+        var hit = cache.get(cache.embed("what is the latest version of the spring framework"), options);
+        assertNotNull(hit);
+        assertEquals("6.2", hit.text());
+        assertEquals(List.of("spring_framework-1"), hit.documentIds());
+        assertNull(cache.get(cache.embed("Who released Not Like Us?"), options));
+    }
+
+    @Test
+    void differentRetrievalOptionsMiss() {
+        var options = QueryOptions.defaults();
+        float[] question = cache.embed("What is the latest version of the Spring Framework?");
+        cache.put(question, options, answer("6.2", "spring_framework"));
+
+        assertNull(cache.get(question, options.withTopK(1)));
+        assertNull(cache.get(question, options.withFilterExpression("source == 'drake_feud'")));
+        // The conversation does not change what is retrieved
+        assertNotNull(cache.get(question, options.withConversationId("alice")));
+    }
+
+    @Test
+    void entriesExpire() {
+        float[] question = cache.embed("Who released Not Like Us?");
+        cache.put(question, QueryOptions.defaults(), answer("Kendrick Lamar", "drake_feud"));
+
+        clock.now = clock.now.plus(Duration.ofMinutes(9));
+        assertNotNull(cache.get(question, QueryOptions.defaults()));
+        clock.now = clock.now.plus(Duration.ofMinutes(2));
+        assertNull(cache.get(question, QueryOptions.defaults()));
+    }
+
+    @Test
+    void reingestedSourcesAreInvalidated() {
+        float[] spring = cache.embed("What is the latest version of the Spring Framework?");
+        float[] feud = cache.embed("Who released Not Like Us?");
+        cache.put(spring, QueryOptions.defaults(), answer("6.2", "spring_framework"));
+        cache.put(feud, QueryOptions.defaults(), answer("Kendrick Lamar", "drake_feud"));
+
+        cache.invalidate(List.of("spring_framework"));
+        assertNull(cache.get(spring, QueryOptions.defaults()));
+        assertNotNull(cache.get(feud, QueryOptions.defaults()));
+    }
+
+    @Test
+    void metricsReportHitRateAndSavings() {
+        var registry = new SimpleMeterRegistry();
+        cache.bindTo(registry);
+        float[] question = cache.embed("Who released Not Like Us?");
+        cache.get(question, QueryOptions.defaults());
+        cache.put(question, QueryOptions.defaults(), answer("Kendrick Lamar", "drake_feud"));
+        cache.get(question, QueryOptions.defaults());
+        cache.get(question, QueryOptions.defaults());
+        cache.get(question, QueryOptions.defaults());
+
+        System.out.println(cache.stats());
+        assertEquals(3, registry.get("rag.cache.requests").tag("result", "hit").functionCounter().count());
+        assertEquals(1, registry.get("rag.cache.requests").tag("result", "miss").functionCounter().count());
+        assertEquals(0.75, registry.get("rag.cache.hit.rate").gauge().value(), 1e-9);
+        assertEquals(3.6, registry.get("rag.cache.saved.latency").functionCounter().count(), 1e-9);
+        assertEquals(1050, registry.get("rag.cache.saved.tokens").functionCounter().count());
+        assertEquals(1, registry.get("rag.cache.entries").gauge().value());
+    }
+}
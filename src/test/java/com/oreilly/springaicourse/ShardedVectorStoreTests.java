@@ -0,0 +1,154 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.SearchRequest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedVectorStoreTests {
+
+    @TempDir
+    Path dir;
+
+    private final StubEmbeddingModel model = new StubEmbeddingModel();
+
+    private static final String[] WORDS = ("skills jobs growth technology automation workforce spring framework "
+            + "beans kendrick drake feud album diss reskilling productivity labour market report").split(" ");
+
+    private static List<Document> corpus(int size) {
+        Random random = new Random(7);
+        List<String> sources = List.of("drake_feud", "spring_framework", "wef_jobs_report");
+        return IntStream.range(0, size)
+                .mapToObj(i -> new Document("doc-" + i, sentence(random, 12), Map.of("source", sources.get(i % 3))))
+                .toList();
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static List<Double> scores(List<Document> documents) {
+        return documents.stream().map(Document::getScore).toList();
+    }
+
+    @Test
+    void mergedResultsMatchASingleStore() throws IOException {
+        var documents = corpus(2000);
+        try (var single = MappedVectorStore.builder(model).directory(dir.resolve("single")).build();
+             var sharded = ShardedVectorStore.builder(model).directory(dir.resolve("sharded")).shards(4).build()) {
+            single.add(documents);
+            sharded.add(documents);
+            System.out.println("Shard sizes: " + sharded.shardSizes());
+            assertEquals(2000, sharded.size());
+            assertTrue(sharded.shardSizes().stream().allMatch(size -> size > 300));
+
+            Random random = new Random(11);
+            for (int i = 0; i < 20; i++) {
+                var request = SearchRequest.builder().query(sentence(random, 4)).topK(8).build();
+                List<Document> merged = sharded.similaritySearch(request);
+                assertEquals(scores(single.similaritySearch(request)), scores(merged));
+                // The merged list is in score order
+                for (int j = 1; j < merged.size(); j++) {
+                    assertTrue(merged.get(j - 1).getScore() >= merged.get(j).getScore());
+                }
+            }
+
+            // One embedding call per query, not one per shard
+            long calls = model.calls.sum();
+            sharded.similaritySearch(SearchRequest.builder().query("drake feud").topK(4).build());
+            assertEquals(calls + 1, model.calls.sum());
+
+            var filtered = sharded.similaritySearch(SearchRequest.builder().query("spring beans").topK(10)
+                    .filterExpression("source == 'spring_framework'").build());
+            assertEquals(10, filtered.size());
+            assertTrue(filtered.stream().allMatch(document -> "spring_framework".equals(document.getMetadata().get("source"))));
+        }
+    }
+
+    @Test
+    void deletesReachTheRightShardsAndSurviveReopening() throws IOException {
+        try (var sharded = ShardedVectorStore.builder(model).directory(dir).shards(3).build()) {
+            sharded.add(corpus(300));
+            sharded.delete(IntStream.range(0, 100).mapToObj(i -> "doc-" + i).toList());
+            sharded.delete("source == 'drake_feud'");
+            // doc-100 onwards: 200 documents, a third of them from the feud
+            assertEquals(134, sharded.size());
+            assertTrue(sharded.containsAll(List.of("doc-100", "doc-299")));
+            assertFalse(sharded.containsAll(List.of("doc-100", "doc-99")));
+        }
+        try (var reopened = ShardedVectorStore.builder(model).directory(dir).shards(3).build()) {
+            assertEquals(134, reopened.size());
+            assertTrue(reopened.similaritySearch(SearchRequest.builder().query("drake").topK(5)
+                    .filterExpression("source == 'drake_feud'").build()).isEmpty());
+        }
+        assertThrows(IllegalStateException.class,
+                () -> ShardedVectorStore.builder(model).directory(dir).shards(4).build());
+    }
+
+    @Test
+    void singleStoreDirectoryIsNotOpenedAsShards() throws IOException {
+        try (var single = MappedVectorStore.builder(model).directory(dir).build()) {
+            single.add(corpus(10));
+        }
+        var error = assertThrows(IllegalStateException.class,
+                () -> ShardedVectorStore.builder(model).directory(dir).shards(2).build());
+        assertTrue(error.getMessage().contains("single store"));
+    }
+
+    @Test
+    void partitionKeyKeepsASourceOnOneShard() throws IOException {
+        try (var sharded = ShardedVectorStore.builder(model).directory(dir).shards(8).partitionKey("source").build()) {
+            sharded.add(corpus(300));
+            List<Integer> sizes = sharded.shardSizes();
+            System.out.println("Shard sizes by source: " + sizes);
+            assertEquals(3, sizes.stream().filter(size -> size > 0).count());
+            assertTrue(sizes.stream().allMatch(size -> size == 0 || size == 100));
+
+            // A chunk that changes source moves shards instead of being duplicated
+            sharded.add(List.of(new Document("doc-0", "moved to the jobs report", Map.of("source", "wef_jobs_report"))));
+            assertEquals(300, sharded.size());
+            assertTrue(sharded.shardSizes().containsAll(List.of(99, 101)));
+
+            sharded.delete(List.of("doc-0", "doc-1"));
+            assertEquals(298, sharded.size());
+            assertTrue(sharded.containsAll(List.of("doc-2", "doc-150")));
+            assertFalse(sharded.containsAll(List.of("doc-2", "doc-1")));
+        }
+    }
+
+    @Test
+    void droppingThePartitionKeyMovesChunksWithoutDuplicates() throws IOException {
+        try (var bySource = ShardedVectorStore.builder(model).directory(dir).shards(4).partitionKey("source").build()) {
+            bySource.add(corpus(300));
+        }
+
+        try (var byId = ShardedVectorStore.builder(model).directory(dir).shards(4).build()) {
+            // Deletes find chunks still where the source put them
+            byId.delete(List.of("doc-0"));
+            assertEquals(299, byId.size());
+
+            // Re-ingesting routes by id and leaves no copy on the source's shard
+            byId.add(corpus(300));
+            System.out.println("Shard sizes by id after re-ingesting: " + byId.shardSizes());
+            assertEquals(300, byId.size());
+            var ids = byId.similaritySearch(SearchRequest.builder().query("skills jobs").topK(300).build())
+                    .stream().map(Document::getId).toList();
+            assertEquals(300, ids.size());
+            assertEquals(300, ids.stream().distinct().count());
+            assertTrue(byId.shardSizes().stream().allMatch(size -> size > 40));
+        }
+    }
+}
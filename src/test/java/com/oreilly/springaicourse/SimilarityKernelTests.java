@@ -0,0 +1,53 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimilarityKernelTests {
+
+    private final Random random = new Random(11);
+
+    private float[] randomVector(int length) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+
+    @Test
+    void vectorKernelIsSelectedWhenTheModuleIsEnabled() {
+        // build.gradle.kts adds jdk.incubator.vector to test runs
+        assertTrue(SimilarityKernel.vectorApiAvailable());
+        assertTrue(SimilarityKernel.best().name().startsWith("vector"));
+        assertEquals("scalar", SimilarityKernel.named("scalar").name());
+        assertThrows(IllegalArgumentException.class, () -> SimilarityKernel.named("gpu"));
+    }
+
+    @Test
+    void vectorAndScalarKernelsAgree() {
+        var scalar = SimilarityKernel.scalar();
+        var vector = SimilarityKernel.named("vector");
+        // Lengths around the lane count exercise the scalar tail
+        for (int length : new int[]{1, 3, 7, 8, 15, 16, 17, 31, 33, 100, 1536}) {
+            float[] a = randomVector(length);
+            float[] b = randomVector(length);
+            assertEquals(scalar.dot(a, b), vector.dot(a, b), 1e-4f * length, "length " + length);
+        }
+
+        // A vector in place in a little-endian buffer, as in the mapped vector file
+        float[] query = randomVector(1536);
+        float[] stored = randomVector(1536);
+        ByteBuffer block = ByteBuffer.allocateDirect(3 * 1536 * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        block.asFloatBuffer().put(1536, stored);
+        float expected = scalar.dot(query, stored);
+        assertEquals(expected, scalar.dot(query, block, 1536 * Float.BYTES), 0.1f);
+        assertEquals(expected, vector.dot(query, block, 1536 * Float.BYTES), 0.1f);
+        assertEquals(0f, vector.cosine(query, vector.norm(query), new float[1536], 0f));
+    }
+}
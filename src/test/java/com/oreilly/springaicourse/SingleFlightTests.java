@@ -0,0 +1,116 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTests {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+    @Test
+    void concurrentCallersShareOneExecution() throws Exception {
+        var executions = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SingleFlight.Outcome<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> flights.call("question", () -> {
+                    executions.incrementAndGet();
+                    await(release);
+                    return "answer";
+                })));
+            }
+            // Let every caller join before the call finishes
+            while (flights.executions() + flights.sharedCalls() < 8) {
+                Thread.onSpinWait();
+            }
+            release.countDown();
+
+            int shared = 0;
+            for (var result : results) {
+                assertEquals("answer", result.get(5, TimeUnit.SECONDS).value());
+                shared += result.get().shared() ? 1 : 0;
+            }
+            assertEquals(1, executions.get());
+            assertEquals(7, shared);
+            assertEquals(0, flights.inFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Not a cache: the next call runs again
+        flights.call("question", () -> {
+            executions.incrementAndGet();
+            return "again";
+        });
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    void failuresReachEveryCallerAndAreNotRemembered() {
+        var executions = new AtomicInteger();
+        Mono<String> failing = Mono.delay(Duration.ofMillis(100))
+                .then(Mono.error(new IllegalStateException("model unavailable")));
+        var first = flights.execute("question", () -> {
+            executions.incrementAndGet();
+            return failing;
+        });
+        var second = flights.execute("question", () -> {
+            executions.incrementAndGet();
+            return failing;
+        });
+
+        var errors = Mono.zip(first.onErrorResume(e -> Mono.just(new SingleFlight.Outcome<>(e.getMessage(), false))),
+                second.onErrorResume(e -> Mono.just(new SingleFlight.Outcome<>(e.getMessage(), false)))).block();
+        assertEquals("model unavailable", errors.getT1().value());
+        assertEquals("model unavailable", errors.getT2().value());
+        assertEquals(1, executions.get());
+
+        assertEquals("recovered", flights.execute("question", () -> Mono.just("recovered")).block().value());
+    }
+
+    @Test
+    void theCallIsCancelledOnlyWhenEveryCallerHasGone() throws Exception {
+        var cancelled = new AtomicInteger();
+        // Answers only when released, so a slow machine cannot answer in time
+        Sinks.One<String> answer = Sinks.one();
+        Mono<String> slow = answer.asMono().doOnCancel(cancelled::incrementAndGet);
+
+        // One caller times out, the other still gets the answer
+        var patient = flights.execute("question", () -> slow).toFuture();
+        assertThrows(RuntimeException.class, () -> flights.execute("question", () -> slow)
+                .timeout(Duration.ofMillis(50)).block());
+        answer.tryEmitValue("answer");
+        assertEquals("answer", patient.get(5, TimeUnit.SECONDS).value());
+        assertEquals(0, cancelled.get());
+
+        // When the only caller times out, the call is cancelled and forgotten
+        Mono<String> unanswered = Mono.<String>never().doOnCancel(cancelled::incrementAndGet);
+        assertThrows(RuntimeException.class, () -> flights.execute("question", () -> unanswered)
+                .timeout(Duration.ofMillis(50)).block());
+        assertEquals(1, cancelled.get());
+        assertEquals(0, flights.inFlight());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
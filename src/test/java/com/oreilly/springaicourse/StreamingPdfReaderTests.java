@@ -0,0 +1,108 @@
+package com.oreilly.springaicourse;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.reader.pdf.PagePdfDocumentReader;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingPdfReaderTests {
+
+    private static final Resource PDF = new ClassPathResource("pdfs/WEF_Future_of_Jobs_Report_2025.pdf");
+
+    private static List<Document> expected;
+
+    @BeforeAll
+    static void readWithPagePdfDocumentReader() {
+        long start = System.nanoTime();
+        expected = new PagePdfDocumentReader(PDF).get();
+        System.out.printf("PagePdfDocumentReader: %d pages in %d ms%n",
+                expected.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void assertSamePages(List<Document> expected, List<Document> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getText(), actual.get(i).getText(), "page " + i);
+            assertEquals(expected.get(i).getMetadata(), actual.get(i).getMetadata(), "page " + i);
+        }
+    }
+
+    @Test
+    void sequentialReadMatchesPagePdfDocumentReader() {
+        long start = System.nanoTime();
+        List<Document> pages = new StreamingPdfReader(PDF).get();
+        System.out.printf("Sequential: %d pages in %d ms%n", pages.size(), (System.nanoTime() - start) / 1_000_000);
+        assertSamePages(expected, pages);
+    }
+
+    @Test
+    void parallelReadReturnsPagesInOrder() {
+        long start = System.nanoTime();
+        List<Document> pages = new StreamingPdfReader(PDF, StreamingPdfReader.Settings.defaults().parallel(4, 8)).get();
+        System.out.printf("Parallel: %d pages in %d ms%n", pages.size(), (System.nanoTime() - start) / 1_000_000);
+        assertSamePages(expected, pages);
+    }
+
+    @Test
+    void pageRangeKeepsAbsolutePageNumbers() {
+        var settings = StreamingPdfReader.Settings.defaults().pages(10, 19);
+        List<Document> expectedRange = expected.stream()
+                .filter(page -> {
+                    int number = (int) page.getMetadata().get(PagePdfDocumentReader.METADATA_START_PAGE_NUMBER);
+                    return number >= 10 && number <= 19;
+                })
+                .toList();
+
+        assertSamePages(expectedRange, new StreamingPdfReader(PDF, settings).get());
+        assertSamePages(expectedRange, new StreamingPdfReader(PDF, settings.parallel(3, 3)).get());
+    }
+
+    @Test
+    void pagesAreExtractedOnlyAsFarAsTheWindowAhead() throws Exception {
+        var reader = new StreamingPdfReader(PDF, StreamingPdfReader.Settings.defaults().parallel(2, 4));
+        Iterator<Document> pages = reader.iterator();
+        assertEquals(1, pages.next().getMetadata().get(PagePdfDocumentReader.METADATA_START_PAGE_NUMBER));
+        Thread.sleep(500);
+
+        // The first page was taken, so workers may be up to four pages past it
+        assertTrue(reader.pagesExtracted.sum() <= 5, "extracted " + reader.pagesExtracted.sum());
+        ((Closeable) pages).close();
+        assertFalse(pages.hasNext());
+
+        var sequential = new StreamingPdfReader(PDF);
+        Iterator<Document> first = sequential.iterator();
+        first.next();
+        assertEquals(1, sequential.pagesExtracted.sum());
+        ((Closeable) first).close();
+    }
+
+    @Test
+    void fluxCanBeCancelled() {
+        var reader = new StreamingPdfReader(PDF, StreamingPdfReader.Settings.defaults().parallel(2, 4));
+        List<Document> firstThree = reader.flux().take(3).collectList().block();
+
+        assertEquals(3, firstThree.size());
+        assertTrue(reader.pagesExtracted.sum() < expected.size());
+    }
+
+    @Test
+    void resourcesThatAreNotFilesAreCopiedFirst() throws Exception {
+        var inMemory = new ByteArrayResource(PDF.getContentAsByteArray()) {
+            @Override
+            public String getFilename() {
+                return PDF.getFilename();
+            }
+        };
+        List<Document> pages = new StreamingPdfReader(inMemory, StreamingPdfReader.Settings.defaults().pages(1, 5)).get();
+        assertSamePages(expected.subList(0, pages.size()), pages);
+    }
+}
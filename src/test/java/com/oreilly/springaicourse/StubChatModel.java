@@ -0,0 +1,84 @@
+package com.oreilly.springaicourse;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.retry.TransientAiException;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Offline ChatModel for tests and benchmarks: answers every prompt with a
+// fixed reply after an optional delay, and records what it was sent. A
+// streamed reply comes one word at a time, each after the delay. The delay
+// can be drawn from a distribution, and the model made to fail.
+public class StubChatModel implements ChatModel {
+    private final String reply;
+    private final Supplier<Duration> latency;
+
+    public final LongAdder calls = new LongAdder();
+    public final AtomicReference<Prompt> lastPrompt = new AtomicReference<>();
+    public final LongAdder streamsCancelled = new LongAdder();
+    // While set, calls and streams fail after the delay, as on a 503
+    public volatile boolean failing;
+
+    public StubChatModel() {
+        this("Stub answer", Duration.ZERO);
+    }
+
+    public StubChatModel(String reply, Duration latency) {
+        this(reply, () -> latency);
+    }
+
+    public StubChatModel(String reply, Supplier<Duration> latency) {
+        this.reply = reply;
+        this.latency = latency;
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        calls.increment();
+        lastPrompt.set(prompt);
+        sleep(latency.get());
+        if (failing) {
+            throw new TransientAiException("503 - Service Unavailable");
+        }
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(reply))));
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        calls.increment();
+        lastPrompt.set(prompt);
+        Duration delay = latency.get();
+        if (failing) {
+            return Flux.<ChatResponse>error(new TransientAiException("503 - Service Unavailable"))
+                    .delaySubscription(delay);
+        }
+        Flux<String> words = Flux.fromArray(reply.split("(?<= )"));
+        if (!delay.isZero()) {
+            words = words.delayElements(delay);
+        }
+        return words
+                .map(word -> new ChatResponse(List.of(new Generation(new AssistantMessage(word)))))
+                .doOnCancel(streamsCancelled::increment);
+    }
+
+    static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.oreilly.springaicourse;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import org.springframework.ai.retry.NonTransientAiException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Offline EmbeddingModel with configurable latency. Vectors use the hashing
+// trick over lowercase words, so texts sharing words are similar.
+class StubEmbeddingModel implements EmbeddingModel {
+    private final int dimensions;
+    private final Duration fixedLatency;
+    private final Duration latencyPerInput;
+    private final int maxConcurrentCalls;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    final LongAdder calls = new LongAdder();
+    final LongAdder inputs = new LongAdder();
+    final AtomicInteger largestRequest = new AtomicInteger();
+
+    StubEmbeddingModel() {
+        this(1536, Duration.ZERO, Duration.ZERO, Integer.MAX_VALUE);
+    }
+
+    // Calls beyond maxConcurrentCalls fail the way OpenAI reports a 429
+    StubEmbeddingModel(int dimensions, Duration fixedLatency, Duration latencyPerInput, int maxConcurrentCalls) {
+        this.dimensions = dimensions;
+        this.fixedLatency = fixedLatency;
+        this.latencyPerInput = latencyPerInput;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        List<String> texts = request.getInstructions();
+        try {
+            if (inFlight.incrementAndGet() > maxConcurrentCalls) {
+                throw new NonTransientAiException("429 - Rate limit reached for requests");
+            }
+            calls.increment();
+            inputs.add(texts.size());
+            largestRequest.accumulateAndGet(texts.size(), Math::max);
+            sleep(fixedLatency.plus(latencyPerInput.multipliedBy(texts.size())));
+
+            List<Embedding> embeddings = new ArrayList<>(texts.size());
+            for (int i = 0; i < texts.size(); i++) {
+                embeddings.add(new Embedding(vector(texts.get(i)), i));
+            }
+            return new EmbeddingResponse(embeddings);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return dimensions;
+    }
+
+    float[] vector(String text) {
+        float[] vector = new float[dimensions];
+        for (String word : text.toLowerCase(Locale.ROOT).split("\\W+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            int hash = word.hashCode() * 0x9E3779B1;
+            vector[Math.floorMod(hash, dimensions)] += hash < 0 ? -1f : 1f;
+        }
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        if (norm == 0) {
+            vector[0] = 1f;
+            return vector;
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] *= scale;
+        }
+        return vector;
+    }
+
+    private static void sleep(Duration duration) {
+        if (duration.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(duration.toMillis(), duration.toNanosPart() % 1_000_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}